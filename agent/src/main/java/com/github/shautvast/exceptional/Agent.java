@@ -1,89 +1,112 @@
 package com.github.shautvast.exceptional;
 
-import java.lang.classfile.ClassBuilder;
-import java.lang.classfile.ClassElement;
-import java.lang.classfile.ClassFile;
-import java.lang.classfile.MethodModel;
-import java.lang.classfile.instruction.ThrowInstruction;
-import java.lang.constant.ClassDesc;
-import java.lang.constant.MethodTypeDesc;
-import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
-import java.lang.reflect.AccessFlag;
-import java.security.ProtectionDomain;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
 
+/**
+ * Started with -javaagent, or attached to a running JVM (see {@link Attach}). Attaching again with the argument
+ * "off" puts back the original classes, "on" instruments them again. Properties that are read once, like the
+ * sampling, keep the value they had the first time.
+ * <p>
+ * Classes that were loaded before the agent (java.lang.String for example, or everything when attaching) are
+ * retransformed, in batches of -Dexceptional.retransform.batch classes (default 100). With -javaagent that is
+ * some 500 JDK classes, -Dexceptional.retransform=false skips them for a faster start.
+ */
 public class Agent {
 
-    private static final String EXCEPTIONLOGGER = ExceptionLogger.class.getName();
+    private static Instrumentation instrumentation;
+    private static ThrowTransformer transformer;
 
-    public static void premain(String agentArgs, Instrumentation instrumentation) throws Exception {
+    public static void premain(String agentArgs, Instrumentation instrumentation) {
         System.err.println("--->Exceptional agent active");
-        // add transformer
-        instrumentation.addTransformer(new ClassFileTransformer() {
-            @Override
-            public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
-                                    ProtectionDomain protectionDomain, byte[] classfileBuffer) {
-                return bytecode(className, classfileBuffer);
-            }
+        install(instrumentation, Boolean.parseBoolean(System.getProperty("exceptional.retransform", "true")),
+                Long.getLong("exceptional.metrics.delay", 10_000));
+    }
 
-            @Override
-            public byte[] transform(Module module, ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
-                return bytecode(className, classfileBuffer);
+    /**
+     * @param agentArgs comma separated: on (the default), off, and name=value system properties
+     */
+    public static synchronized void agentmain(String agentArgs, Instrumentation instrumentation) {
+        boolean off = false;
+        for (String arg : agentArgs == null ? new String[0] : agentArgs.split(",")) {
+            int equals = arg.indexOf('=');
+            if (equals > 0) {
+                System.setProperty(arg.substring(0, equals).trim(), arg.substring(equals + 1).trim());
+            } else {
+                off = arg.trim().equals("off");
             }
+        }
+        if (off) {
+            disable();
+        } else if (transformer == null) {
+            System.err.println("--->Exceptional agent attached");
+            install(instrumentation, true, 0);
+        } else {
+            enable();
+        }
+    }
 
-            private static byte[] bytecode(String className, byte[] classfileBuffer) {
-                if (!className.startsWith("com/fasterxml/jackson")) {
-                    return injectExceptionLoggerBeforeThrow(className, classfileBuffer);
-                } else {
-                    return classfileBuffer;
-                }
-            }
-        }, true);
+    /**
+     * Instruments the loaded classes again, after {@link #disable()}
+     */
+    public static synchronized void enable() {
+        if (transformer != null && !transformer.isEnabled()) {
+            transformer.setEnabled(true);
+            retransform(transformer::accepts);
+            System.err.println("--->Exceptional agent enabled");
+        }
     }
 
-    /*
-     * Every throw opcode will be preceded by a call to our ExceptionLogger
+    /**
+     * Retransforms the instrumented classes back to their original bytes, and stops instrumenting new ones.
+     * Not a single instruction of the agent is left in the application code.
      */
-    private static byte[] injectExceptionLoggerBeforeThrow(String className, byte[] classfileBuffer) {
-        var classFile = ClassFile.of();
-        var classModel = classFile.parse(classfileBuffer);
-        return classFile.build(classModel.thisClass().asSymbol(), classBuilder -> {
-            for (ClassElement ce : classModel) {
-                // not all methods, TODO include synthetic?
-                if (ce instanceof MethodModel methodModel && !methodModel.flags().has(AccessFlag.ABSTRACT)
-                        && !methodModel.flags().has(AccessFlag.NATIVE)
-                        && !methodModel.flags().has(AccessFlag.BRIDGE)) {
-                    transform(classBuilder, methodModel);
-                } else {
-                    // keep all other class elements
-                    classBuilder.with(ce);
-                }
-            }
-        });
+    public static synchronized void disable() {
+        if (transformer != null && transformer.isEnabled()) {
+            transformer.setEnabled(false);
+            retransform(transformer::isInstrumented);
+            System.err.println("--->Exceptional agent disabled");
+        }
+    }
+
+    private static synchronized void install(Instrumentation instrumentation, boolean retransformLoaded,
+                                             long metricsDelay) {
+        Agent.instrumentation = instrumentation;
+        ExceptionProfiler.startReporting();
+        AgentMetrics.registerLater(metricsDelay);
+        transformer = new ThrowTransformer(ClassFilter.fromSystemProperties(), TransformCache.fromSystemProperties());
+        instrumentation.addTransformer(transformer, true);
+        if (retransformLoaded) {
+            retransform(transformer::accepts);
+        }
     }
 
-    private static void transform(ClassBuilder classBuilder, MethodModel methodModel) {
-        methodModel.code().ifPresent(code -> classBuilder.withMethod(
-                methodModel.methodName(), // copy name, type and modifiers from the original
-                methodModel.methodType(),
-                methodModel.flags().flagsMask(),
-                methodBuilder -> {
-                    // keep the existing annotations (and other method elements) in place
-                    methodModel.forEachElement(methodBuilder::with);
-                    // change the code
-                    methodBuilder.transformCode(code, (builder, element) -> {
-                        // this way of instrumenting may miss the already loaded classes, java.lang.String for example.
-                        // May need to circumvent that
-                        if (element instanceof ThrowInstruction) {
-                            builder.dup(); // on top of the stack is the current exception instance
-                            // duplicate it to make sure the `athrow` op has something to throw
-                            // after the invoke to ExceptionLogger has popped one off
-                            builder.invokestatic( // call my code with the exception as argument
-                                    ClassDesc.of(EXCEPTIONLOGGER), "log",
-                                    MethodTypeDesc.ofDescriptor("(Ljava/lang/Throwable;)V"));
-                        }
-                        builder.with(element); // leave every element in place
-                    });
-                }));
+    private static void retransform(Predicate<Class<?>> predicate) {
+        List<Class<?>> classes = Arrays.<Class<?>>stream(instrumentation.getAllLoadedClasses())
+                .filter(instrumentation::isModifiableClass)
+                .filter(predicate)
+                .toList();
+        int batchSize = Math.max(1, Integer.getInteger("exceptional.retransform.batch", 100));
+        int failed = 0;
+        for (int i = 0; i < classes.size(); i += batchSize) {
+            List<Class<?>> batch = classes.subList(i, Math.min(i + batchSize, classes.size()));
+            try {
+                instrumentation.retransformClasses(batch.toArray(Class<?>[]::new));
+            } catch (Throwable e) {
+                // one class fails the whole batch, and it is not known which ones are done: one by one then
+                for (Class<?> type : batch) {
+                    try {
+                        instrumentation.retransformClasses(type);
+                    } catch (Throwable e2) {
+                        failed++;
+                    }
+                }
+            }
+        }
+        if (failed > 0) {
+            System.err.println("--->Exceptional could not retransform " + failed + " of " + classes.size() + " classes");
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,304 @@
+package com.github.shautvast.exceptional;
+
+import jdk.jfr.*;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The agent's own numbers, as an MXBean (com.github.shautvast.exceptional:type=Agent) and as a periodic JFR event
+ * (com.github.shautvast.exceptional.Metrics, every 5 s, when a recording is running). Disable both with
+ * -Dexceptional.metrics=false, the counting itself is always on. With -javaagent they are registered
+ * -Dexceptional.metrics.delay ms (default 10000) after the agent starts, when attached right away.
+ * <p>
+ * Recording is cheap enough for production: striped counters (LongAdder) and {@link Log2Histogram}s, no locks.
+ * The ringbuffer numbers come from the {@link CircularBufferWriter}, which has its own counters; they are 0 until
+ * the first exception is logged.
+ * <p>
+ * An exception storm starting or ending (see {@link ExceptionStorm}) is a JFR event of its own
+ * (com.github.shautvast.exceptional.Storm), and a line on stderr.
+ */
+public class AgentMetrics implements AgentMetricsMXBean {
+
+    static final String OBJECT_NAME = "com.github.shautvast.exceptional:type=Agent";
+
+    static final LongAdder logged = new LongAdder();
+    static final LongAdder aggregated = new LongAdder();
+    static final LongAdder counted = new LongAdder();
+    static final LongAdder storms = new LongAdder();
+    static final Log2Histogram encodeNanos = new Log2Histogram();
+    static final Log2Histogram compressNanos = new Log2Histogram();
+    private static volatile CircularBufferWriter writer;
+    private static volatile ExceptionStorm storm;
+
+    /**
+     * Called by the ExceptionLogger when it is initialized
+     *
+     * @return the writer
+     */
+    static CircularBufferWriter watch(CircularBufferWriter writer) {
+        AgentMetrics.writer = writer;
+        return writer;
+    }
+
+    /**
+     * Called by the ExceptionLogger when it is initialized
+     *
+     * @return the storm detector
+     */
+    static ExceptionStorm watch(ExceptionStorm storm) {
+        AgentMetrics.storm = storm;
+        return storm;
+    }
+
+    /**
+     * Called by the ExceptionLogger when an exception storm starts or ends
+     */
+    static void stormChanged(ExceptionStorm.Transition transition, long rate) {
+        boolean degraded = transition == ExceptionStorm.Transition.DEGRADED;
+        if (degraded) {
+            storms.increment();
+            System.err.println("--->Exceptional: exception storm, " + rate + " throws/s, only counting them");
+        } else {
+            System.err.println("--->Exceptional: exception storm is over, " + rate + " throws/s");
+        }
+        try {
+            var event = new StormEvent();
+            event.degraded = degraded;
+            event.throwRate = rate;
+            event.commit();
+        } catch (LinkageError e) {
+            // no jdk.jfr module
+        }
+    }
+
+    /**
+     * Registers the MXBean and the JFR event after a delay, on a daemon thread. The platform MBeanServer initializes
+     * JMX and java.util.logging, with -javaagent that would be before the application had a chance to configure them.
+     *
+     * @param delayMillis 0 registers them right away
+     */
+    static void registerLater(long delayMillis) {
+        if (!Boolean.parseBoolean(System.getProperty("exceptional.metrics", "true"))) {
+            return;
+        }
+        if (delayMillis <= 0) {
+            register();
+            return;
+        }
+        Thread registrar = new Thread(() -> {
+            try {
+                Thread.sleep(delayMillis);
+                register();
+            } catch (InterruptedException e) {
+                // done
+            }
+        }, "exceptional-metrics");
+        registrar.setDaemon(true);
+        registrar.start();
+    }
+
+    /**
+     * Registers the MXBean and the JFR event, unless -Dexceptional.metrics=false
+     */
+    static void register() {
+        if (!Boolean.parseBoolean(System.getProperty("exceptional.metrics", "true"))) {
+            return;
+        }
+        AgentMetrics metrics = new AgentMetrics();
+        try {
+            var server = ManagementFactory.getPlatformMBeanServer();
+            var name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(metrics, name);
+            }
+        } catch (Exception | LinkageError e) {
+            System.err.println("--->Exceptional could not register its MXBean: " + e);
+        }
+        try {
+            FlightRecorder.addPeriodicEvent(MetricsEvent.class, metrics::emit);
+        } catch (Exception | LinkageError e) {
+            System.err.println("--->Exceptional could not register its JFR event: " + e); // no jdk.jfr module
+        }
+    }
+
+    private void emit() {
+        var event = new MetricsEvent();
+        event.throwsLogged = getThrowsLogged();
+        event.throwsAggregated = getThrowsAggregated();
+        event.recordsWritten = getRecordsWritten();
+        event.recordsDropped = getRecordsDropped();
+        event.writerBackoffs = getWriterBackoffs();
+        event.queueDepth = getQueueDepth();
+        event.ringFillLevel = getRingFillLevel();
+        event.bytesWritten = getBytesWritten();
+        event.nativeCalls = getNativeCalls();
+        event.encodeNanosP99 = getEncodeNanosP99();
+        event.compressNanosP99 = getCompressNanosP99();
+        event.storm = isStorm();
+        event.throwRate = getThrowRate();
+        event.throwsCounted = getThrowsCounted();
+        event.commit();
+    }
+
+    @Override
+    public long getThrowsLogged() {
+        return logged.sum();
+    }
+
+    @Override
+    public long getThrowsAggregated() {
+        return aggregated.sum();
+    }
+
+    @Override
+    public long getRecordsWritten() {
+        CircularBufferWriter writer = AgentMetrics.writer;
+        return writer == null ? 0 : writer.getEnqueued();
+    }
+
+    @Override
+    public long getRecordsDropped() {
+        CircularBufferWriter writer = AgentMetrics.writer;
+        return writer == null ? 0 : writer.getDropped();
+    }
+
+    @Override
+    public long getWriterBackoffs() {
+        CircularBufferWriter writer = AgentMetrics.writer;
+        return writer == null ? 0 : writer.getSpun();
+    }
+
+    @Override
+    public long getQueueDepth() {
+        CircularBufferWriter writer = AgentMetrics.writer;
+        return writer == null ? 0 : writer.getPending();
+    }
+
+    @Override
+    public long getRingUsedBytes() {
+        CircularBufferWriter writer = AgentMetrics.writer;
+        return writer == null ? 0 : writer.getUsed();
+    }
+
+    @Override
+    public long getRingCapacity() {
+        CircularBufferWriter writer = AgentMetrics.writer;
+        return writer == null ? 0 : writer.getCapacity();
+    }
+
+    @Override
+    public double getRingFillLevel() {
+        CircularBufferWriter writer = AgentMetrics.writer;
+        return writer == null ? 0 : (double) writer.getUsed() / writer.getCapacity();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        CircularBufferWriter writer = AgentMetrics.writer;
+        return writer == null ? 0 : writer.getBytes();
+    }
+
+    @Override
+    public long getNativeCalls() {
+        CircularBufferWriter writer = AgentMetrics.writer;
+        return writer == null ? 0 : writer.getDowncalls();
+    }
+
+    @Override
+    public long getEncodeNanosMean() {
+        return encodeNanos.mean();
+    }
+
+    @Override
+    public long getEncodeNanosP99() {
+        return encodeNanos.percentile(0.99);
+    }
+
+    @Override
+    public long getCompressNanosMean() {
+        return compressNanos.mean();
+    }
+
+    @Override
+    public long getCompressNanosP99() {
+        return compressNanos.percentile(0.99);
+    }
+
+    @Override
+    public boolean isStorm() {
+        ExceptionStorm storm = AgentMetrics.storm;
+        return storm != null && storm.isDegraded();
+    }
+
+    @Override
+    public long getStorms() {
+        return storms.sum();
+    }
+
+    @Override
+    public long getThrowRate() {
+        ExceptionStorm storm = AgentMetrics.storm;
+        return storm == null ? 0 : storm.rate();
+    }
+
+    @Override
+    public long getThrowsCounted() {
+        return counted.sum();
+    }
+
+    @Name("com.github.shautvast.exceptional.Metrics")
+    @Label("Exceptional Agent")
+    @Category("Exceptional")
+    @Period("5 s")
+    @StackTrace(false)
+    static class MetricsEvent extends Event {
+        @Label("Throws Logged")
+        long throwsLogged;
+        @Label("Throws Aggregated")
+        long throwsAggregated;
+        @Label("Records Written")
+        long recordsWritten;
+        @Label("Records Dropped")
+        long recordsDropped;
+        @Label("Writer Backoffs")
+        long writerBackoffs;
+        @Label("Queue Depth")
+        long queueDepth;
+        @Label("Ring Fill Level")
+        @Percentage
+        double ringFillLevel;
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+        @Label("Native Calls")
+        long nativeCalls;
+        @Label("Encode p99")
+        @Timespan
+        long encodeNanosP99;
+        @Label("Compress p99")
+        @Timespan
+        long compressNanosP99;
+        @Label("Exception Storm")
+        boolean storm;
+        @Label("Throw Rate")
+        @Frequency
+        long throwRate;
+        @Label("Throws Counted")
+        long throwsCounted;
+    }
+
+    @Name("com.github.shautvast.exceptional.Storm")
+    @Label("Exception Storm")
+    @Description("An exception storm started (only counting the throws) or ended")
+    @Category("Exceptional")
+    @StackTrace(false)
+    static class StormEvent extends Event {
+        @Label("Degraded")
+        boolean degraded;
+        @Label("Throw Rate")
+        @Frequency
+        long throwRate;
+    }
+}
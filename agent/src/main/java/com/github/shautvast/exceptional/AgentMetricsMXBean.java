@@ -0,0 +1,76 @@
+package com.github.shautvast.exceptional;
+
+/**
+ * What the agent costs and whether it keeps up, registered as com.github.shautvast.exceptional:type=Agent.
+ * Times are in nanoseconds.
+ */
+public interface AgentMetricsMXBean {
+
+    /**
+     * @return the number of throws that were logged, whether they were sent in full or counted by the aggregation
+     */
+    long getThrowsLogged();
+
+    /**
+     * @return the number of throws that were only counted, see AggregationCache
+     */
+    long getThrowsAggregated();
+
+    long getRecordsWritten();
+
+    long getRecordsDropped();
+
+    /**
+     * @return the number of times a writer backed off because the ringbuffer was full
+     */
+    long getWriterBackoffs();
+
+    /**
+     * @return records written that the rust lib was not told about yet
+     */
+    long getQueueDepth();
+
+    long getRingUsedBytes();
+
+    long getRingCapacity();
+
+    /**
+     * @return used / capacity, between 0 and 1
+     */
+    double getRingFillLevel();
+
+    /**
+     * @return the payload bytes that were handed to the rust lib (or the file) through the ringbuffer
+     */
+    long getBytesWritten();
+
+    long getNativeCalls();
+
+    long getEncodeNanosMean();
+
+    long getEncodeNanosP99();
+
+    long getCompressNanosMean();
+
+    long getCompressNanosP99();
+
+    /**
+     * @return true during an exception storm, when throws are only counted, see ExceptionStorm
+     */
+    boolean isStorm();
+
+    /**
+     * @return the number of exception storms since the start
+     */
+    long getStorms();
+
+    /**
+     * @return throws per second, measured by the storm detector (0 when it is off)
+     */
+    long getThrowRate();
+
+    /**
+     * @return the number of throws that were only counted during exception storms
+     */
+    long getThrowsCounted();
+}
@@ -0,0 +1,158 @@
+package com.github.shautvast.exceptional;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts throws per {@link Fingerprint}, so that the full payload of a stacktrace is only sent the first time it
+ * is seen, and after that once per time window. In between, throws are only counted and {@link #flush} hands out
+ * the counts, to be sent as compact 'fingerprint X seen N more times' records.
+ * <p>
+ * Bounded, lock-free open addressing table with primitive long keys, so there is no boxing on the hot path.
+ * When all the slots a fingerprint can go to are taken, the throw is not aggregated and its payload is sent as
+ * before. Entries that have not been seen for a whole window are evicted by flush, that leaves a tombstone, so that
+ * the fingerprints further down the same probe chain are still found. Tombstones are reused for new fingerprints.
+ * <p>
+ * A slot is claimed in two steps, its window, last seen and count are set before the fingerprint becomes visible.
+ * <p>
+ * Counts are exact while an entry lives, a throw that races with the eviction of its entry may be counted twice
+ * or not at all. A fingerprint that is seen for the first time while another one is evicted from its probe chain may
+ * end up in two slots, both are counted and flushed, and the idle one is evicted later.
+ */
+public class AggregationCache {
+
+    private static final int PROBES = 8;
+    private static final long EMPTY = 0; // Fingerprint is never 0
+    private static final long TOMBSTONE = Long.MIN_VALUE; // evicted
+    private static final long CLAIMED = Long.MIN_VALUE + 1; // being taken by a new fingerprint
+    private static final long LAST_SEEN_RESOLUTION = 1_000_000; // 1 ms, saves a write to a shared slot on every hit
+
+    private final AtomicLongArray keys;
+    private final AtomicLongArray pending;
+    private final AtomicLongArray windowStart;
+    private final AtomicLongArray lastSeen;
+    private final int mask;
+    private final long windowNanos;
+
+    /**
+     * @param size        maximum number of fingerprints, rounded up to a power of two
+     * @param windowNanos the full payload of a fingerprint is sent at most once in this period
+     */
+    public AggregationCache(int size, long windowNanos) {
+        if (size < 1 || size > 1 << 30) {
+            throw new IllegalArgumentException("illegal size: " + size);
+        }
+        int capacity = Integer.highestOneBit(size - 1) << 1;
+        if (capacity == 0) {
+            capacity = 1;
+        }
+        this.keys = new AtomicLongArray(capacity);
+        this.pending = new AtomicLongArray(capacity);
+        this.windowStart = new AtomicLongArray(capacity);
+        this.lastSeen = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        this.windowNanos = windowNanos;
+    }
+
+    /**
+     * @param fingerprint of the stacktrace that was thrown
+     * @param now         System.nanoTime()
+     * @return true when the full payload must be sent, false when the throw has only been counted
+     */
+    public boolean record(long fingerprint, long now) {
+        if (fingerprint == TOMBSTONE || fingerprint == CLAIMED) {
+            // one in 2^63, not aggregated
+            return true;
+        }
+        int index = (int) fingerprint;
+        while (true) {
+            int free = -1;
+            for (int i = 0; i < PROBES; i++) {
+                int slot = (index + i) & mask;
+                long key = keys.get(slot);
+                while (key == CLAIMED) {
+                    // a few writes away from being published, may be this fingerprint
+                    Thread.onSpinWait();
+                    key = keys.get(slot);
+                }
+                if (key == fingerprint) {
+                    return hit(slot, fingerprint, now);
+                }
+                if (key == TOMBSTONE && free < 0) {
+                    free = slot;
+                } else if (key == EMPTY) {
+                    // nothing was ever put after this one, so the fingerprint is not in the table
+                    if (free < 0) {
+                        free = slot;
+                    }
+                    break;
+                }
+            }
+            if (free < 0) {
+                // no room, not aggregated
+                return true;
+            }
+            long key = keys.get(free);
+            if ((key == EMPTY || key == TOMBSTONE) && keys.compareAndSet(free, key, CLAIMED)) {
+                // first time seen
+                windowStart.set(free, now);
+                lastSeen.set(free, now);
+                pending.set(free, 0); // a throw that was counted after its entry was evicted
+                keys.set(free, fingerprint);
+                return true;
+            }
+            // taken by another thread, possibly for the same fingerprint, look again
+        }
+    }
+
+    private boolean hit(int slot, long fingerprint, long now) {
+        if (now - lastSeen.get(slot) > LAST_SEEN_RESOLUTION) {
+            lastSeen.set(slot, now);
+        }
+        long start = windowStart.get(slot);
+        if (now - start >= windowNanos && windowStart.compareAndSet(slot, start, now)) {
+            // new window, send the payload again
+            return true;
+        }
+        pending.incrementAndGet(slot);
+        if (keys.get(slot) != fingerprint) {
+            // evicted in the meantime, flush may not have seen the count. Take it back and send the payload instead
+            long count;
+            while ((count = pending.get(slot)) > 0) {
+                if (pending.compareAndSet(slot, count, count - 1)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hands out all counts since the previous flush and evicts the entries that were idle for a whole window.
+     * Meant to be called periodically, from a single thread.
+     *
+     * @param now System.nanoTime()
+     */
+    public void flush(long now, Repeats repeats) {
+        for (int slot = 0; slot <= mask; slot++) {
+            long key = keys.get(slot);
+            if (key == EMPTY || key == TOMBSTONE || key == CLAIMED) {
+                continue;
+            }
+            long count = pending.getAndSet(slot, 0);
+            if (count > 0) {
+                repeats.repeated(key, count);
+            } else if (now - lastSeen.get(slot) > windowNanos && keys.compareAndSet(slot, key, TOMBSTONE)) {
+                // a throw may have been counted after the getAndSet
+                long rest = pending.getAndSet(slot, 0);
+                if (rest > 0) {
+                    repeats.repeated(key, rest);
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface Repeats {
+        void repeated(long fingerprint, long count);
+    }
+}
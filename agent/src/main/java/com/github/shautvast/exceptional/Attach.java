@@ -0,0 +1,31 @@
+package com.github.shautvast.exceptional;
+
+import com.sun.tools.attach.VirtualMachine;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Attaches the agent to a running JVM:
+ * <pre>
+ * java -jar exceptional-agent.jar &lt;pid&gt; [on|off] [agentlib=... exceptional.include=... ...]
+ * </pre>
+ * The name=value arguments are set as system properties in the target JVM before the agent starts, for the
+ * configuration it was not started with.
+ */
+public class Attach {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: java -jar exceptional-agent.jar <pid> [on|off] [name=value ...]");
+            System.exit(1);
+        }
+        String agentJar = Path.of(Attach.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+        VirtualMachine vm = VirtualMachine.attach(args[0]);
+        try {
+            vm.loadAgent(agentJar, String.join(",", Arrays.copyOfRange(args, 1, args.length)));
+        } finally {
+            vm.detach();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.github.shautvast.exceptional;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a writer waits for free space in the ringbuffer, set with -Dexceptional.overflow.backoff=spin|yield|park
+ */
+public enum Backoff {
+    /**
+     * lowest latency, but burns the core, only for when there are cores to spare
+     */
+    SPIN {
+        @Override
+        void idle(int attempt) {
+            Thread.onSpinWait();
+        }
+    },
+    YIELD {
+        @Override
+        void idle(int attempt) {
+            Thread.yield();
+        }
+    },
+    /**
+     * parks for 1, 2, 4.. micros, up to 1 millisecond (default)
+     */
+    PARK {
+        @Override
+        void idle(int attempt) {
+            LockSupport.parkNanos(1000L << Math.min(attempt, 10));
+        }
+    };
+
+    abstract void idle(int attempt);
+
+    static Backoff fromProperty(String value) {
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            // read while the ExceptionLogger is initialized, by the first throw, so not an error
+            System.err.println("--->Exceptional: unknown exceptional.overflow.backoff " + value + ", using park");
+            return PARK;
+        }
+    }
+}
@@ -1,87 +1,365 @@
 package com.github.shautvast.exceptional;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.foreign.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.VarHandle;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.nio.file.StandardOpenOption.*;
 
 /**
- * Enables multithreaded writing, while keeping CircularByteBuffer simpler (only suitable for single-threaded writing)
+ * Every thread writes its records directly into the native ringbuffer (see MultiProducerCircularByteBuffer),
+ * of -Dexceptional.buffer.size bytes (default 1 MB, rounded up to a power of two).
+ * The rust lib is told that there is something to read in one of two ways:
+ * <ul>
+ *     <li>batch (default): a background thread calls buffer_updated once for a batch of records, when there are
+ *     exceptional.handoff.batch records (default 64), or when the first one has waited
+ *     exceptional.handoff.linger micros (default 1000). The rust lib reads everything that is there.</li>
+ *     <li>poll: no downcalls at all, start_reader is called once and a rust thread polls the ringbuffer
+ *     every exceptional.handoff.linger micros, when there was nothing to read.</li>
+ * </ul>
+ * Choose with -Dexceptional.handoff=batch|poll. Batch size 1 and linger 0 means one downcall per record.
+ * <p>
+ * With -Dexceptional.buffer.file=&lt;path&gt; (%p is replaced by the process id) the ringbuffer is a memory mapped
+ * file instead, and the rust lib is not loaded at all: a collector in another process reads the file
+ * (see RingBufferFileReader). An existing file is overwritten.
+ * <p>
+ * When the ringbuffer is full, the {@link OverflowPolicy} decides. There are counters for the records that were
+ * written, dropped, and for the number of times a writer had to back off, to size the buffer, and for the bytes and
+ * downcalls to the rust lib. See {@link AgentMetrics}.
  */
 public class CircularBufferWriter implements AutoCloseable {
+    static final int DEFAULT_CAPACITY = 1 << 20;
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
     private static Linker linker;
     private static SymbolLookup rustlib;
-    private static final LinkedBlockingDeque<byte[]> writeQueue = new LinkedBlockingDeque<>(); // unbounded
-    private static final ExecutorService executorService = Executors.newSingleThreadExecutor(runnable -> {
-        Thread thread = new Thread(runnable);
-        thread.setDaemon(true);
-        return thread;
-    });
-    private final AtomicBoolean active = new AtomicBoolean(false);
+    private final AtomicBoolean active = new AtomicBoolean(true);
+    private final MemorySegment ringbufferMemory;
+    private final MultiProducerCircularByteBuffer buffer;
+    private final boolean poll = "poll".equals(System.getProperty("exceptional.handoff", "batch"));
+    private final int batchSize = Math.max(1, Integer.getInteger("exceptional.handoff.batch", 64));
+    private final long lingerNanos = TimeUnit.MICROSECONDS.toNanos(Long.getLong("exceptional.handoff.linger", 1000));
+    private final OverflowPolicy overflowPolicy = OverflowPolicy.fromProperty(System.getProperty("exceptional.overflow", "drop_newest"));
+    private final int sampleRate = Math.max(1, Integer.getInteger("exceptional.overflow.sample", 100));
+    private final long blockTimeoutNanos = TimeUnit.MICROSECONDS.toNanos(Long.getLong("exceptional.overflow.timeout", 1000));
+    private final Backoff backoff = Backoff.fromProperty(System.getProperty("exceptional.overflow.backoff", "park"));
+    // striped, so the writers don't contend on them
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder spun = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder downcalls = new LongAdder(); // only the notifier, but read by others
+    private volatile long signaled; // nr of records published before the last downcall
+    private volatile Thread notifier;
+    // one per writer, close stops only this one
+    private Thread notifierThread;
+    private volatile boolean notifierParked;
 
     public CircularBufferWriter() {
-        startWriteQueueListener();
+        this(createMemory(), System.getProperty("exceptional.buffer.file") == null);
+    }
+
+    /**
+     * A writer on a file of its own, that no one is told about: drain it with a {@link RingBufferFileReader}.
+     * For benchmarks, next to the writer of the agent.
+     *
+     * @param capacity in bytes, a power of two
+     */
+    public static CircularBufferWriter onFile(Path file, int capacity) {
+        return new CircularBufferWriter(mapFile(file, MultiProducerCircularByteBuffer.segmentSize(capacity)), false);
+    }
+
+    /**
+     * @param notify false to leave the reading to the caller: a process that reads the file, or a test
+     */
+    CircularBufferWriter(MemorySegment ringbufferMemory, boolean notify) {
+        this.ringbufferMemory = ringbufferMemory;
+        buffer = new MultiProducerCircularByteBuffer(ringbufferMemory);
+        if (notify) {
+            startNotifier();
+        }
+    }
+
+    static MemorySegment createMemory() {
+        long size = MultiProducerCircularByteBuffer.segmentSize(Integer.getInteger("exceptional.buffer.size", DEFAULT_CAPACITY));
+        String file = System.getProperty("exceptional.buffer.file");
+        if (file == null) {
+            // written by all threads, so not confined, and it lives as long as the rust lib may read it
+            // the rust lib reads the capacity from the start of the segment
+            return Arena.global().allocate(size, 64);
+        }
+        return mapFile(Path.of(file.replace("%p", Long.toString(ProcessHandle.current().pid()))), size);
+    }
+
+    static MemorySegment mapFile(Path path, long size) {
+        try (FileChannel channel = FileChannel.open(path, CREATE, READ, WRITE, TRUNCATE_EXISTING)) {
+            // the mapping stays valid after the channel is closed, mapped memory is page aligned
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size, Arena.global());
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not map " + path, e);
+        }
     }
 
-    private void startWriteQueueListener() {
+    private void startNotifier() {
         active.set(true);
 
-        executorService.submit(() -> {
+        notifierThread = Thread.ofPlatform().daemon().name("exceptional-notifier").start(() -> {
             // maybe test again with this part of the code somewhere else. Did have issues when setting this up in the main thread, but need to investigate.
-
-            // setup of native memory ringbuffer
             var arena = Arena.ofConfined();
-            var ringbufferMemory = arena.allocate(32768);
-            var buffer = new SingleThreadCircularByteBuffer(ringbufferMemory);
-
-            arena = Arena.ofConfined();
             linker = Linker.nativeLinker();
             //TODO relative path, or configurable
             String agentlibPath = System.getProperty("agentlib");
             if (agentlibPath == null) {
+                // nothing reads the ringbuffer, once it is full the records are dropped
                 System.err.println("Please specify an agent library with -Dagentlib=<path to native agent>");
-                System.exit(-1);
+                return;
             }
             rustlib = SymbolLookup.libraryLookup(agentlibPath, arena);
-            MemorySegment create = rustlib.find("buffer_updated").orElseThrow();
-            var updateHandle = linker.downcallHandle(create, FunctionDescriptor.ofVoid(
-                    ValueLayout.ADDRESS
-            ));
-
-            // start polling from the queue and offer elements to the ringbuffer
-            byte[] element;
-            while (active.get()) {
-                try {
-                    element = writeQueue.takeFirst(); // blocking read ie. efficient wait loop
-                    while (!buffer.put(element) && active.get())
-                        ; // busy loop supposed to be just 1 iteration, also depends on load and buffer size (TBD)
-
-                    // once the buffer is updated we can signal an update to the rust lib, so it will read the next element
-                    updateHandle.invoke(ringbufferMemory); // the update call is not supposed to cause a lot of overhead (TBD)
-                    // and this setup prevents thread sync issues and unnecessary waits
-                    //
-                    // the memory is allocated only once, we just pass the pointer every time
-                    // that is the simplest way on the rust side
-                } catch (Throwable e) {
-                    throw new RuntimeException(e);
+            try {
+                if (poll) {
+                    MemorySegment startReader = rustlib.find("start_reader").orElseThrow();
+                    linker.downcallHandle(startReader, FunctionDescriptor.ofVoid(ValueLayout.ADDRESS, ValueLayout.JAVA_LONG))
+                            .invoke(ringbufferMemory, TimeUnit.NANOSECONDS.toMicros(lingerNanos));
+                    downcalls.increment();
+                } else {
+                    MemorySegment update = rustlib.find("buffer_updated").orElseThrow();
+                    notifyInBatches(linker.downcallHandle(update, FunctionDescriptor.ofVoid(ValueLayout.ADDRESS)));
                 }
+            } catch (Throwable e) {
+                System.err.println("--->Exceptional notifier stopped: " + e);
             }
-            System.out.println("Shutting down");
-
         });
     }
 
-    public void put(byte[] bytes) {
-        writeQueue.offerLast(bytes);
+    private void notifyInBatches(MethodHandle updateHandle) throws Throwable {
+        notifier = Thread.currentThread();
+        long lingerStart = 0;
+        while (active.get()) {
+            long current = enqueued.sum();
+            long pending = current - signaled;
+            if (pending == 0) {
+                notifierParked = true;
+                // recheck, a writer may have published before it could see the flag
+                if (enqueued.sum() == signaled) {
+                    LockSupport.parkNanos(MAX_PARK_NANOS);
+                }
+                notifierParked = false;
+                continue;
+            }
+            // don't let writers run into a full buffer while lingering
+            if (pending < batchSize && buffer.size() < buffer.capacity() / 2) {
+                long now = System.nanoTime();
+                if (lingerStart == 0) {
+                    lingerStart = now;
+                }
+                long lingered = now - lingerStart;
+                if (lingered < lingerNanos) {
+                    // writers don't wake us up for every record, wait for the batch to fill up or the linger to end
+                    LockSupport.parkNanos(Math.min(lingerNanos - lingered, MAX_PARK_NANOS));
+                    continue;
+                }
+            }
+            // the rust lib may have read some of them in the previous call already
+            if (buffer.hasPublished()) {
+                // the memory is allocated only once, we just pass the pointer every time
+                updateHandle.invoke(ringbufferMemory);
+                downcalls.increment();
+            }
+            signaled = current;
+            lingerStart = 0;
+        }
+        System.out.println("Shutting down");
+    }
+
+    /**
+     * Writes the record into the ringbuffer, in the calling thread.
+     * What happens when the buffer is full, depends on the {@link OverflowPolicy}.
+     *
+     * @return false if the record was dropped
+     */
+    public boolean put(byte[] bytes) {
+        return put(bytes, 0, bytes.length, 0);
+    }
+
+    /**
+     * Writes length bytes from offset as one record, with the flags of MultiProducerCircularByteBuffer
+     *
+     * @return false if the record was dropped
+     */
+    public boolean put(byte[] bytes, int offset, int length, int flags) {
+        boolean written = switch (overflowPolicy) {
+            case DROP_NEWEST -> buffer.put(bytes, offset, length, flags);
+            case SAMPLE -> sampled() && buffer.put(bytes, offset, length, flags);
+            case BLOCK -> putWithBackoff(bytes, offset, length, flags);
+        };
+        if (!written) {
+            dropped.increment();
+            return false;
+        }
+        published(length);
+        return true;
+    }
+
+    /**
+     * Claims space for a record of at most maxLength bytes in the ringbuffer, to write it in place, see
+     * MultiProducerCircularByteBuffer. What happens when the buffer is full, depends on the {@link OverflowPolicy}.
+     *
+     * @return false if the record was dropped
+     */
+    public boolean reserve(int maxLength, MultiProducerCircularByteBuffer.Reservation reservation) {
+        boolean reserved = switch (overflowPolicy) {
+            case DROP_NEWEST -> buffer.reserve(maxLength, reservation);
+            case SAMPLE -> sampled() && buffer.reserve(maxLength, reservation);
+            case BLOCK -> reserveWithBackoff(maxLength, reservation);
+        };
+        if (!reserved) {
+            dropped.increment();
+        }
+        return reserved;
+    }
+
+    /**
+     * Publishes a reserved record of length bytes
+     */
+    public void commit(MultiProducerCircularByteBuffer.Reservation reservation, int length, int flags) {
+        buffer.commit(reservation, length, flags);
+        published(length);
     }
 
     /**
-     * Shuts down the background thread
+     * Gives up a reserved record, it is not counted as dropped
+     */
+    public void abort(MultiProducerCircularByteBuffer.Reservation reservation) {
+        buffer.abort(reservation);
+    }
+
+    private void published(int length) {
+        enqueued.increment();
+        this.bytes.add(length);
+        if (!poll) {
+            VarHandle.fullFence(); // publish before reading the flag, the notifier does the opposite
+            if (notifierParked) {
+                LockSupport.unpark(notifier);
+            }
+        }
+    }
+
+    private boolean sampled() {
+        return buffer.size() < buffer.capacity() * 3L / 4 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+    }
+
+    private boolean putWithBackoff(byte[] bytes, int offset, int length, int flags) {
+        if (buffer.put(bytes, offset, length, flags)) {
+            return true;
+        }
+        long deadline = System.nanoTime() + blockTimeoutNanos;
+        int attempt = 0;
+        do {
+            spun.increment();
+            backoff.idle(attempt++);
+            if (buffer.put(bytes, offset, length, flags)) {
+                return true;
+            }
+        } while (System.nanoTime() - deadline < 0 && active.get());
+        return false;
+    }
+
+    private boolean reserveWithBackoff(int maxLength, MultiProducerCircularByteBuffer.Reservation reservation) {
+        if (buffer.reserve(maxLength, reservation)) {
+            return true;
+        }
+        long deadline = System.nanoTime() + blockTimeoutNanos;
+        int attempt = 0;
+        do {
+            spun.increment();
+            backoff.idle(attempt++);
+            if (buffer.reserve(maxLength, reservation)) {
+                return true;
+            }
+        } while (System.nanoTime() - deadline < 0 && active.get());
+        return false;
+    }
+
+    MultiProducerCircularByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the number of records that were written into the ringbuffer
+     */
+    public long getEnqueued() {
+        return enqueued.sum();
+    }
+
+    /**
+     * @return the number of records that were dropped because the ringbuffer was full
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the number of times a writer backed off, waiting for space (only with OverflowPolicy.BLOCK)
+     */
+    public long getSpun() {
+        return spun.sum();
+    }
+
+    /**
+     * @return the number of payload bytes that were written into the ringbuffer, for the rust lib
+     */
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * @return the number of calls into the rust lib
+     */
+    public long getDowncalls() {
+        return downcalls.sum();
+    }
+
+    /**
+     * @return the number of records that were written, but that the rust lib was not told about yet (batch mode),
+     * 0 in poll mode or when there is no rust lib
+     */
+    public long getPending() {
+        return notifier == null ? 0 : Math.max(0, enqueued.sum() - signaled);
+    }
+
+    /**
+     * @return the number of bytes in the ringbuffer that were not read yet, including record headers and padding
+     */
+    public long getUsed() {
+        return buffer.size();
+    }
+
+    public long getCapacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Shuts down the background thread of this writer, and waits for it
      */
     @Override
     public void close() {
         active.set(false);
-        executorService.close();
+        LockSupport.unpark(notifier);
+        if (notifierThread != null) {
+            try {
+                notifierThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 }
@@ -0,0 +1,82 @@
+package com.github.shautvast.exceptional;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decides which classes are instrumented, by package or class name.
+ * <p>
+ * System properties, comma separated names like com.acme or com.acme.Parser:
+ * <ul>
+ *     <li>exceptional.include: only these (default: everything)</li>
+ *     <li>exceptional.exclude: not these, wins over include</li>
+ * </ul>
+ * The agent's own classes, and the libraries it uses while logging, are always excluded. With -Dexceptional.sink=http
+ * so is the JDK's HttpClient, that sends what is logged.
+ */
+public class ClassFilter {
+
+    static final List<String> ALWAYS_EXCLUDED = List.of("com/github/shautvast/exceptional", "org/xerial/snappy");
+    static final List<String> HTTP_SINK_EXCLUDED = List.of("java/net/http", "jdk/internal/net/http");
+
+    private final List<String> includes;
+    private final List<String> excludes;
+
+    ClassFilter(List<String> includes, List<String> excludes) {
+        this.includes = toInternalNames(includes);
+        this.excludes = new ArrayList<>(ALWAYS_EXCLUDED);
+        this.excludes.addAll(toInternalNames(excludes));
+    }
+
+    public static ClassFilter fromSystemProperties() {
+        List<String> excludes = new ArrayList<>(split(System.getProperty("exceptional.exclude")));
+        if ("http".equals(System.getProperty("exceptional.sink"))) {
+            excludes.addAll(HTTP_SINK_EXCLUDED);
+        }
+        return new ClassFilter(split(System.getProperty("exceptional.include")), excludes);
+    }
+
+    /**
+     * @param className internal name, eg. com/acme/Parser
+     */
+    public boolean accepts(String className) {
+        for (String exclude : excludes) {
+            if (matches(className, exclude)) {
+                return false;
+            }
+        }
+        if (includes.isEmpty()) {
+            return true;
+        }
+        for (String include : includes) {
+            if (matches(className, include)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // on a package or (nested) class boundary, so com/acme does not match com/acmeco/Main
+    private static boolean matches(String className, String name) {
+        if (!className.startsWith(name)) {
+            return false;
+        }
+        if (className.length() == name.length()) {
+            return true;
+        }
+        char next = className.charAt(name.length());
+        return next == '/' || next == '$';
+    }
+
+    private static List<String> split(String value) {
+        if (value == null || value.isBlank()) {
+            return List.of();
+        }
+        return Arrays.stream(value.split(",")).map(String::trim).filter(name -> !name.isEmpty()).toList();
+    }
+
+    private static List<String> toInternalNames(List<String> names) {
+        return names.stream().map(name -> name.replace('.', '/')).toList();
+    }
+}
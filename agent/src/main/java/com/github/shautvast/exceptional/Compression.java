@@ -0,0 +1,60 @@
+package com.github.shautvast.exceptional;
+
+/**
+ * What is compressed, and where, set with -Dexceptional.compression=none|record|batch|dictionary
+ * <p>
+ * A record is a few hundred bytes, less when the names are symbols (see {@link Symbols}) and the bottom of the
+ * stacktrace is a trace (see {@link Traces}). Snappy hardly gets that smaller, and it is a JNI call per throw.
+ * The batches that the readers post are json, thousands of records, and those compress well.
+ * <p>
+ * Virtual threads never compress, JNI would pin their carrier. The symbols and trace records are never compressed
+ * either. Compare the choices with the CompressionBenchmark in the benchmark module.
+ */
+public enum Compression {
+    /**
+     * nothing is compressed, not the records and not the batches
+     */
+    NONE,
+    /**
+     * every record is compressed with snappy, by the thread that throws (default)
+     */
+    RECORD,
+    /**
+     * the records are written uncompressed, the reader gzips the batches it posts. Nothing is compressed on the
+     * throwing thread, the ringbuffer fills up faster
+     */
+    BATCH,
+    /**
+     * every record is compressed with raw deflate, using a dictionary of what is typical for exceptions (see
+     * {@link RecordDictionary}). Better for small records than snappy, but slower
+     */
+    DICTIONARY;
+
+    static Compression fromProperty(String value) {
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            // read while the ExceptionLogger is initialized, by the first throw, so not an error
+            System.err.println("--->Exceptional: unknown exceptional.compression " + value + ", using record");
+            return RECORD;
+        }
+    }
+
+    static Compression fromSystemProperties() {
+        return fromProperty(System.getProperty("exceptional.compression", "record"));
+    }
+
+    /**
+     * @return true if the thread that throws compresses the record
+     */
+    boolean perRecord() {
+        return this == RECORD || this == DICTIONARY;
+    }
+
+    /**
+     * @return true if the reader gzips the batches it posts
+     */
+    boolean batches() {
+        return this != NONE;
+    }
+}
@@ -1,22 +1,231 @@
 package com.github.shautvast.exceptional;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import org.xerial.snappy.Snappy;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
+/**
+ * Sends the full stacktrace of a throwable only the first time it is seen, and once per aggregation window
+ * after that. In between, throws are counted and sent as repeat records every flush interval.
+ * <p>
+ * System properties:
+ * <ul>
+ *     <li>exceptional.aggregation.size: max number of distinct stacktraces that are counted (default 4096,
+ *     0 sends every throw in full)</li>
+ *     <li>exceptional.aggregation.window: millis between two full payloads of the same stacktrace (default 60000)</li>
+ *     <li>exceptional.aggregation.flush: millis between two repeat records of the same stacktrace (default 1000)</li>
+ *     <li>exceptional.stacktrace: full (default) sends the stacktrace, site sends the id of the throw site and
+ *     its callers, walked with a StackWalker, no StackTraceElement[] for the whole stack</li>
+ *     <li>exceptional.stacktrace.depth: the max number of callers with site (default 8)</li>
+ *     <li>exceptional.storm: throws per second above which they are only counted, until the storm is over, see
+ *     {@link ExceptionStorm} (default 10000, 0 is off). The counts are sent every exceptional.storm.summary millis
+ *     (default 1000)</li>
+ * </ul>
+ * What is logged goes to an {@link ExceptionSink}: the ringbuffer for the rust lib, or JFR.
+ * <p>
+ * On a virtual thread, logging doesn't pin the carrier: no JNI (the record is not compressed) and no monitors,
+ * and the reusable buffers come from a {@link StripedPool} instead of a ThreadLocal. The guard against logging the
+ * throws of the logging itself is a ScopedValue there, a ThreadLocal would give every virtual thread a map of its own.
+ * <p>
+ * Throws, encode and compress times are counted in {@link AgentMetrics}.
+ */
 @SuppressWarnings("unused") // this code is called from the instrumented code
 public class ExceptionLogger {
-    private final static ObjectMapper objectMapper = new ObjectMapper();
-    private final static CircularBufferWriter bufferWriter = new CircularBufferWriter();
+    // first, so that it is there when a (JDK) class that is instrumented throws while this class is initialized
+    private final static ThreadLocal<Boolean> logging = new ThreadLocal<>();
+    private final static ScopedValue<Boolean> virtualLogging = ScopedValue.newInstance();
+
+    static {
+        logging.set(Boolean.TRUE); // not logged: the fields below are not there yet
+    }
+
+    private final static ExceptionSink sink = ExceptionSink.fromSystemProperties();
+    private final static AggregationCache aggregationCache = createAggregationCache();
+    private final static ExceptionStorm storm = createStorm();
+    private final static String LOGGER = ExceptionLogger.class.getName();
+    private final static int callerDepth = "site".equals(System.getProperty("exceptional.stacktrace"))
+            ? Math.max(1, Integer.getInteger("exceptional.stacktrace.depth", 8)) : 0;
+    private final static StackWalker walker = StackWalker.getInstance();
+    private final static ThrowableEncoder.Limits limits = ThrowableEncoder.Limits.fromSystemProperties();
+    // encoder, callers and compressor are reused, so that logging is garbage free
+    private final static ThreadLocal<Staging> stagings = ThreadLocal.withInitial(Staging::new);
+    // virtual threads borrow them from a pool instead, see StripedPool
+    private final static StripedPool<Staging> virtualStagings =
+            new StripedPool<>(4 * Runtime.getRuntime().availableProcessors(), Staging::new);
+
+    static {
+        logging.remove();
+    }
 
     public static void log(Throwable throwable) {
+        log(throwable, -1);
+    }
+
+    /**
+     * Called from the instrumented code, with the id of the throw site, see ThrowSites
+     */
+    public static void log(Throwable throwable, int site) {
+        if (Thread.currentThread().isVirtual()) {
+            if (virtualStagings != null && !virtualLogging.isBound()) { // null while this class is initialized
+                ScopedValue.where(virtualLogging, Boolean.TRUE).run(() -> log(throwable, site, true));
+            }
+            return;
+        }
+        if (logging.get() != null) {
+            return; // thrown (and caught) by instrumented code that is called from here
+        }
+        logging.set(Boolean.TRUE);
+        try {
+            log(throwable, site, false);
+        } finally {
+            logging.remove();
+        }
+    }
+
+    private static void log(Throwable throwable, int site, boolean virtual) {
         try {
-            // use json for now because of ease of integration
-            // would compression be useful?? use snappy?
             if (throwable != null) {
-                bufferWriter.put(Snappy.compress(objectMapper.writeValueAsBytes(throwable)));
+                if (storm != null && storm.counted(throwable, site)) {
+                    AgentMetrics.counted.increment();
+                    return;
+                }
+                Staging staging = virtual ? virtualStagings.acquire() : stagings.get();
+                try {
+                    ThrowSites.Site throwSite = callerDepth > 0 && site >= 0 ? ThrowSites.lookup(site) : null;
+                    if (throwSite != null) {
+                        logAtSite(throwable, throwSite, staging);
+                    } else {
+                        logWithStackTrace(throwable, site, staging);
+                    }
+                } finally {
+                    if (virtual) {
+                        virtualStagings.release(staging);
+                    }
+                }
             }
         } catch (Throwable e) {
             e.printStackTrace(System.err);
         }
     }
+
+    private static void logWithStackTrace(Throwable throwable, int site, Staging staging) throws IOException {
+        // getStackTrace returns a copy, get it once for both fingerprint and encoder
+        StackTraceElement[] stackTrace = throwable.getStackTrace();
+        long fingerprint = Fingerprint.of(throwable, stackTrace);
+        AgentMetrics.logged.increment();
+        if (aggregationCache == null || aggregationCache.record(fingerprint, System.nanoTime())) {
+            sink.log(throwable, site >= 0 ? ThrowSites.lookup(site) : null, stackTrace, fingerprint, staging);
+        } else {
+            AgentMetrics.aggregated.increment();
+        }
+    }
+
+    // no StackTraceElement[] for the whole stack, only the callers of the site, up to the configured depth
+    private static void logAtSite(Throwable throwable, ThrowSites.Site site, Staging staging) throws IOException {
+        int count = walker.walk(staging);
+        long fingerprint = Fingerprint.of(throwable, site.id, staging.callers, count);
+        AgentMetrics.logged.increment();
+        if (aggregationCache == null || aggregationCache.record(fingerprint, System.nanoTime())) {
+            sink.log(throwable, site, count, fingerprint, staging);
+        } else {
+            AgentMetrics.aggregated.increment();
+        }
+    }
+
+    /**
+     * Throws on the calling thread are not logged from now on. For the agent's own threads, whose exceptions
+     * would be logged by themselves.
+     */
+    static void ignoreCurrentThread() {
+        logging.set(Boolean.TRUE);
+    }
+
+    /**
+     * Called before log, at throw sites that are sampled or rate limited, see ThrowSites
+     */
+    public static boolean shouldLog(int site) {
+        return ThrowSites.shouldLog(site);
+    }
+
+    private static void logRepeat(long fingerprint, long count) {
+        try {
+            sink.repeated(fingerprint, count, stagings.get());
+        } catch (Throwable e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    private static void logSummary(String className, int site, long count, long millis) {
+        try {
+            sink.summary(className, site >= 0 ? ThrowSites.lookup(site) : null, count, millis, stagings.get());
+        } catch (Throwable e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    // what a log call needs, and the function that collects the callers for a StackWalker
+    static final class Staging implements Function<Stream<StackWalker.StackFrame>, Integer> {
+        final ThrowableEncoder encoder = new ThrowableEncoder(sink.symbols(), sink.traces(), limits);
+        final StackWalker.StackFrame[] callers = new StackWalker.StackFrame[callerDepth];
+        final MultiProducerCircularByteBuffer.Reservation reservation = new MultiProducerCircularByteBuffer.Reservation();
+        // for -Dexceptional.compression=dictionary, created by the first record of the thread
+        RecordDictionary.Compressor compressor;
+
+        @Override
+        public Integer apply(Stream<StackWalker.StackFrame> frames) {
+            Iterator<StackWalker.StackFrame> iterator = frames
+                    .dropWhile(frame -> frame.getClassName().equals(LOGGER))
+                    .skip(1) // the method with the throw site
+                    .limit(callers.length)
+                    .iterator();
+            int count = 0;
+            while (iterator.hasNext()) {
+                callers[count++] = iterator.next();
+            }
+            return count;
+        }
+    }
+
+    private static AggregationCache createAggregationCache() {
+        int size = Integer.getInteger("exceptional.aggregation.size", 4096);
+        if (size <= 0) {
+            return null;
+        }
+        long window = Long.getLong("exceptional.aggregation.window", 60_000);
+        long flushInterval = Long.getLong("exceptional.aggregation.flush", 1_000);
+        var cache = new AggregationCache(size, TimeUnit.MILLISECONDS.toNanos(window));
+
+        ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "exceptional-aggregation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(() -> cache.flush(System.nanoTime(), ExceptionLogger::logRepeat),
+                flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        return cache;
+    }
+
+    private static ExceptionStorm createStorm() {
+        ExceptionStorm storm = ExceptionStorm.fromSystemProperties();
+        if (storm == null) {
+            return null;
+        }
+        long summaryMillis = Long.getLong("exceptional.storm.summary", 1_000);
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "exceptional-storm");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(() -> {
+            ExceptionStorm.Transition transition = storm.tick(System.nanoTime(), summaryMillis, ExceptionLogger::logSummary);
+            if (transition != null) {
+                AgentMetrics.stormChanged(transition, storm.rate());
+            }
+        }, storm.tickMillis(), storm.tickMillis(), TimeUnit.MILLISECONDS);
+        return AgentMetrics.watch(storm);
+    }
 }
@@ -0,0 +1,223 @@
+package com.github.shautvast.exceptional;
+
+import java.lang.ref.WeakReference;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * What exceptions cost, per site. Opt-in with -Dexceptional.profile=true, the transformer then also instruments
+ * the entry of every catch block (a handler with a catch type in the exception table, not finally blocks), and the
+ * call to the native fillInStackTrace in java.lang.Throwable. Throwable is loaded before the agent, so that last one
+ * needs -Dexceptional.retransform=true (the default), without it the fill times are not there.
+ * <p>
+ * A throw is paired with the catch of the same instance on the same thread. Per throw site and per catch site it
+ * counts the throws and catches, how many frames were unwound in between, the time from throw to catch, and for
+ * throw sites the time spent in fillInStackTrace for the exception. All in lock-free {@link Log2Histogram}s.
+ * Catches of exceptions that were not thrown by an instrumented athrow (a NullPointerException from the JVM, or a
+ * throw in a class that is not included) are counted as unmatched. The exception that was filled or thrown last is
+ * only weakly referenced, one that is never thrown or caught doesn't stay in memory with everything it refers to.
+ * <p>
+ * The sites with the most throws or catches are printed to System.err every -Dexceptional.profile.report
+ * milliseconds (default 60000, 0 for only at exit). Not cheap: every throw and catch walks the stack to count the
+ * frames. For finding exceptions used as control flow, not for always-on production use.
+ */
+public class ExceptionProfiler {
+
+    private static final boolean enabled = Boolean.getBoolean("exceptional.profile");
+    private static final int TOP = 20;
+    // no ThreadLocal.withInitial: a lambda at the first probe would run instrumented catch blocks, and recurse
+    private static final ThreadLocal<State> states = new ThreadLocal<>();
+    private static final StackWalker walker = StackWalker.getInstance();
+    private static final AtomicReferenceFieldUpdater<ThrowSites.Site, SiteProfile> PROFILE =
+            AtomicReferenceFieldUpdater.newUpdater(ThrowSites.Site.class, SiteProfile.class, "profile");
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Prints the report periodically and at exit, if profiling is enabled. Also makes sure this class is
+     * initialized before any of the probes are injected.
+     */
+    static void startReporting() {
+        if (!enabled) {
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.print(report(TOP)), "exceptional-profile-exit"));
+        long interval = Long.getLong("exceptional.profile.report", 60_000);
+        if (interval > 0) {
+            Thread reporter = new Thread(() -> {
+                try {
+                    while (true) {
+                        Thread.sleep(interval);
+                        System.err.print(report(TOP));
+                    }
+                } catch (InterruptedException e) {
+                    // done
+                }
+            }, "exceptional-profile");
+            reporter.setDaemon(true);
+            reporter.start();
+        }
+    }
+
+    /**
+     * Called from the instrumented code, right before an athrow
+     */
+    public static void thrown(Throwable throwable, int siteId) {
+        State state = state();
+        ThrowSites.Site site = ThrowSites.lookup(siteId);
+        if (state.busy || site == null) {
+            return;
+        }
+        state.busy = true;
+        try {
+            SiteProfile profile = profile(site);
+            profile.events.increment();
+            if (state.filled != null && state.filled.refersTo(throwable)) {
+                profile.fill.record(state.fillNanos); // only for the first throw, not for a rethrow
+                state.filled = null;
+            }
+            state.pending = new WeakReference<>(throwable);
+            state.pendingSite = site;
+            state.depth = depth();
+            state.thrownAt = System.nanoTime();
+        } finally {
+            state.busy = false;
+        }
+    }
+
+    /**
+     * Called from the instrumented code, at the start of a catch block
+     */
+    public static void caught(Throwable throwable, int siteId) {
+        long now = System.nanoTime();
+        State state = state();
+        ThrowSites.Site site = ThrowSites.lookup(siteId);
+        if (state.busy || site == null) {
+            return;
+        }
+        state.busy = true;
+        try {
+            SiteProfile profile = profile(site);
+            profile.events.increment();
+            if (state.pending != null && state.pending.refersTo(throwable)) {
+                long nanos = now - state.thrownAt;
+                int unwound = Math.max(0, state.depth - depth());
+                profile.caught(unwound, nanos);
+                profile(state.pendingSite).caught(unwound, nanos);
+                state.pending = null; // a rethrow is a new throw
+                state.pendingSite = null;
+            } else {
+                profile.unmatched.increment();
+            }
+        } finally {
+            state.busy = false;
+        }
+    }
+
+    /**
+     * Called from java.lang.Throwable, before the native fillInStackTrace
+     */
+    public static void fillStart() {
+        State state = state();
+        if (!state.busy) {
+            state.fillStart = System.nanoTime();
+        }
+    }
+
+    /**
+     * Called from java.lang.Throwable, after the native fillInStackTrace
+     */
+    public static void fillEnd(Throwable throwable) {
+        State state = state();
+        if (!state.busy) {
+            state.fillNanos = System.nanoTime() - state.fillStart;
+            state.filled = new WeakReference<>(throwable);
+        }
+    }
+
+    /**
+     * @return the sites with the most throws or catches, one per line, with a header
+     */
+    static String report(int top) {
+        List<ThrowSites.Site> sites = ThrowSites.sites().stream()
+                .filter(site -> site.profile != null)
+                .sorted(Comparator.comparingLong((ThrowSites.Site site) -> site.profile.events.sum()).reversed())
+                .limit(top)
+                .toList();
+        var report = new StringBuilder("--->Exceptional profile, top " + top + " sites\n");
+        report.append(String.format("%10s %10s %10s %15s %15s %15s  %s%n",
+                "count", "caught", "unmatched", "frames p50/p99", "catch us p50/99", "fill us p50/99", "site"));
+        for (ThrowSites.Site site : sites) {
+            SiteProfile profile = site.profile;
+            report.append(String.format("%10d %10d %10d %15s %15s %15s  %s%n",
+                    profile.events.sum(), profile.frames.count(), profile.unmatched.sum(),
+                    percentiles(profile.frames, 1), percentiles(profile.nanos, 1000),
+                    site.handler ? "" : percentiles(profile.fill, 1000), site));
+        }
+        return report.toString();
+    }
+
+    private static String percentiles(Log2Histogram histogram, long unit) {
+        if (histogram.count() == 0) {
+            return "-";
+        }
+        return histogram.percentile(0.5) / unit + "/" + histogram.percentile(0.99) / unit;
+    }
+
+    private static SiteProfile profile(ThrowSites.Site site) {
+        SiteProfile profile = site.profile;
+        if (profile == null) {
+            PROFILE.compareAndSet(site, null, new SiteProfile());
+            profile = site.profile;
+        }
+        return profile;
+    }
+
+    private static int depth() {
+        return walker.walk(Stream::count).intValue();
+    }
+
+    private static State state() {
+        State state = states.get();
+        if (state == null) {
+            state = new State();
+            states.set(state);
+        }
+        return state;
+    }
+
+    /**
+     * The numbers for one site
+     */
+    static final class SiteProfile {
+        // throws at a throw site, catches at a catch site
+        final LongAdder events = new LongAdder();
+        // catches of an exception that was not thrown at an instrumented site
+        final LongAdder unmatched = new LongAdder();
+        final Log2Histogram frames = new Log2Histogram();
+        final Log2Histogram nanos = new Log2Histogram();
+        final Log2Histogram fill = new Log2Histogram();
+
+        void caught(int unwound, long nanos) {
+            frames.record(unwound);
+            this.nanos.record(nanos);
+        }
+    }
+
+    // the throw that is on its way to a catch block, per thread
+    private static final class State {
+        boolean busy; // the probes run JDK code that may be instrumented too
+        long fillStart;
+        long fillNanos;
+        WeakReference<Throwable> filled;
+        WeakReference<Throwable> pending;
+        ThrowSites.Site pendingSite;
+        int depth;
+        long thrownAt;
+    }
+}
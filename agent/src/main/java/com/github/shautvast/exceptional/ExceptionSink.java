@@ -0,0 +1,97 @@
+package com.github.shautvast.exceptional;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Where the ExceptionLogger sends the throws it logs. Chosen with -Dexceptional.sink:
+ * <ul>
+ *     <li>ring: encoded records in the ringbuffer, for the rust lib (-Dagentlib) or for a reader of the
+ *     ringbuffer file (-Dexceptional.buffer.file), see {@link RingBufferSink}</li>
+ *     <li>jfr: Java Flight Recorder events, no native library at all, see {@link JfrSink}</li>
+ *     <li>http: the ringbuffer, read in java and sent to the api in batches, see {@link HttpBatchSender}</li>
+ * </ul>
+ * The default is ring when there is an agentlib or a buffer file, jfr otherwise.
+ * <p>
+ * Aggregation happens before the sink: a sink gets a throw in full, or the number of times it was repeated, or in an
+ * exception storm, the number of throws per class and site.
+ * Sinks are called from the throwing thread, possibly a virtual one, so they must not block or pin it.
+ */
+interface ExceptionSink extends AutoCloseable {
+
+    /**
+     * A throw with its full stacktrace (-Dexceptional.stacktrace=full)
+     *
+     * @param site    null if the throw is not at an instrumented site
+     * @param staging the reusable buffers of the calling thread
+     */
+    void log(Throwable throwable, ThrowSites.Site site, StackTraceElement[] stackTrace, long fingerprint,
+             ExceptionLogger.Staging staging) throws IOException;
+
+    /**
+     * A throw at a site, with the first count callers in staging.callers (-Dexceptional.stacktrace=site)
+     */
+    void log(Throwable throwable, ThrowSites.Site site, int count, long fingerprint,
+             ExceptionLogger.Staging staging) throws IOException;
+
+    /**
+     * The throw with this fingerprint happened count more times, since it was logged or repeated
+     */
+    void repeated(long fingerprint, long count, ExceptionLogger.Staging staging) throws IOException;
+
+    /**
+     * During an exception storm (see ExceptionStorm): count throws of this class at this site in the last millis,
+     * that were only counted
+     *
+     * @param className null for the throws that were not counted apart
+     * @param site      null if unknown
+     */
+    void summary(String className, ThrowSites.Site site, long count, long millis, ExceptionLogger.Staging staging)
+            throws IOException;
+
+    /**
+     * The symbol table for the encoders of the logging threads, null if the sink doesn't encode, or symbols are off
+     */
+    default Symbols symbols() {
+        return null;
+    }
+
+    /**
+     * The shared stacktrace bottoms for the encoders of the logging threads, null if the sink doesn't encode, or
+     * sharing is off
+     */
+    default Traces traces() {
+        return null;
+    }
+
+    @Override
+    default void close() {
+    }
+
+    /**
+     * From -Dexceptional.sink. It is created while the ExceptionLogger is initialized, by the first throw, so an
+     * unknown sink is not an error (that would replace the exception of the application), it is the default sink.
+     */
+    static ExceptionSink fromSystemProperties() {
+        String sink = System.getProperty("exceptional.sink");
+        if (sink != null && !List.of("ring", "jfr", "http").contains(sink)) {
+            System.err.println("--->Exceptional: unknown exceptional.sink " + sink + ", use ring, jfr or http");
+            sink = null;
+        }
+        if (sink == null) {
+            boolean hasReader = System.getProperty("agentlib") != null || System.getProperty("exceptional.buffer.file") != null;
+            if (!hasReader) {
+                System.err.println("--->Exceptional: no -Dagentlib or -Dexceptional.buffer.file, logging to JFR");
+            }
+            sink = hasReader ? "ring" : "jfr";
+        }
+        return switch (sink) {
+            case "ring" -> new RingBufferSink(new CircularBufferWriter());
+            case "http" -> {
+                var writer = new CircularBufferWriter(CircularBufferWriter.createMemory(), false);
+                yield new RingBufferSink(writer, HttpBatchSender.fromSystemProperties(writer.buffer()));
+            }
+            default -> new JfrSink(); // jfr
+        };
+    }
+}
@@ -0,0 +1,229 @@
+package com.github.shautvast.exceptional;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Detects an exception storm: when a dependency is down, every request throws, and encoding and sending all of
+ * that makes things worse. Above -Dexceptional.storm throws per second (default 10000, 0 is off) the ExceptionLogger
+ * degrades to counting: no stacktrace, no fingerprint, no record, only a counter per exception class and throw site.
+ * Every -Dexceptional.storm.summary millis (default 1000) the counts are sent as summary records, see
+ * {@link ThrowableEncoder}.
+ * <p>
+ * The rate is the number of throws in a sliding window of -Dexceptional.storm.window millis (default 1000), in
+ * {@link #BUCKETS} buckets. A throw only increments the current bucket, a LongAdder, so the throwing threads don't
+ * contend on one cache line. A single thread calls {@link #tick} every window / BUCKETS: it sums the window, decides,
+ * and moves on to the next bucket.
+ * <p>
+ * With hysteresis, so that it doesn't flap: it recovers when the rate is below -Dexceptional.storm.recovery
+ * (default 0.5) times the threshold, for -Dexceptional.storm.cooldown millis (default 5000) in a row.
+ * <p>
+ * At most -Dexceptional.storm.counters (default 1024) classes and sites are counted apart, throws beyond that are
+ * counted together, in a summary without class and site. The counters are cleared when the storm is over.
+ * A throw that races with that may not be counted.
+ */
+class ExceptionStorm {
+
+    static final int BUCKETS = 10;
+    private static final int PROBES = 8;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final long enterCount;
+    private final long exitCount;
+    private final int cooldownTicks;
+    private final long windowMillis;
+    private final AtomicReferenceArray<Counter> counters;
+    private final int mask;
+    private final LongAdder others = new LongAdder();
+    private volatile int current;
+    private volatile boolean degraded;
+    private volatile long rate;
+    // only used by the ticking thread
+    private int calmTicks;
+    private long summaryStart;
+
+    /**
+     * @param threshold      throws per second that start a storm
+     * @param recovery       the fraction of the threshold that it must stay under to recover
+     * @param windowMillis   the period over which the rate is measured
+     * @param cooldownMillis how long the rate must stay under the recovery rate
+     * @param maxCounters    the number of classes and sites that are counted apart (about)
+     */
+    ExceptionStorm(long threshold, double recovery, long windowMillis, long cooldownMillis, int maxCounters) {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+        this.windowMillis = Math.max(BUCKETS, windowMillis);
+        this.enterCount = Math.max(1, threshold * this.windowMillis / 1000);
+        this.exitCount = (long) (enterCount * Math.min(1, Math.max(0, recovery)));
+        this.cooldownTicks = (int) Math.max(1, cooldownMillis / tickMillis());
+        int capacity = Integer.highestOneBit(Math.max(1, maxCounters) * 2 - 1) << 1;
+        this.counters = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * @return null if it is switched off
+     */
+    static ExceptionStorm fromSystemProperties() {
+        long threshold = Long.getLong("exceptional.storm", 10_000);
+        if (threshold <= 0) {
+            return null;
+        }
+        return new ExceptionStorm(threshold,
+                recovery(System.getProperty("exceptional.storm.recovery")),
+                Long.getLong("exceptional.storm.window", 1000),
+                Long.getLong("exceptional.storm.cooldown", 5000),
+                Integer.getInteger("exceptional.storm.counters", 1024));
+    }
+
+    // like Long.getLong, a bad value is the default: it is read while the ExceptionLogger is initialized, by a throw
+    static double recovery(String value) {
+        if (value != null) {
+            try {
+                double recovery = Double.parseDouble(value);
+                if (Double.isFinite(recovery)) {
+                    return recovery;
+                }
+            } catch (NumberFormatException e) {
+                // below
+            }
+            System.err.println("--->Exceptional: exceptional.storm.recovery " + value + " is not a number, using 0.5");
+        }
+        return 0.5;
+    }
+
+    /**
+     * Counts a throw, on the throwing thread
+     *
+     * @param site the id of the throw site, -1 if unknown
+     * @return true if it is a storm and the throw was only counted, false if it must be logged
+     */
+    boolean counted(Throwable throwable, int site) {
+        buckets[current].increment();
+        if (!degraded) {
+            return false;
+        }
+        count(throwable.getClass().getName(), site); // getName is cached by the Class
+        return true;
+    }
+
+    private void count(String className, int site) {
+        int index = className.hashCode() * 31 + site;
+        for (int i = 0; i < PROBES; i++) {
+            int slot = (index + i) & mask;
+            Counter counter = counters.get(slot);
+            if (counter == null) {
+                counter = new Counter(className, site);
+                if (!counters.compareAndSet(slot, null, counter)) {
+                    counter = counters.get(slot);
+                }
+            }
+            if (counter != null && counter.site == site && counter.className.equals(className)) {
+                counter.count.increment();
+                return;
+            }
+        }
+        others.increment();
+    }
+
+    /**
+     * Sums the window and starts the next bucket, and sends the summaries when it is time. From a single thread,
+     * every {@link #tickMillis()}.
+     *
+     * @param now           System.nanoTime()
+     * @param summaryMillis the time between summaries
+     * @return the transition, null if there is none
+     */
+    Transition tick(long now, long summaryMillis, Summaries summaries) {
+        long total = 0;
+        for (LongAdder bucket : buckets) {
+            total += bucket.sum();
+        }
+        int next = (current + 1) % BUCKETS;
+        buckets[next].reset();
+        current = next;
+        rate = total * 1000 / windowMillis;
+
+        if (!degraded) {
+            if (total >= enterCount) {
+                degraded = true;
+                calmTicks = 0;
+                summaryStart = now;
+                return Transition.DEGRADED;
+            }
+            return null;
+        }
+        if (now - summaryStart >= summaryMillis * 1_000_000) {
+            summarize(now, summaries);
+        }
+        calmTicks = total < exitCount ? calmTicks + 1 : 0;
+        if (calmTicks < cooldownTicks) {
+            return null;
+        }
+        degraded = false;
+        summarize(now, summaries); // the throws that were counted since the last summary
+        for (int slot = 0; slot <= mask; slot++) {
+            counters.set(slot, null);
+        }
+        return Transition.RECOVERED;
+    }
+
+    private void summarize(long now, Summaries summaries) {
+        long millis = (now - summaryStart) / 1_000_000;
+        summaryStart = now;
+        for (int slot = 0; slot <= mask; slot++) {
+            Counter counter = counters.get(slot);
+            if (counter != null) {
+                long count = counter.count.sumThenReset();
+                if (count > 0) {
+                    summaries.summary(counter.className, counter.site, count, millis);
+                }
+            }
+        }
+        long count = others.sumThenReset();
+        if (count > 0) {
+            summaries.summary(null, -1, count, millis);
+        }
+    }
+
+    long tickMillis() {
+        return windowMillis / BUCKETS;
+    }
+
+    boolean isDegraded() {
+        return degraded;
+    }
+
+    /**
+     * @return the throws per second in the last window, as of the last tick
+     */
+    long rate() {
+        return rate;
+    }
+
+    enum Transition {
+        DEGRADED, RECOVERED
+    }
+
+    @FunctionalInterface
+    interface Summaries {
+        /**
+         * @param className null for the throws that were not counted apart
+         * @param site      -1 if unknown
+         * @param millis    the period in which they were counted
+         */
+        void summary(String className, int site, long count, long millis);
+    }
+
+    private static final class Counter {
+        final String className;
+        final int site;
+        final LongAdder count = new LongAdder();
+
+        Counter(String className, int site) {
+            this.className = className;
+            this.site = site;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.github.shautvast.exceptional;
+
+/**
+ * A stable 64-bit hash of a stacktrace: the type of the throwable plus class, method and line of every frame.
+ * Or, without a stacktrace, of the type, the throw site and its callers.
+ * The message is left out on purpose, it often contains ids or values that differ for every throw.
+ * A fingerprint is never 0, so that 0 can mean 'no fingerprint'.
+ * <p>
+ * Only String.hashCode is used for the strings, which is cached inside the String, so this does not allocate.
+ */
+public final class Fingerprint {
+
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private Fingerprint() {
+    }
+
+    public static long of(Throwable throwable, StackTraceElement[] stackTrace) {
+        long hash = mix(0, throwable.getClass().getName().hashCode());
+        for (StackTraceElement element : stackTrace) {
+            hash = mix(hash, element.getClassName().hashCode());
+            hash = mix(hash, element.getMethodName().hashCode());
+            hash = mix(hash, element.getLineNumber());
+        }
+        hash = finish(hash);
+        return hash == 0 ? 1 : hash;
+    }
+
+    public static long of(Throwable throwable, int site, StackWalker.StackFrame[] callers, int count) {
+        long hash = mix(mix(0, throwable.getClass().getName().hashCode()), site);
+        for (int i = 0; i < count; i++) {
+            StackWalker.StackFrame frame = callers[i];
+            hash = mix(hash, frame.getClassName().hashCode());
+            hash = mix(hash, frame.getMethodName().hashCode());
+            hash = mix(hash, frame.getLineNumber());
+        }
+        hash = finish(hash);
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static long mix(long hash, int value) {
+        return (hash + value) * MULTIPLIER;
+    }
+
+    // murmur3 fmix64, spreads the bits so that the fingerprint can be used as a hash table index
+    private static long finish(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
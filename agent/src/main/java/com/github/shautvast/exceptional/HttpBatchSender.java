@@ -0,0 +1,416 @@
+package com.github.shautvast.exceptional;
+
+import com.github.shautvast.exceptional.ThrowableDecoder.*;
+import org.xerial.snappy.Snappy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.io.InputStream;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The reader of the ringbuffer in java, instead of the rust lib: no native library at all. Select it with
+ * -Dexceptional.sink=http.
+ * <p>
+ * One platform thread drains the ringbuffer, decodes the records and collects them into a batch, until there are
+ * exceptional.http.batch records (default 500), the json is exceptional.http.batch.bytes long (default 1 MB),
+ * or the first record has waited exceptional.http.linger millis (default 1000). The batch is gzipped once (unless
+ * -Dexceptional.compression=none, see {@link Compression}) and POSTed to exceptional.http.url (default http://localhost:3000/api/stacktraces/bulk) from a virtual thread,
+ * at most exceptional.http.concurrency (default 4) at a time; when they are all busy the drainer waits, and the
+ * ringbuffer fills up (see OverflowPolicy).
+ * <p>
+ * The body is {"stacktraces":[...],"repeats":[...],"summaries":[...]}, with the same json per record as the rust lib posts
+ * one by one. A batch that fails (connection error, 5xx, 408 or 429) is retried exceptional.http.retries times
+ * (default 3), with exponential backoff. If it still fails, it is spilled to exceptional.http.spill.dir, when
+ * that is set, up to exceptional.http.spill.size megabytes (default 64), and sent again after the next batch that
+ * does get through, also by a next JVM. Otherwise it is dropped. Batches that are rejected (other 4xx) are dropped.
+ * <p>
+ * The url must be the bulk endpoint of the api, older versions of the api don't have it. A 404 is not retried, the
+ * batch is spilled (or dropped) like a failed one, so it gets through once the api is upgraded.
+ */
+class HttpBatchSender implements AutoCloseable {
+
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long RETRY_BACKOFF_MILLIS = 100;
+    private static final String SPILL_SUFFIX = ".json.gz";
+
+    private final MultiProducerCircularByteBuffer buffer;
+    private final URI uri;
+    private final int batchSize;
+    private final int batchBytes = Integer.getInteger("exceptional.http.batch.bytes", 1 << 20);
+    private final long lingerNanos;
+    private final int retries;
+    private final Path spillDir;
+    private final long spillBytes = Long.getLong("exceptional.http.spill.size", 64) * 1024 * 1024;
+    private final int concurrency = Math.max(1, Integer.getInteger("exceptional.http.concurrency", 4));
+    private final Semaphore inFlight = new Semaphore(concurrency);
+    private final ToIntFunction<byte[]> post;
+    // the throw sites, symbols and traces, by id, from the site, symbols and trace records, only used by the drainer
+    private final Map<Integer, SiteRecord> sites = new HashMap<>();
+    private final Map<Integer, String> symbols = new HashMap<>();
+    private final Map<Integer, List<Frame>> traces = new HashMap<>();
+    // for the DEFLATED records, only used by the drainer
+    private final Inflater inflater = new Inflater(true);
+    private final AtomicBoolean resending = new AtomicBoolean();
+    private final AtomicBoolean notFound = new AtomicBoolean(); // warned about it
+    private final AtomicLong spillSequence = new AtomicLong();
+    private final LongAdder records = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder spilled = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread drainer;
+    private volatile boolean active = true;
+
+    /**
+     * Starts draining the buffer
+     *
+     * @param spillDir null to drop the batches that can't be sent
+     */
+    HttpBatchSender(MultiProducerCircularByteBuffer buffer, URI uri, int batchSize, long lingerMillis, int retries,
+                    Path spillDir) {
+        this.buffer = buffer;
+        this.uri = uri;
+        this.batchSize = Math.max(1, batchSize);
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.retries = Math.max(0, retries);
+        this.spillDir = spillDir;
+        this.post = newPost(uri);
+        drainer = new Thread(this::drain, "exceptional-http");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    static HttpBatchSender fromSystemProperties(MultiProducerCircularByteBuffer buffer) {
+        String spillDir = System.getProperty("exceptional.http.spill.dir");
+        var sender = new HttpBatchSender(buffer,
+                URI.create(System.getProperty("exceptional.http.url", "http://localhost:3000/api/stacktraces/bulk")),
+                Integer.getInteger("exceptional.http.batch", 500),
+                Long.getLong("exceptional.http.linger", 1000),
+                Integer.getInteger("exceptional.http.retries", 3),
+                spillDir == null ? null : Path.of(spillDir));
+        // what is still in the buffer at exit
+        Runtime.getRuntime().addShutdownHook(new Thread(sender::close, "exceptional-http-exit"));
+        return sender;
+    }
+
+    // an HttpPost from a loader that can see java.net.http, also when this class is on the boot class path
+    private static ToIntFunction<byte[]> newPost(URI uri) {
+        String name = HttpBatchSender.class.getPackageName() + ".HttpPost";
+        var loader = new ClassLoader("exceptional-http", ClassLoader.getPlatformClassLoader()) {
+            // not the parent first, it would find the one on the boot class path
+            @Override
+            protected Class<?> loadClass(String className, boolean resolve) throws ClassNotFoundException {
+                if (!className.equals(name)) {
+                    return super.loadClass(className, resolve);
+                }
+                synchronized (getClassLoadingLock(className)) {
+                    Class<?> loaded = findLoadedClass(className);
+                    return loaded != null ? loaded : findClass(className);
+                }
+            }
+
+            @Override
+            protected Class<?> findClass(String className) throws ClassNotFoundException {
+                try (InputStream in = HttpBatchSender.class.getResourceAsStream("HttpPost.class")) {
+                    if (in == null) {
+                        throw new ClassNotFoundException(className);
+                    }
+                    byte[] bytes = in.readAllBytes();
+                    return defineClass(className, bytes, 0, bytes.length);
+                } catch (IOException e) {
+                    throw new ClassNotFoundException(className, e);
+                }
+            }
+        };
+        try {
+            var constructor = loader.loadClass(name).getDeclaredConstructor(URI.class);
+            constructor.setAccessible(true);
+            @SuppressWarnings("unchecked")
+            var post = (ToIntFunction<byte[]>) constructor.newInstance(uri);
+            return post;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not load the http client", e);
+        }
+    }
+
+    private void drain() {
+        ExceptionLogger.ignoreCurrentThread(); // or every failed send would be logged, and sent
+        var batch = new Batch();
+        while (active || buffer.hasPublished()) {
+            byte[] record = buffer.get();
+            if (record != null) {
+                add(batch, record, buffer.flags());
+                if (batch.count >= batchSize || batch.length() >= batchBytes) {
+                    send(batch);
+                    batch = new Batch();
+                }
+            } else if (batch.count > 0 && System.nanoTime() - batch.started >= lingerNanos) {
+                send(batch);
+                batch = new Batch();
+            } else {
+                LockSupport.parkNanos(POLL_NANOS);
+            }
+        }
+        if (batch.count > 0) {
+            send(batch);
+        }
+    }
+
+    private void add(Batch batch, byte[] record, int flags) {
+        try {
+            byte[] payload;
+            if ((flags & MultiProducerCircularByteBuffer.DEFLATED) != 0) {
+                payload = RecordDictionary.inflate(inflater, record);
+            } else if ((flags & MultiProducerCircularByteBuffer.UNCOMPRESSED) != 0) {
+                payload = record;
+            } else {
+                payload = Snappy.uncompress(record);
+            }
+            switch (ThrowableDecoder.decode(payload, symbols, traces)) {
+                case SiteRecord site -> sites.put(site.site(), site);
+                case SymbolsRecord definitions -> symbols.putAll(definitions.symbols());
+                case TraceRecord trace -> traces.put(trace.trace(), trace.frames());
+                case RepeatRecord repeat -> JsonRecords.append(batch.repeat(), repeat);
+                case ThrowableRecord throwable -> JsonRecords.append(batch.stacktrace(), throwable);
+                case SiteThrowableRecord throwable ->
+                        JsonRecords.append(batch.stacktrace(), throwable, sites.get(throwable.site()));
+                case SummaryRecord summary -> JsonRecords.append(batch.summary(), summary);
+            }
+            records.increment();
+        } catch (IOException | DataFormatException | RuntimeException e) {
+            System.err.println("Could not decode record: " + e);
+        }
+    }
+
+    // on the drainer thread, the sending on a virtual thread
+    private void send(Batch batch) {
+        byte[] body = (buffer.getReaderFlags() & MultiProducerCircularByteBuffer.PLAIN_BATCHES) != 0
+                ? batch.body().getBytes(UTF_8) : gzip(batch.body());
+        inFlight.acquireUninterruptibly();
+        Thread.ofVirtual().name("exceptional-http-send").start(() -> {
+            ExceptionLogger.ignoreCurrentThread();
+            try {
+                if (post(body)) {
+                    resendSpilled();
+                } else {
+                    spill(body);
+                }
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    /**
+     * @return false if it should be tried again later
+     */
+    private boolean post(byte[] body) {
+        for (int attempt = 0; ; attempt++) {
+            int status = post.applyAsInt(body); // 0 for a connection error
+            if (status >= 200 && status < 300) {
+                sent.increment();
+                return true;
+            }
+            if (status == 404) {
+                if (notFound.compareAndSet(false, true)) {
+                    System.err.println("--->Exceptional: " + uri + " not found, the http sink needs the bulk endpoint of the api");
+                }
+                return false;
+            }
+            if (status >= 300 && status < 500 && status != 408 && status != 429) {
+                System.err.println("Batch rejected by " + uri + ": " + status);
+                dropped.increment();
+                return true; // sending it again won't help
+            }
+            if (Thread.currentThread().isInterrupted() || attempt >= retries) {
+                return false;
+            }
+            retried.increment();
+            try {
+                Thread.sleep(RETRY_BACKOFF_MILLIS << attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    private void spill(byte[] body) {
+        if (spillDir == null) {
+            dropped.increment();
+            return;
+        }
+        try {
+            Files.createDirectories(spillDir);
+            if (spilledFiles().stream().mapToLong(HttpBatchSender::size).sum() + body.length > spillBytes) {
+                dropped.increment();
+                return;
+            }
+            // ordered by name, so the oldest are sent first
+            String name = String.format("batch-%013d-%06d", System.currentTimeMillis(), spillSequence.incrementAndGet() % 1_000_000);
+            Path temp = Files.createTempFile(spillDir, name, ".tmp");
+            Files.write(temp, body);
+            Files.move(temp, spillDir.resolve(name + SPILL_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+            spilled.increment();
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Could not spill a batch to " + spillDir + ": " + e);
+            dropped.increment();
+        }
+    }
+
+    // one at a time, the oldest first, until one fails again
+    private void resendSpilled() {
+        if (spillDir == null || !Files.isDirectory(spillDir) || !resending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            for (Path file : spilledFiles().stream().sorted().toList()) {
+                byte[] body;
+                try {
+                    body = Files.readAllBytes(file);
+                } catch (NoSuchFileException e) {
+                    continue; // sent by another JVM that shares the directory
+                }
+                if (!post(body)) {
+                    break;
+                }
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Could not resend the batches in " + spillDir + ": " + e);
+        } finally {
+            resending.set(false);
+        }
+    }
+
+    private List<Path> spilledFiles() throws IOException {
+        try (Stream<Path> files = Files.list(spillDir)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(SPILL_SUFFIX)).toList();
+        }
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0; // just sent
+        }
+    }
+
+    private static byte[] gzip(String json) {
+        var bytes = new ByteArrayOutputStream(json.length() / 4);
+        try (var out = new GZIPOutputStream(bytes)) {
+            out.write(json.getBytes(UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // not for a ByteArrayOutputStream
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the number of records that were read from the ringbuffer
+     */
+    public long getRecords() {
+        return records.sum();
+    }
+
+    /**
+     * @return the number of batches that were sent, including the ones that were spilled before
+     */
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getRetried() {
+        return retried.sum();
+    }
+
+    public long getSpilled() {
+        return spilled.sum();
+    }
+
+    /**
+     * @return the number of batches that were rejected, or could not be sent or spilled
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Sends what is in the buffer, and waits at most 5 seconds for the batches that are in flight
+     */
+    @Override
+    public void close() {
+        active = false;
+        try {
+            drainer.join(TimeUnit.SECONDS.toMillis(5));
+            if (inFlight.tryAcquire(concurrency, 5, TimeUnit.SECONDS)) {
+                inFlight.release(concurrency);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // the json of the records, in three arrays, the records are appended right away
+    private static final class Batch {
+        final StringBuilder json = new StringBuilder("{\"stacktraces\":[");
+        final StringBuilder repeats = new StringBuilder();
+        final StringBuilder summaries = new StringBuilder();
+        final long started = System.nanoTime();
+        int count;
+        private boolean hasStacktraces;
+
+        StringBuilder stacktrace() {
+            count++;
+            if (hasStacktraces) {
+                json.append(',');
+            }
+            hasStacktraces = true;
+            return json;
+        }
+
+        StringBuilder repeat() {
+            count++;
+            if (!repeats.isEmpty()) {
+                repeats.append(',');
+            }
+            return repeats;
+        }
+
+        StringBuilder summary() {
+            count++;
+            if (!summaries.isEmpty()) {
+                summaries.append(',');
+            }
+            return summaries;
+        }
+
+        int length() {
+            return json.length() + repeats.length() + summaries.length();
+        }
+
+        String body() {
+            return json + "],\"repeats\":[" + repeats + "],\"summaries\":[" + summaries + "]}";
+        }
+    }
+}
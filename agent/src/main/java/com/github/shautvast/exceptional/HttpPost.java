@@ -0,0 +1,57 @@
+package com.github.shautvast.exceptional;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.function.ToIntFunction;
+
+/**
+ * POSTs a batch, gzipped or not, with the JDK HttpClient, for the {@link HttpBatchSender}.
+ * <p>
+ * The agent's classes are on the boot class path (to instrument the JDK), and the boot loader can't see
+ * java.net.http, that module is defined to the platform loader. So this class is loaded again, by a loader under the
+ * platform loader (see HttpBatchSender.newPost), and used as a ToIntFunction. It must only use JDK classes.
+ */
+final class HttpPost implements ToIntFunction<byte[]> {
+
+    private final URI uri;
+    private final HttpClient client = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(5))
+            .executor(Executors.newVirtualThreadPerTaskExecutor())
+            .build();
+
+    HttpPost(URI uri) {
+        this.uri = uri;
+    }
+
+    /**
+     * @return the http status, 0 for a connection error or when interrupted (the interrupt flag is set again)
+     */
+    @Override
+    public int applyAsInt(byte[] body) {
+        var builder = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofSeconds(10))
+                .header("Content-Type", "application/json");
+        // a spilled batch may have been written with other settings, so look at the body itself
+        if (isGzip(body)) {
+            builder.header("Content-Encoding", "gzip");
+        }
+        var request = builder.POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+        try {
+            return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+        } catch (IOException e) {
+            return 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+    }
+
+    private static boolean isGzip(byte[] body) {
+        return body.length > 1 && body[0] == (byte) 0x1f && body[1] == (byte) 0x8b;
+    }
+}
@@ -0,0 +1,144 @@
+package com.github.shautvast.exceptional;
+
+import jdk.jfr.*;
+
+/**
+ * Every throw is a JFR event (com.github.shautvast.exceptional.Throw), with the exception, the throw site and
+ * the stacktrace that JFR records itself at the throw (its top frames are the agent's). Repeats are events too
+ * (com.github.shautvast.exceptional.Repeat), and so are the counts of an exception storm
+ * (com.github.shautvast.exceptional.Summary). No native library, no ringbuffer: the events go through the
+ * thread local buffers of JFR, and only when a recording is running, eg. -XX:StartFlightRecording.
+ * The fingerprint links a repeat to its throw.
+ */
+class JfrSink implements ExceptionSink {
+
+    @Override
+    public void log(Throwable throwable, ThrowSites.Site site, StackTraceElement[] stackTrace, long fingerprint,
+                    ExceptionLogger.Staging staging) {
+        var event = new ThrowEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+        event.set(throwable, fingerprint);
+        if (site != null) {
+            event.set(site);
+        } else if (stackTrace.length > 0) {
+            event.siteClass = stackTrace[0].getClassName();
+            event.siteMethod = stackTrace[0].getMethodName();
+            event.siteLine = stackTrace[0].getLineNumber();
+            event.siteOffset = -1;
+        }
+        event.commit();
+    }
+
+    @Override
+    public void log(Throwable throwable, ThrowSites.Site site, int count, long fingerprint,
+                    ExceptionLogger.Staging staging) {
+        var event = new ThrowEvent();
+        if (event.isEnabled()) {
+            event.set(throwable, fingerprint);
+            event.set(site);
+            event.commit();
+        }
+    }
+
+    @Override
+    public void repeated(long fingerprint, long count, ExceptionLogger.Staging staging) {
+        var event = new RepeatEvent();
+        if (event.isEnabled()) {
+            event.fingerprint = fingerprint;
+            event.count = count;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void summary(String className, ThrowSites.Site site, long count, long millis,
+                        ExceptionLogger.Staging staging) {
+        var event = new SummaryEvent();
+        if (event.isEnabled()) {
+            event.thrownClass = className;
+            event.count = count;
+            event.millis = millis;
+            if (site != null) {
+                event.siteClass = site.className;
+                event.siteMethod = site.methodName;
+                event.siteLine = site.lineNumber;
+            }
+            event.commit();
+        }
+    }
+
+    @Name("com.github.shautvast.exceptional.Throw")
+    @Label("Exception Thrown")
+    @Category("Exceptional")
+    @StackTrace
+    static class ThrowEvent extends Event {
+        @Label("Exception")
+        Class<?> thrownClass;
+        @Label("Message")
+        String message;
+        @Label("Cause")
+        Class<?> causeClass;
+        @Label("Fingerprint")
+        long fingerprint;
+        @Label("Site Class")
+        String siteClass;
+        @Label("Site Method")
+        String siteMethod;
+        @Label("Site Descriptor")
+        String siteDescriptor;
+        @Label("Site Line")
+        int siteLine;
+        @Label("Site Bytecode Offset")
+        int siteOffset;
+
+        void set(Throwable throwable, long fingerprint) {
+            thrownClass = throwable.getClass();
+            message = throwable.getMessage();
+            causeClass = throwable.getCause() == null ? null : throwable.getCause().getClass();
+            this.fingerprint = fingerprint;
+        }
+
+        void set(ThrowSites.Site site) {
+            siteClass = site.className;
+            siteMethod = site.methodName;
+            siteDescriptor = site.descriptor;
+            siteLine = site.lineNumber;
+            siteOffset = site.offset;
+        }
+    }
+
+    @Name("com.github.shautvast.exceptional.Repeat")
+    @Label("Exception Repeated")
+    @Description("The number of times a logged exception was thrown again, since it was logged or repeated")
+    @Category("Exceptional")
+    @StackTrace(false)
+    static class RepeatEvent extends Event {
+        @Label("Fingerprint")
+        long fingerprint;
+        @Label("Count")
+        long count;
+    }
+
+    @Name("com.github.shautvast.exceptional.Summary")
+    @Label("Exceptions Counted")
+    @Description("The number of throws of an exception class at a site during an exception storm, when they are only counted")
+    @Category("Exceptional")
+    @StackTrace(false)
+    static class SummaryEvent extends Event {
+        @Label("Exception")
+        String thrownClass;
+        @Label("Count")
+        long count;
+        @Label("Period")
+        @Timespan(Timespan.MILLISECONDS)
+        long millis;
+        @Label("Site Class")
+        String siteClass;
+        @Label("Site Method")
+        String siteMethod;
+        @Label("Site Line")
+        int siteLine;
+    }
+}
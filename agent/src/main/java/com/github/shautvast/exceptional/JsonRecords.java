@@ -0,0 +1,153 @@
+package com.github.shautvast.exceptional;
+
+import com.github.shautvast.exceptional.ThrowableDecoder.*;
+
+import java.util.List;
+
+/**
+ * The json for the api, from decoded records. The same json as the rust lib makes (see decoder.rs there):
+ * camelCase names, the fingerprint as 16 hex digits (json numbers lose precision beyond 2^53).
+ */
+class JsonRecords {
+
+    private JsonRecords() {
+    }
+
+    static void append(StringBuilder json, ThrowableRecord record) {
+        json.append("{\"fingerprint\":");
+        fingerprint(json, record.fingerprint());
+        json.append(',');
+        throwableFields(json, record.throwable());
+        json.append('}');
+    }
+
+    static void append(StringBuilder json, RepeatRecord record) {
+        json.append("{\"fingerprint\":");
+        fingerprint(json, record.fingerprint());
+        json.append(",\"count\":").append(record.count()).append('}');
+    }
+
+    /**
+     * @param site null if its site record was not seen
+     */
+    static void append(StringBuilder json, SiteThrowableRecord record, SiteRecord site) {
+        json.append("{\"fingerprint\":");
+        fingerprint(json, record.fingerprint());
+        json.append(",\"siteId\":").append(Integer.toUnsignedLong(record.site()));
+        json.append(",\"site\":");
+        if (site == null) {
+            json.append("null");
+        } else {
+            site(json, site);
+        }
+        field(json, "className", record.className());
+        field(json, "message", record.message());
+        json.append(",\"callers\":");
+        frames(json, record.callers());
+        json.append('}');
+    }
+
+    /**
+     * Goes in the summaries of a batch, they are not stacktraces
+     */
+    static void append(StringBuilder json, SummaryRecord record) {
+        json.append("{\"className\":");
+        string(json, record.className());
+        json.append(",\"count\":").append(record.count());
+        json.append(",\"millis\":").append(record.millis());
+        json.append(",\"site\":");
+        if (record.site() == null) {
+            json.append("null");
+        } else {
+            site(json, record.site());
+        }
+        json.append('}');
+    }
+
+    private static void site(StringBuilder json, SiteRecord site) {
+        json.append("{\"id\":").append(Integer.toUnsignedLong(site.site()));
+        field(json, "className", site.className());
+        field(json, "methodName", site.methodName());
+        field(json, "descriptor", site.descriptor());
+        json.append(",\"offset\":").append(site.offset());
+        json.append(",\"lineNumber\":").append(site.lineNumber()).append('}');
+    }
+
+    private static void throwable(StringBuilder json, DecodedThrowable throwable) {
+        json.append('{');
+        throwableFields(json, throwable);
+        json.append('}');
+    }
+
+    private static void throwableFields(StringBuilder json, DecodedThrowable throwable) {
+        json.append("\"className\":");
+        string(json, throwable.className());
+        field(json, "message", throwable.message());
+        json.append(",\"stackTrace\":");
+        frames(json, throwable.stackTrace());
+        json.append(",\"omittedFrames\":").append(throwable.omittedFrames());
+        json.append(",\"commonFrames\":").append(throwable.commonFrames());
+        json.append(",\"suppressed\":[");
+        for (int i = 0; i < throwable.suppressed().size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            throwable(json, throwable.suppressed().get(i));
+        }
+        json.append("],\"cause\":");
+        if (throwable.cause() == null) {
+            json.append("null");
+        } else {
+            throwable(json, throwable.cause());
+        }
+    }
+
+    private static void frames(StringBuilder json, List<Frame> frames) {
+        json.append('[');
+        for (int i = 0; i < frames.size(); i++) {
+            Frame frame = frames.get(i);
+            json.append(i > 0 ? ",{" : "{").append("\"className\":");
+            string(json, frame.className());
+            field(json, "methodName", frame.methodName());
+            field(json, "fileName", frame.fileName());
+            json.append(",\"lineNumber\":").append(frame.lineNumber()).append('}');
+        }
+        json.append(']');
+    }
+
+    private static void fingerprint(StringBuilder json, long fingerprint) {
+        String hex = Long.toHexString(fingerprint);
+        json.append('"').repeat('0', 16 - hex.length()).append(hex).append('"');
+    }
+
+    private static void field(StringBuilder json, String name, String value) {
+        json.append(",\"").append(name).append("\":");
+        string(json, value);
+    }
+
+    static void string(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+                }
+            }
+        }
+        json.append('"');
+    }
+}
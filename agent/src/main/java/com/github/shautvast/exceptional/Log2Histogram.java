@@ -0,0 +1,70 @@
+package com.github.shautvast.exceptional;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts values in power of two buckets: bucket i holds the values in [2^(i-1), 2^i), bucket 0 holds 0.
+ * Lock-free and striped (the buckets are LongAdders), so threads that record at the same time don't contend,
+ * and the size is fixed (65 buckets), whatever the values.
+ * Percentiles are the upper bound of the bucket they fall in, so at most a factor 2 too high.
+ */
+class Log2Histogram {
+
+    private static final int BUCKETS = 65;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    Log2Histogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param value negative values count as 0
+     */
+    void record(long value) {
+        long v = Math.max(0, value);
+        buckets[64 - Long.numberOfLeadingZeros(v)].increment();
+        count.increment();
+        sum.add(v);
+    }
+
+    long count() {
+        return count.sum();
+    }
+
+    long sum() {
+        return sum.sum();
+    }
+
+    /**
+     * @return the average, 0 if there are no values
+     */
+    long mean() {
+        long count = count();
+        return count == 0 ? 0 : sum() / count;
+    }
+
+    /**
+     * @param fraction eg. 0.99
+     * @return the upper bound of the bucket with the value at that fraction, 0 if there are no values
+     */
+    long percentile(double fraction) {
+        long count = count();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i].sum();
+            if (seen >= rank) {
+                return i == 0 ? 0 : i == 64 ? Long.MAX_VALUE : (1L << i) - 1;
+            }
+        }
+        return Long.MAX_VALUE; // the buckets were updated while counting
+    }
+}
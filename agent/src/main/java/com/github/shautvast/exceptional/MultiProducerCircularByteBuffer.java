@@ -0,0 +1,350 @@
+package com.github.shautvast.exceptional;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Circular buffer for variable sized byte arrays, for many concurrent writers and a single reader, in native memory.
+ * Writers first claim space by moving the write position with a CAS, then copy their bytes and finally publish
+ * the record by writing its length. So there are no locks, no queue and no thread hop: every thread writes directly
+ * into the memory that the (rust) reader sees.
+ * <p>
+ * Instead of copying a byte array with put, a writer can also {@link #reserve} space for a record of at most n bytes,
+ * serialize straight into it and then {@link #commit} it with the actual length, or {@link #abort} it. Until then the
+ * reader waits at the reservation, so it should be short.
+ * <p>
+ * Layout, all numbers big endian:
+ * <pre>
+ * [0, 4)                    magic 'EXCP'
+ * [4, 8)                    layout version
+ * [8, 16)                   capacity, so that the reader doesn't have to know it in advance
+ * [16, 20)                  reader flags, bit 0: {@link #PLAIN_BATCHES}, the reader posts its batches without gzip
+ * [64, 72)                  read position, only written by the reader
+ * [128, 136)                write position, claimed by the writers (each position on its own cache line)
+ * [192, 192 + capacity)     records, every record starts at a multiple of 8
+ *
+ * record := length:i32 flags:i32 payload:length bytes, padded to a multiple of 8
+ *      length > 0   a published record
+ *      length == 0  nothing there yet, or claimed but not yet published
+ *      length < 0   skip -length bytes: padding when the record did not fit before the end (continue at 0),
+ *                   the unused rest of a reservation, or an aborted one
+ *      flags        bit 0: {@link #UNCOMPRESSED}, the payload is not snappy compressed
+ *                   bit 1: {@link #DEFLATED}, the payload is raw deflate with the dictionary (see RecordDictionary)
+ * </pre>
+ * Positions only increase (except when a writer gives back the unused rest of the last reservation), the index in the
+ * buffer is position % capacity, so capacity must be a power of two.
+ * The reader sets the bytes of a record it has read to 0, before it moves the read position past it.
+ */
+public class MultiProducerCircularByteBuffer {
+
+    public static final int MAGIC = 0x45584350; // EXCP
+    // 2: strings can be symbols, 3: bounded and shared frames, see ThrowableEncoder, 4: deflated records, reader flags,
+    // 5: summary records, 6: records.dict trained on records with symbols
+    public static final int VERSION = 6;
+    public static final int METADATA_LENGTH = 192;
+    public static final int MAX_CAPACITY = 1 << 30;
+    public static final int UNCOMPRESSED = 1;
+    public static final int DEFLATED = 2;
+    public static final int PLAIN_BATCHES = 1;
+    static final int CAPACITY_INDEX = 8;
+    static final int READER_FLAGS_INDEX = 16;
+    static final int READ_POSITION_INDEX = 64;
+    static final int WRITE_POSITION_INDEX = 128;
+    static final int RECORD_HEADER_LENGTH = 8;
+    static final int ALIGNMENT = 8;
+
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final MemorySegment memory;
+    private final ByteBuffer data;
+    private final int capacity;
+    private final int mask;
+    private int flags; // of the last record that get returned
+
+    /**
+     * @param memory native memory, aligned to 8 bytes, of size {@link #METADATA_LENGTH} + capacity,
+     *               where capacity is a power of two, see {@link #segmentSize(long)}
+     */
+    public MultiProducerCircularByteBuffer(MemorySegment memory) {
+        this(memory, true);
+    }
+
+    private MultiProducerCircularByteBuffer(MemorySegment memory, boolean initialize) {
+        if (!memory.isNative() || memory.address() % ALIGNMENT != 0) {
+            // atomic access to a ByteBuffer is only supported for aligned native memory
+            throw new IllegalArgumentException("memory must be native and aligned to " + ALIGNMENT + " bytes");
+        }
+        long capacity = memory.byteSize() - METADATA_LENGTH;
+        if (capacity < 2 * ALIGNMENT || capacity > MAX_CAPACITY || Long.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity (memory size - " + METADATA_LENGTH + ") must be a power of two, but is " + capacity);
+        }
+        this.memory = memory;
+        this.data = memory.asByteBuffer();
+        this.capacity = (int) capacity;
+        this.mask = this.capacity - 1;
+
+        if (initialize) {
+            memory.fill((byte) 0);
+            data.putInt(0, MAGIC);
+            data.putInt(4, VERSION);
+            data.putLong(CAPACITY_INDEX, capacity);
+            VarHandle.releaseFence(); // the reader is not started before this returns, but just to be sure
+        } else if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION || data.getLong(CAPACITY_INDEX) != capacity) {
+            throw new IllegalArgumentException("not a ringbuffer of version " + VERSION + " with capacity " + capacity);
+        }
+    }
+
+    /**
+     * Uses a buffer that was created before, possibly by another process (see {@link RingBufferFileReader}),
+     * without clearing it.
+     */
+    public static MultiProducerCircularByteBuffer attach(MemorySegment memory) {
+        return new MultiProducerCircularByteBuffer(memory, false);
+    }
+
+    /**
+     * @return the size of the memory needed for a buffer with at least the requested capacity (rounded up to a
+     * power of two)
+     */
+    public static long segmentSize(long requestedCapacity) {
+        if (requestedCapacity <= 0 || requestedCapacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("capacity must be between 1 and " + MAX_CAPACITY + ", but is " + requestedCapacity);
+        }
+        long capacity = Math.max(2 * ALIGNMENT, Long.highestOneBit(requestedCapacity - 1) << 1);
+        return METADATA_LENGTH + capacity;
+    }
+
+    /**
+     * Writes the bytes as one record. Safe to call from any number of threads.
+     *
+     * @return false if there is not enough free space
+     */
+    public boolean put(byte[] bytes) {
+        return put(bytes, 0, bytes.length, 0);
+    }
+
+    /**
+     * Writes length bytes from offset as one record, with the flags in its header
+     *
+     * @return false if there is not enough free space
+     */
+    public boolean put(byte[] bytes, int offset, int length, int flags) {
+        if (length == 0) {
+            throw new IllegalArgumentException("empty record");
+        }
+        long position = claim(align(length + RECORD_HEADER_LENGTH));
+        if (position < 0) {
+            return false;
+        }
+        int index = index(position);
+        data.put(index + RECORD_HEADER_LENGTH, bytes, offset, length);
+        data.putInt(index + 4, flags);
+        INT.setRelease(data, index, length); // publish
+        return true;
+    }
+
+    /**
+     * Claims the space for a record of at most maxLength bytes, to be written in place, in
+     * {@link Reservation#segment()} from {@link Reservation#offset()}. Then either {@link #commit} or {@link #abort}
+     * it, the reader doesn't get past it before that. Safe to call from any number of threads.
+     *
+     * @param reservation is filled in, it can be reused after the commit or abort
+     * @return false if there is not enough free space
+     */
+    public boolean reserve(int maxLength, Reservation reservation) {
+        if (maxLength <= 0) {
+            throw new IllegalArgumentException("empty record");
+        }
+        int recordLength = align(maxLength + RECORD_HEADER_LENGTH);
+        long position = claim(recordLength);
+        if (position < 0) {
+            return false;
+        }
+        reservation.memory = memory;
+        reservation.position = position;
+        reservation.index = index(position);
+        reservation.recordLength = recordLength;
+        reservation.maxLength = maxLength;
+        return true;
+    }
+
+    /**
+     * Publishes the reserved record, with the first length bytes as its payload. When nobody reserved after it, the
+     * unused rest is given back, otherwise the reader skips it. Either way it is cleared first: whatever was written
+     * there (snappy writes past the compressed length) would be read as the header of the next record.
+     */
+    public void commit(Reservation reservation, int length, int flags) {
+        if (length <= 0 || length > reservation.maxLength) {
+            throw new IllegalArgumentException("length must be between 1 and " + reservation.maxLength + ", but is " + length);
+        }
+        int index = reservation.index;
+        int recordLength = align(length + RECORD_HEADER_LENGTH);
+        int unused = reservation.recordLength - recordLength;
+        if (unused > 0) {
+            memory.asSlice(index + RECORD_HEADER_LENGTH + length, reservation.maxLength - length).fill((byte) 0);
+            long end = reservation.position + reservation.recordLength;
+            if (!LONG.compareAndSet(data, WRITE_POSITION_INDEX, end, end - unused)) {
+                // published with the record
+                data.putInt(index + recordLength, -unused);
+            }
+        }
+        data.putInt(index + 4, flags);
+        INT.setRelease(data, index, length); // publish
+    }
+
+    /**
+     * Gives up the reserved record, the reader skips it
+     */
+    public void abort(Reservation reservation) {
+        INT.setRelease(data, reservation.index, -reservation.recordLength);
+    }
+
+    // moves the write position past recordLength bytes (and padding before them, if they don't fit before the end)
+    // returns the position of the record, or -1 if there is no space
+    private long claim(int recordLength) {
+        if (recordLength > capacity) {
+            return -1;
+        }
+        long writePosition;
+        int index;
+        int padding;
+        do {
+            long readPosition = (long) LONG.getVolatile(data, READ_POSITION_INDEX);
+            writePosition = (long) LONG.getVolatile(data, WRITE_POSITION_INDEX);
+            index = (int) (writePosition & mask);
+            int remainingUntilEnd = capacity - index;
+            padding = recordLength > remainingUntilEnd ? remainingUntilEnd : 0;
+            if (writePosition + padding + recordLength - readPosition > capacity) {
+                return -1;
+            }
+        } while (!LONG.compareAndSet(data, WRITE_POSITION_INDEX, writePosition, writePosition + padding + recordLength));
+
+        // the space is ours now
+        if (padding > 0) {
+            INT.setRelease(data, METADATA_LENGTH + index, -padding);
+        }
+        return writePosition + padding;
+    }
+
+    private int index(long position) {
+        return METADATA_LENGTH + (int) (position & mask);
+    }
+
+    /**
+     * @return true if there is a published record at the read position, ie. the reader has something to do
+     */
+    public boolean hasPublished() {
+        return (int) INT.getAcquire(data, METADATA_LENGTH + (int) (getReadPosition() & mask)) != 0;
+    }
+
+    /**
+     * The reader in java, for the HttpBatchSender, the RingBufferFileReader and the tests. The rust lib
+     * has its own, see rustlib module.
+     * Only one thread at a time may read.
+     *
+     * @return the next record, or null if there is none (or it is not yet published)
+     */
+    public byte[] get() {
+        long readPosition = getReadPosition();
+        while (true) {
+            int index = METADATA_LENGTH + (int) (readPosition & mask);
+            int length = (int) INT.getAcquire(data, index);
+            if (length == 0) {
+                return null;
+            }
+            if (length < 0) {
+                // padding until the end of the buffer, or the rest of a reservation
+                memory.asSlice(index, -length).fill((byte) 0);
+                readPosition -= length;
+                LONG.setRelease(data, READ_POSITION_INDEX, readPosition);
+                continue;
+            }
+            byte[] result = new byte[length];
+            data.get(index + RECORD_HEADER_LENGTH, result);
+            flags = data.getInt(index + 4);
+            int recordLength = align(length + RECORD_HEADER_LENGTH);
+            memory.asSlice(index, recordLength).fill((byte) 0);
+            LONG.setRelease(data, READ_POSITION_INDEX, readPosition + recordLength);
+            return result;
+        }
+    }
+
+    /**
+     * Settings for the reader, see {@link #PLAIN_BATCHES}. Before the first record is written.
+     */
+    public void setReaderFlags(int readerFlags) {
+        INT.setRelease(data, READER_FLAGS_INDEX, readerFlags);
+    }
+
+    public int getReaderFlags() {
+        return (int) INT.getAcquire(data, READER_FLAGS_INDEX);
+    }
+
+    /**
+     * @return the flags of the record that {@link #get()} returned last
+     */
+    public int flags() {
+        return flags;
+    }
+
+    /**
+     * @return the number of bytes that are claimed and not yet read, including headers and padding
+     */
+    public long size() {
+        return getWritePosition() - getReadPosition();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    long getReadPosition() {
+        return (long) LONG.getVolatile(data, READ_POSITION_INDEX);
+    }
+
+    long getWritePosition() {
+        return (long) LONG.getVolatile(data, WRITE_POSITION_INDEX);
+    }
+
+    static int align(int length) {
+        return (length + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    /**
+     * Space in the buffer for one record, see {@link #reserve}. Reusable, so that writing a record doesn't allocate.
+     * Not threadsafe.
+     */
+    public static final class Reservation {
+        private MemorySegment memory;
+        private long position;
+        private int index;
+        private int recordLength;
+        private int maxLength;
+
+        /**
+         * @return the memory of the buffer, the payload goes from {@link #offset()}
+         */
+        public MemorySegment segment() {
+            return memory;
+        }
+
+        public long offset() {
+            return index + RECORD_HEADER_LENGTH;
+        }
+
+        public int maxLength() {
+            return maxLength;
+        }
+
+        /**
+         * @return the payload as a segment of its own, of maxLength bytes
+         */
+        public MemorySegment slice() {
+            return memory.asSlice(offset(), maxLength);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.github.shautvast.exceptional;
+
+/**
+ * What a writer does when the ringbuffer is full, set with -Dexceptional.overflow=drop_newest|sample|block
+ * <p>
+ * There is no drop oldest: the space of the oldest records belongs to the (rust) reader, that may be reading them
+ * at that very moment, so a writer can't take it back.
+ */
+public enum OverflowPolicy {
+    /**
+     * the record that does not fit is dropped (default)
+     */
+    DROP_NEWEST,
+    /**
+     * when the buffer is more than 3/4 full, only 1 in exceptional.overflow.sample records is written,
+     * so that during a storm there is still a sample of what's going on, and some room for it
+     */
+    SAMPLE,
+    /**
+     * the writer waits, using the exceptional.overflow.backoff strategy, for at most
+     * exceptional.overflow.timeout micros, after that the record is dropped
+     */
+    BLOCK;
+
+    static OverflowPolicy fromProperty(String value) {
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            // read while the ExceptionLogger is initialized, by the first throw, so not an error
+            System.err.println("--->Exceptional: unknown exceptional.overflow " + value + ", using drop_newest");
+            return DROP_NEWEST;
+        }
+    }
+}
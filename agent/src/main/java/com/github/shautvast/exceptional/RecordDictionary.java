@@ -0,0 +1,99 @@
+package com.github.shautvast.exceptional;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The preset dictionary for -Dexceptional.compression=dictionary: raw deflate of a single record, that can refer
+ * to the bytes in records.dict as if they came right before it. Those are the strings that are typical for exceptions
+ * (java.base frames, common messages, exception class names), so even the first occurrence of a name in a record
+ * of a few hundred bytes compresses. Snappy can only refer back within the record itself.
+ * <p>
+ * records.dict is trained on encoded exceptions by the DictionaryTrainer in the benchmark module. The rust lib
+ * includes the same file, a record is only readable with the dictionary it was written with. So when it changes,
+ * so does the VERSION of the ringbuffer.
+ */
+final class RecordDictionary {
+
+    static final String RESOURCE = "records.dict";
+    // small records, the time goes to setting the dictionary, not to searching for matches
+    private static final int LEVEL = Deflater.BEST_SPEED;
+
+    private RecordDictionary() {
+    }
+
+    /**
+     * Uncompresses a record that was compressed with {@link Compressor}
+     */
+    static byte[] inflate(Inflater inflater, byte[] record) throws DataFormatException {
+        inflater.reset();
+        inflater.setDictionary(Holder.BYTES);
+        inflater.setInput(record);
+        var out = new ByteArrayOutputStream(record.length * 4);
+        byte[] chunk = new byte[Math.max(256, record.length * 4)];
+        while (!inflater.finished()) {
+            int length = inflater.inflate(chunk);
+            if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                throw new DataFormatException("truncated record");
+            }
+            out.write(chunk, 0, length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Compresses records from native memory into native memory. One per thread, it holds native zlib state.
+     */
+    static final class Compressor {
+        private final Deflater deflater = new Deflater(LEVEL, true);
+        private final ByteBuffer dictionary = ByteBuffer.allocateDirect(Holder.BYTES.length).put(Holder.BYTES);
+        // views on the memory of the last calls, the memory is the same for every record (until the encoder grows)
+        private MemorySegment from;
+        private ByteBuffer input;
+        private MemorySegment to;
+        private ByteBuffer output;
+
+        /**
+         * @return the compressed length, -1 if it needs more than maxLength bytes
+         */
+        int compress(MemorySegment source, int length, MemorySegment target, long offset, int maxLength) {
+            if (source != from) {
+                from = source;
+                input = source.asByteBuffer();
+            }
+            if (target != to) {
+                to = target;
+                output = target.asByteBuffer();
+            }
+            deflater.reset();
+            deflater.setDictionary(dictionary.clear());
+            deflater.setInput(input.clear().limit(length));
+            deflater.finish();
+            output.clear().limit((int) offset + maxLength).position((int) offset);
+            int compressed = deflater.deflate(output);
+            return deflater.finished() ? compressed : -1;
+        }
+    }
+
+    private static final class Holder {
+        static final byte[] BYTES = load();
+
+        private static byte[] load() {
+            try (InputStream in = RecordDictionary.class.getResourceAsStream(RESOURCE)) {
+                if (in == null) {
+                    throw new IllegalStateException(RESOURCE + " is missing");
+                }
+                return in.readAllBytes();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.github.shautvast.exceptional;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Reads the records from a ringbuffer file, written by a JVM that runs with -Dexceptional.buffer.file.
+ * The file has the same layout as the in-memory buffer (see MultiProducerCircularByteBuffer), so a collector
+ * in another process can drain it while the JVM is writing to it, or after it has crashed.
+ * <p>
+ * The reader side is provided, for reference and testability only.
+ * There must be only one reader per file.
+ */
+public class RingBufferFileReader implements AutoCloseable {
+
+    private final Arena arena = Arena.ofShared();
+    private final MultiProducerCircularByteBuffer buffer;
+
+    public RingBufferFileReader(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, READ, WRITE)) {
+            // the reader writes too: the read position, and it clears what it has read
+            buffer = MultiProducerCircularByteBuffer.attach(channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size(), arena));
+        } catch (IllegalArgumentException e) {
+            arena.close();
+            throw new IOException(file + " is not a ringbuffer file", e);
+        }
+    }
+
+    /**
+     * @return the next record, or null if there is none (yet)
+     */
+    public byte[] poll() {
+        return buffer.get();
+    }
+
+    /**
+     * @return the flags of the record that poll returned last, see MultiProducerCircularByteBuffer
+     */
+    public int flags() {
+        return buffer.flags();
+    }
+
+    /**
+     * Unmaps the file
+     */
+    @Override
+    public void close() {
+        arena.close();
+    }
+}
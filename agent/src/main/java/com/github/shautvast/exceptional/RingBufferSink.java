@@ -0,0 +1,183 @@
+package com.github.shautvast.exceptional;
+
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+
+/**
+ * Encodes the throws (see ThrowableEncoder), compresses them (see {@link Compression}) and writes them into the
+ * ringbuffer of a {@link CircularBufferWriter}. In site mode, the definition of a site is written once, before its first throw.
+ * Names that a record had inline get an id after it, see {@link Symbols}, and so does the bottom of its stacktrace,
+ * see {@link Traces}.
+ * <p>
+ * The encoder writes into native memory, and snappy (or deflate with the {@link RecordDictionary}) compresses that
+ * straight into space that is reserved in the ringbuffer, only the compressed length is committed.
+ * <p>
+ * Both are JNI, a virtual thread would pin its carrier. So virtual threads write the record uncompressed, the
+ * reader knows by the flag, and so does every thread when records are not compressed. That is a copy from the
+ * encoder. A record is always encoded before space is reserved for it: encoding calls application code (getMessage
+ * and the like), which may take long or park the thread, and the readers can't get past a reservation until it is
+ * committed.
+ */
+class RingBufferSink implements ExceptionSink {
+
+    private final CircularBufferWriter bufferWriter;
+    private final AutoCloseable reader;
+    private final Symbols symbols = Symbols.fromSystemProperties();
+    private final Traces traces = Traces.fromSystemProperties();
+    private final Compression compression = Compression.fromSystemProperties();
+
+    RingBufferSink(CircularBufferWriter bufferWriter) {
+        this(bufferWriter, null);
+    }
+
+    /**
+     * @param reader the reader of the ringbuffer in this JVM, that is closed with the sink, or null
+     */
+    RingBufferSink(CircularBufferWriter bufferWriter, AutoCloseable reader) {
+        this.bufferWriter = AgentMetrics.watch(bufferWriter);
+        this.reader = reader;
+        bufferWriter.buffer().setReaderFlags(compression.batches() ? 0 : MultiProducerCircularByteBuffer.PLAIN_BATCHES);
+    }
+
+    @Override
+    public void log(Throwable throwable, ThrowSites.Site site, StackTraceElement[] stackTrace, long fingerprint,
+                    ExceptionLogger.Staging staging) throws IOException {
+        long start = System.nanoTime();
+        int length = staging.encoder.encode(throwable, stackTrace, fingerprint);
+        AgentMetrics.encodeNanos.record(System.nanoTime() - start);
+        write(staging, length);
+        putNewSymbols(staging);
+        putNewTrace(staging);
+    }
+
+    @Override
+    public void log(Throwable throwable, ThrowSites.Site site, int count, long fingerprint,
+                    ExceptionLogger.Staging staging) throws IOException {
+        ThrowableEncoder encoder = staging.encoder;
+        if (!site.defined) {
+            // racy, two threads may both write it, that's harmless. Uncompressed, like the symbols
+            site.defined = copy(staging, encoder.encodeSite(site));
+        }
+        long start = System.nanoTime();
+        int length = encoder.encode(throwable, site, staging.callers, count, fingerprint);
+        AgentMetrics.encodeNanos.record(System.nanoTime() - start);
+        write(staging, length);
+        putNewSymbols(staging);
+    }
+
+    @Override
+    public void repeated(long fingerprint, long count, ExceptionLogger.Staging staging) throws IOException {
+        write(staging, staging.encoder.encodeRepeat(fingerprint, count));
+    }
+
+    @Override
+    public void summary(String className, ThrowSites.Site site, long count, long millis,
+                        ExceptionLogger.Staging staging) throws IOException {
+        write(staging, staging.encoder.encodeSummary(className, site, count, millis));
+    }
+
+    @Override
+    public Symbols symbols() {
+        return symbols;
+    }
+
+    @Override
+    public Traces traces() {
+        return traces;
+    }
+
+    // always uncompressed, so that the rust lib reads it in order, before it hands the next records to its senders
+    private void putNewSymbols(ExceptionLogger.Staging staging) {
+        int length = staging.encoder.encodeNewSymbols();
+        if (length > 0) {
+            staging.encoder.newSymbolsWritten(copy(staging, length));
+        }
+    }
+
+    // after the symbols, it can use them
+    private void putNewTrace(ExceptionLogger.Staging staging) {
+        int length = staging.encoder.encodeNewTrace();
+        if (length > 0) {
+            staging.encoder.newTraceWritten(copy(staging, length));
+        }
+    }
+
+    // writes the record that was just encoded
+    private boolean write(ExceptionLogger.Staging staging, int length) throws IOException {
+        if (!compression.perRecord() || Thread.currentThread().isVirtual()) {
+            return copy(staging, length);
+        }
+        return compression == Compression.DICTIONARY ? deflate(staging, length) : snappy(staging, length);
+    }
+
+    private boolean snappy(ExceptionLogger.Staging staging, int length) throws IOException {
+        var reservation = staging.reservation;
+        if (!bufferWriter.reserve(Snappy.maxCompressedLength(length), reservation)) {
+            return false;
+        }
+        long start = System.nanoTime();
+        int compressedLength;
+        try {
+            compressedLength = (int) Snappy.rawCompress(staging.encoder.buffer().address(), length,
+                    reservation.segment().address() + reservation.offset());
+        } catch (IOException | RuntimeException e) {
+            bufferWriter.abort(reservation);
+            throw e;
+        }
+        AgentMetrics.compressNanos.record(System.nanoTime() - start);
+        bufferWriter.commit(reservation, compressedLength, 0);
+        return true;
+    }
+
+    private boolean deflate(ExceptionLogger.Staging staging, int length) {
+        var reservation = staging.reservation;
+        // the dictionary makes it smaller, except for random bytes. Those are copied in as they are
+        if (!bufferWriter.reserve(length + (length >> 3) + 16, reservation)) {
+            return false;
+        }
+        if (staging.compressor == null) {
+            staging.compressor = new RecordDictionary.Compressor();
+        }
+        long start = System.nanoTime();
+        int compressedLength;
+        try {
+            compressedLength = staging.compressor.compress(staging.encoder.buffer(), length,
+                    reservation.segment(), reservation.offset(), reservation.maxLength());
+        } catch (RuntimeException e) {
+            bufferWriter.abort(reservation);
+            throw e;
+        }
+        AgentMetrics.compressNanos.record(System.nanoTime() - start);
+        if (compressedLength < 0) {
+            bufferWriter.abort(reservation);
+            return copy(staging, length);
+        }
+        bufferWriter.commit(reservation, compressedLength, MultiProducerCircularByteBuffer.DEFLATED);
+        return true;
+    }
+
+    // the record is in the buffer of the encoder
+    private boolean copy(ExceptionLogger.Staging staging, int length) {
+        var reservation = staging.reservation;
+        if (!bufferWriter.reserve(length, reservation)) {
+            return false;
+        }
+        MemorySegment.copy(staging.encoder.buffer(), 0, reservation.segment(), reservation.offset(), length);
+        bufferWriter.commit(reservation, length, MultiProducerCircularByteBuffer.UNCOMPRESSED);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        bufferWriter.close();
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (Exception e) {
+                System.err.println("Could not close " + reader + ": " + e);
+            }
+        }
+    }
+}
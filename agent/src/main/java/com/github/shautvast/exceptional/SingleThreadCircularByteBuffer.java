@@ -122,6 +122,10 @@ public class SingleThreadCircularByteBuffer {
      */
     public byte[] get() {
         int readIndex = getReadIndex();
+        if (readIndex == capacity) {
+            // previous record ended exactly at the end of the buffer (the rust reader does the same)
+            readIndex = 0;
+        }
         int writeIndex = getWriteIndex();
         if (readIndex == writeIndex) {
             return null;
@@ -0,0 +1,53 @@
+package com.github.shautvast.exceptional;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * A small number of reusable objects for all threads, where a ThreadLocal would not do: a million virtual threads
+ * would each get their own, and per carrier state is not safe, because a virtual thread can be unmounted while it
+ * uses it. A thread takes an object out of a slot (starting at a slot that depends on its id), and puts it back
+ * when it is done, so it's never shared. No locks, when all slots are empty a new object is created,
+ * and when all are full on release, it's left to the garbage collector.
+ */
+class StripedPool<T> {
+
+    private final AtomicReferenceArray<T> slots;
+    private final Supplier<T> factory;
+    private final int mask;
+
+    /**
+     * @param size number of slots, rounded up to a power of two
+     */
+    StripedPool(int size, Supplier<T> factory) {
+        int capacity = Integer.highestOneBit(Math.max(1, size) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(Math.max(1, capacity));
+        this.factory = factory;
+        this.mask = slots.length() - 1;
+    }
+
+    T acquire() {
+        int start = start();
+        for (int i = 0; i <= mask; i++) {
+            T value = slots.getAndSet((start + i) & mask, null);
+            if (value != null) {
+                return value;
+            }
+        }
+        return factory.get();
+    }
+
+    void release(T value) {
+        int start = start();
+        for (int i = 0; i <= mask; i++) {
+            if (slots.compareAndSet((start + i) & mask, null, value)) {
+                return;
+            }
+        }
+    }
+
+    private static int start() {
+        long id = Thread.currentThread().threadId();
+        return (int) (id ^ (id >>> 32)) * 0x9E3779B9; // spread consecutive ids
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.shautvast.exceptional;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The strings that are written as an int id instead of their bytes: the class, method and file names in the
+ * stacktraces, which are the same in almost every record. One table per ringbuffer, owned by its {@link RingBufferSink}.
+ * <p>
+ * A string goes inline in the record until it has an id that is published. The first record that has a new
+ * string inline claims an id for it, and the sink writes a symbols record (see ThrowableEncoder) into the buffer
+ * after that record. Only when that is in, the id is published and other threads start to use it. So the reader,
+ * which reads in buffer order, always sees the definition before the first use. When the symbols record can't be
+ * written (buffer full), the claim is dropped and the next record that has the string tries again.
+ * <p>
+ * At most -Dexceptional.symbols (default 65536) strings get an id, 0 is no ids at all. The table never shrinks,
+ * the same set of classes keeps throwing.
+ */
+class Symbols {
+
+    private final ConcurrentHashMap<String, Symbol> symbols = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final int maxSize;
+
+    Symbols(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return null if symbols are switched off
+     */
+    static Symbols fromSystemProperties() {
+        int maxSize = Integer.getInteger("exceptional.symbols", 65536);
+        return maxSize > 0 ? new Symbols(maxSize) : null;
+    }
+
+    /**
+     * @return the id of the string, 0 if it doesn't have one yet (or never will)
+     */
+    int id(String value) {
+        Symbol symbol = symbols.get(value);
+        return symbol != null && symbol.published ? symbol.id : 0;
+    }
+
+    /**
+     * @return a new id for the string, to be published or abandoned by the caller. null if it already has one,
+     * or another thread claimed it first, or the table is full
+     */
+    Symbol claim(String value) {
+        if (symbols.size() >= maxSize || symbols.containsKey(value)) {
+            return null;
+        }
+        var symbol = new Symbol(nextId.getAndIncrement(), value);
+        return symbols.putIfAbsent(value, symbol) == null ? symbol : null;
+    }
+
+    /**
+     * The definition is in the buffer, the id can be used
+     */
+    void publish(Symbol symbol) {
+        symbol.published = true;
+    }
+
+    /**
+     * The definition could not be written, the string goes inline until a next claim
+     */
+    void abandon(Symbol symbol) {
+        symbols.remove(symbol.value, symbol);
+    }
+
+    int size() {
+        return symbols.size();
+    }
+
+    static final class Symbol {
+        final int id;
+        final String value;
+        volatile boolean published;
+
+        Symbol(int id, String value) {
+            this.id = id;
+            this.value = value;
+        }
+    }
+}
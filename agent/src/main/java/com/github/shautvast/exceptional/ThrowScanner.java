@@ -0,0 +1,116 @@
+package com.github.shautvast.exceptional;
+
+import java.util.BitSet;
+
+/**
+ * Finds the methods that may contain an athrow, by walking the raw classfile bytes: no parsing of the
+ * constant pool strings, no objects per method. Much cheaper than building a ClassModel, so that classes without
+ * throws (the majority) can be left alone entirely.
+ * <p>
+ * The code of a method is searched for the athrow opcode byte, without decoding the instructions. So a method
+ * may be reported when the byte is an operand of another instruction (the transformer then finds nothing to do),
+ * but a method with an athrow is never missed.
+ * For the profiler, methods with an exception table (a catch or a finally) are reported as well.
+ */
+class ThrowScanner {
+
+    private static final int ATHROW = 0xbf;
+
+    /**
+     * @return the indexes (in the order of the methods in the classfile) of the methods that may throw,
+     * empty if there are none
+     * @throws IllegalArgumentException when the bytes are not a classfile
+     */
+    static BitSet throwingMethods(byte[] b) {
+        return throwingMethods(b, false);
+    }
+
+    /**
+     * @param orCatching also the methods with a non-empty exception table, for the ExceptionProfiler
+     */
+    static BitSet throwingMethods(byte[] b, boolean orCatching) {
+        if (b.length < 10 || u4(b, 0) != 0xCAFEBABE) {
+            throw new IllegalArgumentException("not a classfile");
+        }
+        try {
+            int constantPoolCount = u2(b, 8);
+            int[] offsets = new int[constantPoolCount];
+            int p = 10;
+            for (int i = 1; i < constantPoolCount; i++) {
+                offsets[i] = p;
+                int tag = b[p] & 0xff;
+                p += switch (tag) {
+                    case 1 -> 3 + u2(b, p + 1); // utf8
+                    case 3, 4 -> 5; // int, float
+                    case 5, 6 -> { // long, double take two entries
+                        i++;
+                        yield 9;
+                    }
+                    case 7, 8, 16, 19, 20 -> 3; // class, string, methodtype, module, package
+                    case 9, 10, 11, 12, 17, 18 -> 5; // refs, nameandtype, (invoke)dynamic
+                    case 15 -> 4; // methodhandle
+                    default -> throw new IllegalArgumentException("unknown constant pool tag " + tag);
+                };
+            }
+            p += 6; // access flags, this class, super class
+            p += 2 + 2 * u2(b, p); // interfaces
+
+            int fieldCount = u2(b, p);
+            p += 2;
+            for (int i = 0; i < fieldCount; i++) {
+                p = skipAttributes(b, p + 6);
+            }
+
+            BitSet throwing = new BitSet();
+            int methodCount = u2(b, p);
+            p += 2;
+            for (int i = 0; i < methodCount; i++) {
+                int attributeCount = u2(b, p + 6);
+                p += 8;
+                for (int a = 0; a < attributeCount; a++) {
+                    int length = u4(b, p + 2);
+                    if (isCode(b, offsets[u2(b, p)])) {
+                        int codeLength = u4(b, p + 10);
+                        int codeStart = p + 14;
+                        if (orCatching && u2(b, codeStart + codeLength) > 0) { // exception_table_length
+                            throwing.set(i);
+                        }
+                        for (int c = codeStart; c < codeStart + codeLength; c++) {
+                            if ((b[c] & 0xff) == ATHROW) {
+                                throwing.set(i);
+                                break;
+                            }
+                        }
+                    }
+                    p += 6 + length;
+                }
+            }
+            return throwing;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("truncated classfile", e);
+        }
+    }
+
+    private static int skipAttributes(byte[] b, int p) {
+        int attributeCount = u2(b, p);
+        p += 2;
+        for (int a = 0; a < attributeCount; a++) {
+            p += 6 + u4(b, p + 2);
+        }
+        return p;
+    }
+
+    // the utf8 constant "Code"
+    private static boolean isCode(byte[] b, int offset) {
+        return b[offset] == 1 && u2(b, offset + 1) == 4
+                && b[offset + 3] == 'C' && b[offset + 4] == 'o' && b[offset + 5] == 'd' && b[offset + 6] == 'e';
+    }
+
+    private static int u2(byte[] b, int p) {
+        return ((b[p] & 0xff) << 8) | (b[p + 1] & 0xff);
+    }
+
+    private static int u4(byte[] b, int p) {
+        return ((b[p] & 0xff) << 24) | ((b[p + 1] & 0xff) << 16) | ((b[p + 2] & 0xff) << 8) | (b[p + 3] & 0xff);
+    }
+}
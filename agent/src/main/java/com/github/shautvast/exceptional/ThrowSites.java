@@ -0,0 +1,265 @@
+package com.github.shautvast.exceptional;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every athrow that the agent instruments is a throw site, with its own sampling rate and rate limit.
+ * The site gets an id at transform time, which the injected code passes to the ExceptionLogger. For sites that are
+ * sampled or rate limited, it asks {@link #shouldLog(int)} first, so that a throw that is not sampled costs a
+ * random number and a table lookup, no allocation and no stacktrace.
+ * <p>
+ * System properties:
+ * <ul>
+ *     <li>exceptional.sampling: log 1 in N throws at every site (default 1: all of them)</li>
+ *     <li>exceptional.sampling.&lt;package or class&gt;: 1 in N for the sites in that package or class, the longest
+ *     matching name wins, eg. -Dexceptional.sampling.com.acme.parser=1000</li>
+ *     <li>exceptional.ratelimit: max number of throws logged per site per second (default 0: no limit)</li>
+ * </ul>
+ * Sites for which neither applies are not checked at all.
+ * The registry also holds the site definitions (class, method, descriptor, offset and line), so that a record
+ * only has to carry the id, see ThrowableEncoder.
+ */
+public class ThrowSites {
+
+    private static final String SAMPLING = "exceptional.sampling";
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static final int defaultSampling = Math.max(1, Integer.getInteger(SAMPLING, 1));
+    private static final NavigableMap<String, Integer> samplingPerName = readSamplingPerName(System.getProperties());
+    private static final int rateLimit = Math.max(0, Integer.getInteger("exceptional.ratelimit", 0));
+
+    private static volatile Site[] table = new Site[1024]; // open addressing on the id, never more than half full
+    private static int siteCount;
+
+    /**
+     * Called at transform time. The id is a hash of class, method, descriptor and offset, so that it is the same
+     * in every JVM and transformed classes can be cached; a collision moves it to the next free id.
+     *
+     * @param className internal name, eg. com/acme/Parser
+     * @param offset    bytecode offset of the athrow in the original method
+     * @param lineNumber 0 if unknown
+     */
+    static Site register(String className, String methodName, String descriptor, int offset, int lineNumber) {
+        return register(className, methodName, descriptor, offset, lineNumber, false);
+    }
+
+    /**
+     * Same as {@link #register(String, String, String, int, int)}, for the entry of a catch block
+     * (see ExceptionProfiler), at the offset of the handler
+     */
+    static Site registerHandler(String className, String methodName, String descriptor, int offset, int lineNumber) {
+        return register(className, methodName, descriptor, offset, lineNumber, true);
+    }
+
+    private static Site register(String className, String methodName, String descriptor, int offset, int lineNumber,
+                                 boolean handler) {
+        String name = className.replace('/', '.');
+        synchronized (ThrowSites.class) {
+            int id = ((handler ? "catch " : "") + name + '.' + methodName + descriptor + '@' + offset).hashCode()
+                    & Integer.MAX_VALUE;
+            for (Site existing = lookup(id); existing != null; existing = lookup(id)) {
+                if (existing.isAt(name, methodName, descriptor, offset, handler)) {
+                    return existing; // retransformed
+                }
+                id = (id + 1) & Integer.MAX_VALUE;
+            }
+            Site site = site(id, className, methodName, descriptor, offset, lineNumber, handler);
+            add(site);
+            return site;
+        }
+    }
+
+    /**
+     * A site with the sampling that is configured for it, not registered yet
+     */
+    static Site site(int id, String className, String methodName, String descriptor, int offset, int lineNumber,
+                     boolean handler) {
+        String name = className.replace('/', '.');
+        int sampleEvery = handler ? 1 : sampling(name, samplingPerName, defaultSampling);
+        return new Site(id, name, methodName, descriptor, offset, lineNumber, sampleEvery, sampleEvery > 1 || rateLimit > 0,
+                handler);
+    }
+
+    /**
+     * Registers the sites of a class that was transformed in an earlier run (see TransformCache), with the ids
+     * that are in its bytecode.
+     *
+     * @return false if one of the ids is taken by another site in this JVM, then none are registered
+     */
+    static boolean define(List<Site> sites) {
+        synchronized (ThrowSites.class) {
+            for (Site site : sites) {
+                Site existing = lookup(site.id);
+                if (existing != null
+                        && !existing.isAt(site.className, site.methodName, site.descriptor, site.offset, site.handler)) {
+                    return false;
+                }
+            }
+            for (Site site : sites) {
+                if (lookup(site.id) == null) {
+                    add(site);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return the site, or null if there is none with this id
+     */
+    static Site lookup(int id) {
+        Site[] current = table;
+        int mask = current.length - 1;
+        for (int i = id & mask; ; i = (i + 1) & mask) {
+            Site site = current[i];
+            if (site == null || site.id == id) {
+                return site;
+            }
+        }
+    }
+
+    /**
+     * @return all registered sites, throw and catch sites, in no particular order
+     */
+    static List<Site> sites() {
+        return Arrays.stream(table).filter(Objects::nonNull).toList();
+    }
+
+    // holding the lock
+    private static void add(Site site) {
+        Site[] current = table;
+        if (++siteCount * 2 > current.length) {
+            Site[] larger = new Site[current.length * 2];
+            for (Site s : current) {
+                if (s != null) {
+                    insert(larger, s);
+                }
+            }
+            current = larger;
+        }
+        insert(current, site);
+        table = current; // publish the new site (and the array, if it has grown)
+    }
+
+    private static void insert(Site[] table, Site site) {
+        int mask = table.length - 1;
+        int i = site.id & mask;
+        while (table[i] != null) {
+            i = (i + 1) & mask;
+        }
+        table[i] = site;
+    }
+
+    /**
+     * Called from the instrumented code before every athrow, if the site is checked
+     */
+    static boolean shouldLog(int id) {
+        Site site = lookup(id);
+        if (site == null) {
+            return true;
+        }
+        if (site.sampleEvery > 1 && ThreadLocalRandom.current().nextInt(site.sampleEvery) != 0) {
+            return false;
+        }
+        if (rateLimit > 0) {
+            // racy on purpose: under contention a few more or less get through, but there is no CAS on the hot path
+            long now = System.nanoTime();
+            if (now - site.windowStart > SECOND) {
+                site.windowStart = now;
+                site.count = 0;
+            }
+            return site.count++ < rateLimit;
+        }
+        return true;
+    }
+
+    /**
+     * @return the configuration that decides which sites are checked, for the TransformCache key
+     */
+    static String configuration() {
+        return defaultSampling + " " + samplingPerName + " " + rateLimit;
+    }
+
+    static int sampling(String name, NavigableMap<String, Integer> samplingPerName, int defaultSampling) {
+        // the longest configured name that is a prefix of this one, on a package or class boundary
+        // prefixes sort before the name itself, and longer ones after shorter ones
+        for (Map.Entry<String, Integer> entry = samplingPerName.floorEntry(name); entry != null;
+             entry = samplingPerName.lowerEntry(entry.getKey())) {
+            String prefix = entry.getKey();
+            if (name.startsWith(prefix) && (name.length() == prefix.length() || name.charAt(prefix.length()) == '.'
+                    || name.charAt(prefix.length()) == '$')) {
+                return entry.getValue();
+            }
+            if (prefix.isEmpty() || prefix.charAt(0) != name.charAt(0)) {
+                break;
+            }
+        }
+        return defaultSampling;
+    }
+
+    static NavigableMap<String, Integer> readSamplingPerName(Properties properties) {
+        var perName = new TreeMap<String, Integer>();
+        properties.forEach((key, value) -> {
+            if (key instanceof String property && property.startsWith(SAMPLING + ".")) {
+                try {
+                    perName.put(property.substring(SAMPLING.length() + 1), Math.max(1, Integer.parseInt(value.toString().trim())));
+                } catch (NumberFormatException e) {
+                    System.err.println("Ignoring " + property + ", not a number: " + value);
+                }
+            }
+        });
+        return perName;
+    }
+
+    static final class Site {
+        final int id;
+        final String className;
+        final String methodName;
+        final String descriptor;
+        final int offset;
+        final int lineNumber;
+        final int sampleEvery;
+        // the instrumented code calls shouldLog first
+        final boolean checked;
+        // a catch block, not an athrow
+        final boolean handler;
+        // the site definition record was written, see ExceptionLogger
+        volatile boolean defined;
+        // created on first use, see ExceptionProfiler
+        volatile ExceptionProfiler.SiteProfile profile;
+        long windowStart = System.nanoTime();
+        int count;
+
+        Site(int id, String className, String methodName, String descriptor, int offset, int lineNumber,
+             int sampleEvery, boolean checked, boolean handler) {
+            this.id = id;
+            this.className = className;
+            this.methodName = methodName;
+            this.descriptor = descriptor;
+            this.offset = offset;
+            this.lineNumber = lineNumber;
+            this.sampleEvery = sampleEvery;
+            this.checked = checked;
+            this.handler = handler;
+        }
+
+        boolean isAt(String className, String methodName, String descriptor, int offset, boolean handler) {
+            return this.offset == offset && this.handler == handler && this.className.equals(className)
+                    && this.methodName.equals(methodName) && this.descriptor.equals(descriptor);
+        }
+
+        @Override
+        public String toString() {
+            return className + "." + methodName + (lineNumber > 0 ? ":" + lineNumber : "") + " @" + offset
+                    + (handler ? " (catch)" : "");
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.github.shautvast.exceptional;
+
+import java.io.*;
+import java.lang.classfile.*;
+import java.lang.classfile.instruction.ExceptionCatch;
+import java.lang.classfile.instruction.InvokeInstruction;
+import java.lang.classfile.instruction.LabelTarget;
+import java.lang.classfile.instruction.LineNumber;
+import java.lang.classfile.instruction.ThrowInstruction;
+import java.lang.constant.ClassDesc;
+import java.lang.constant.MethodTypeDesc;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.reflect.AccessFlag;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Every throw opcode will be preceded by a call to our ExceptionLogger.
+ * <p>
+ * Only the methods that throw are rewritten, the others are copied as they are. Classes without throws, or that
+ * are not accepted by the {@link ClassFilter}, are not parsed at all: transform returns null (unchanged).
+ * Every athrow is a site in {@link ThrowSites}, the id is passed to the ExceptionLogger.
+ * With a {@link TransformCache}, a class that was transformed before (in an earlier run) is read from disk,
+ * together with its sites.
+ * <p>
+ * When disabled, it returns null for every class, so that retransforming puts back the original bytes.
+ * Classes loaded by a class loader that can't see the ExceptionLogger are left alone: the injected call would
+ * throw a NoClassDefFoundError instead of the exception. For the JDK classes the agent jar is on the boot class path.
+ * <p>
+ * With the {@link ExceptionProfiler} enabled, every athrow is also preceded by a call to ExceptionProfiler.thrown,
+ * every catch block starts with a call to ExceptionProfiler.caught (catch blocks are sites too), and the native
+ * fillInStackTrace in java.lang.Throwable is timed.
+ */
+public class ThrowTransformer implements ClassFileTransformer {
+
+    private static final ClassDesc EXCEPTIONLOGGER = ClassDesc.of(ExceptionLogger.class.getName());
+    private static final MethodTypeDesc LOG = MethodTypeDesc.ofDescriptor("(Ljava/lang/Throwable;I)V");
+    private static final MethodTypeDesc SHOULD_LOG = MethodTypeDesc.ofDescriptor("(I)Z");
+    private static final ClassDesc PROFILER = ClassDesc.of(ExceptionProfiler.class.getName());
+    private static final MethodTypeDesc FILL_START = MethodTypeDesc.ofDescriptor("()V");
+    private static final MethodTypeDesc FILL_END = MethodTypeDesc.ofDescriptor("(Ljava/lang/Throwable;)V");
+    private static final String THROWABLE = "java/lang/Throwable";
+    private static final ClassLoader AGENT_LOADER = ThrowTransformer.class.getClassLoader();
+    // classes loaded while transforming (by the ClassFile API for instance) are not transformed themselves
+    private static final ThreadLocal<Boolean> transforming = new ThreadLocal<>();
+
+    private final ClassFilter filter;
+    private final TransformCache cache;
+    private final Set<String> instrumented = ConcurrentHashMap.newKeySet();
+    private final boolean profile = ExceptionProfiler.isEnabled();
+    private volatile boolean enabled = true;
+
+    public ThrowTransformer(ClassFilter filter) {
+        this(filter, null);
+    }
+
+    /**
+     * @param cache may be null
+     */
+    public ThrowTransformer(ClassFilter filter, TransformCache cache) {
+        this.filter = filter;
+        this.cache = cache;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        if (!enabled) {
+            instrumented.remove(className); // retransformed back to the original
+            return null;
+        }
+        if (transforming.get() != null || !seesAgent(loader)) {
+            return null;
+        }
+        transforming.set(Boolean.TRUE);
+        try {
+            byte[] transformed = transform(className, classfileBuffer);
+            if (transformed != null) {
+                instrumented.add(className);
+            }
+            return transformed;
+        } finally {
+            transforming.remove();
+        }
+    }
+
+    /**
+     * @return the instrumented class, or null if there is nothing to instrument
+     */
+    public byte[] transform(String className, byte[] classfileBuffer) {
+        if (className == null) { // hidden classes have no name
+            return null;
+        }
+        boolean timeFill = profile && className.equals(THROWABLE); // whatever the filter says
+        if (!timeFill && !filter.accepts(className)) {
+            return null;
+        }
+        BitSet throwingMethods;
+        try {
+            throwingMethods = timeFill && !filter.accepts(className)
+                    ? new BitSet()
+                    : ThrowScanner.throwingMethods(classfileBuffer, profile);
+        } catch (IllegalArgumentException e) {
+            return null; // leave it to the JVM to complain about it
+        }
+        if (throwingMethods.isEmpty() && !timeFill) {
+            return null;
+        }
+        List<ThrowSites.Site> sites = new ArrayList<>();
+        if (cache == null) {
+            return injectExceptionLoggerBeforeThrow(className, classfileBuffer, throwingMethods, timeFill, sites);
+        }
+        String key = cache.key(className, classfileBuffer);
+        byte[] cached = cache.get(key);
+        if (cached != null) {
+            byte[] transformed = readCacheEntry(className, cached, sites);
+            if (transformed != null && ThrowSites.define(sites)) {
+                return transformed;
+            }
+            sites.clear(); // a site id is taken in this JVM, transform it again
+        }
+        byte[] transformed = injectExceptionLoggerBeforeThrow(className, classfileBuffer, throwingMethods, timeFill, sites);
+        cache.put(key, cacheEntry(sites, transformed));
+        return transformed;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return true if the class would be instrumented, if it throws
+     */
+    public boolean accepts(Class<?> type) {
+        return (filter.accepts(type.getName().replace('.', '/')) || profile && type == Throwable.class)
+                && seesAgent(type.getClassLoader());
+    }
+
+    public boolean isInstrumented(Class<?> type) {
+        return instrumented.contains(type.getName().replace('.', '/'));
+    }
+
+    // only by delegation to its parents, class loaders that do otherwise are not recognized
+    private static boolean seesAgent(ClassLoader loader) {
+        if (AGENT_LOADER == null) {
+            return true; // on the boot class path
+        }
+        for (ClassLoader parent = loader; parent != null; parent = parent.getParent()) {
+            if (parent == AGENT_LOADER) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the ids of the sites are in the bytecode, so the sites are stored with it:
+    // count (id method descriptor offset line handler)*
+    private static byte[] cacheEntry(List<ThrowSites.Site> sites, byte[] transformed) {
+        var bytes = new ByteArrayOutputStream(transformed.length + sites.size() * 32);
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeInt(sites.size());
+            for (ThrowSites.Site site : sites) {
+                out.writeInt(site.id);
+                out.writeUTF(site.methodName);
+                out.writeUTF(site.descriptor);
+                out.writeInt(site.offset);
+                out.writeInt(site.lineNumber);
+                out.writeBoolean(site.handler);
+            }
+            out.write(transformed);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // not for a ByteArrayOutputStream
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the transformed class, or null if the entry can't be read
+     */
+    private static byte[] readCacheEntry(String className, byte[] entry, List<ThrowSites.Site> sites) {
+        var bytes = new ByteArrayInputStream(entry);
+        try (var in = new DataInputStream(bytes)) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                sites.add(ThrowSites.site(in.readInt(), className, in.readUTF(), in.readUTF(), in.readInt(), in.readInt(),
+                        in.readBoolean()));
+            }
+            return in.readAllBytes();
+        } catch (IOException e) {
+            sites.clear();
+            return null;
+        }
+    }
+
+    private byte[] injectExceptionLoggerBeforeThrow(String className, byte[] classfileBuffer, BitSet throwingMethods,
+                                                    boolean timeFill, List<ThrowSites.Site> sites) {
+        var classFile = ClassFile.of();
+        var classModel = classFile.parse(classfileBuffer);
+        int[] methodIndex = {0};
+        return classFile.transform(classModel, (classBuilder, element) -> {
+            // the elements come in classfile order, so the index matches the scanner's
+            if (element instanceof MethodModel methodModel
+                    && (throwingMethods.get(methodIndex[0]++) || timeFill && callsFillInStackTrace(methodModel))
+                    && !methodModel.flags().has(AccessFlag.BRIDGE)) {
+                String methodName = methodModel.methodName().stringValue();
+                String descriptor = methodModel.methodType().stringValue();
+                Set<Label> handlers = profile ? catchHandlers(methodModel) : Set.of();
+                int[] offsetAndLine = {0, 0}; // of the current instruction in the original code
+                boolean[] inHandler = {false};
+                classBuilder.transformMethod(methodModel, MethodTransform.transformingCode(
+                        (builder, codeElement) -> {
+                            if (codeElement instanceof LineNumber lineNumber) {
+                                offsetAndLine[1] = lineNumber.line();
+                            } else if (codeElement instanceof LabelTarget target && handlers.contains(target.label())) {
+                                inHandler[0] = true; // the line number may come after the label
+                            } else if (codeElement instanceof Instruction && inHandler[0]) {
+                                inHandler[0] = false;
+                                sites.add(ThrowSites.registerHandler(className, methodName, descriptor, offsetAndLine[0], offsetAndLine[1]));
+                                injectProfilerCall(sites.getLast(), "caught", builder);
+                            }
+                            if (codeElement instanceof ThrowInstruction) {
+                                sites.add(ThrowSites.register(className, methodName, descriptor, offsetAndLine[0], offsetAndLine[1]));
+                                injectExceptionLogger(sites.getLast(), builder);
+                                if (profile) {
+                                    injectProfilerCall(sites.getLast(), "thrown", builder);
+                                }
+                            }
+                            if (timeFill && isFillInStackTrace(codeElement)) {
+                                builder.invokestatic(PROFILER, "fillStart", FILL_START);
+                                builder.with(codeElement);
+                                builder.aload(0);
+                                builder.invokestatic(PROFILER, "fillEnd", FILL_END);
+                            } else {
+                                builder.with(codeElement); // leave every element in place
+                            }
+                            if (codeElement instanceof Instruction instruction) {
+                                offsetAndLine[0] += instruction.sizeInBytes();
+                            }
+                        }));
+            } else {
+                // keep all other class elements, and methods without throws, as they are
+                classBuilder.with(element);
+            }
+        });
+    }
+
+    // catch blocks, not finally blocks (no catch type), those rethrow and are not where the exception ends
+    private static Set<Label> catchHandlers(MethodModel methodModel) {
+        Set<Label> handlers = Collections.newSetFromMap(new IdentityHashMap<>());
+        methodModel.code().ifPresent(code -> {
+            for (ExceptionCatch handler : code.exceptionHandlers()) {
+                if (handler.catchType().isPresent()) {
+                    handlers.add(handler.handler());
+                }
+            }
+        });
+        return handlers;
+    }
+
+    private static boolean callsFillInStackTrace(MethodModel methodModel) {
+        return methodModel.code().map(code -> code.elementStream().anyMatch(ThrowTransformer::isFillInStackTrace))
+                .orElse(false);
+    }
+
+    // the call to the native method in Throwable.fillInStackTrace()
+    private static boolean isFillInStackTrace(CodeElement element) {
+        return element instanceof InvokeInstruction invoke && invoke.owner().asInternalName().equals(THROWABLE)
+                && invoke.name().equalsString("fillInStackTrace") && invoke.type().equalsString("(I)Ljava/lang/Throwable;");
+    }
+
+    // the exception is on top of the stack, keep it there for the catch block or the athrow
+    private static void injectProfilerCall(ThrowSites.Site site, String method, CodeBuilder builder) {
+        builder.dup();
+        builder.ldc(builder.constantPool().intEntry(site.id));
+        builder.invokestatic(PROFILER, method, LOG);
+    }
+
+    private static void injectExceptionLogger(ThrowSites.Site site, CodeBuilder builder) {
+        Label skip = null;
+        if (site.checked) {
+            // sampled or rate limited site: ask first, so that skipping costs next to nothing
+            skip = builder.newLabel();
+            builder.ldc(builder.constantPool().intEntry(site.id));
+            builder.invokestatic(EXCEPTIONLOGGER, "shouldLog", SHOULD_LOG);
+            builder.ifeq(skip); // the exception is on top of the stack again
+        }
+        builder.dup(); // on top of the stack is the current exception instance
+        // duplicate it to make sure the `athrow` op has something to throw
+        // after the invoke to ExceptionLogger has popped one off
+        builder.ldc(builder.constantPool().intEntry(site.id));
+        builder.invokestatic(EXCEPTIONLOGGER, "log", LOG); // call my code with the exception and the site as arguments
+        if (skip != null) {
+            builder.labelBinding(skip);
+        }
+    }
+}
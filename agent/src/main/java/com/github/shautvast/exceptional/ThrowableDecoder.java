@@ -0,0 +1,213 @@
+package com.github.shautvast.exceptional;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads the format written by {@link ThrowableEncoder}.
+ * The reader side is provided, for reference and testability only.
+ * In practice, the reader is implemented outside of java, see rustlib module
+ */
+public class ThrowableDecoder {
+
+    private final byte[] bytes;
+    private final Map<Integer, String> symbols;
+    private final Map<Integer, List<Frame>> traces;
+    private int position;
+
+    private ThrowableDecoder(byte[] bytes, Map<Integer, String> symbols, Map<Integer, List<Frame>> traces) {
+        this.bytes = bytes;
+        this.symbols = symbols;
+        this.traces = traces;
+    }
+
+    /**
+     * For records without symbols
+     */
+    public static DecodedRecord decode(byte[] bytes) {
+        return decode(bytes, Map.of(), Map.of());
+    }
+
+    /**
+     * For records without traces
+     */
+    public static DecodedRecord decode(byte[] bytes, Map<Integer, String> symbols) {
+        return decode(bytes, symbols, Map.of());
+    }
+
+    /**
+     * @param symbols from the symbols records that were read before this one, by the caller. An id that is not
+     *                in there is decoded as null
+     * @param traces  the frames of the trace records that were read before this one, by the caller. A stacktrace
+     *                that ends with a trace that is not in there, ends without it
+     */
+    public static DecodedRecord decode(byte[] bytes, Map<Integer, String> symbols, Map<Integer, List<Frame>> traces) {
+        var decoder = new ThrowableDecoder(bytes, symbols, traces);
+        byte type = decoder.readByte();
+        return switch (type) {
+            case ThrowableEncoder.TYPE_THROWABLE -> new ThrowableRecord(decoder.readLong(), decoder.readThrowable());
+            case ThrowableEncoder.TYPE_REPEAT -> new RepeatRecord(decoder.readLong(), decoder.readVarlong());
+            case ThrowableEncoder.TYPE_SITE -> new SiteRecord(decoder.readVarint(), decoder.readString(),
+                    decoder.readString(), decoder.readString(), decoder.readVarint(), decoder.readZigzag());
+            case ThrowableEncoder.TYPE_SITE_THROWABLE -> new SiteThrowableRecord(decoder.readLong(), decoder.readVarint(),
+                    decoder.readString(), decoder.readString(), decoder.readFrames());
+            case ThrowableEncoder.TYPE_SYMBOLS -> decoder.readSymbols();
+            case ThrowableEncoder.TYPE_TRACE -> new TraceRecord(decoder.readVarint(), decoder.readFrames());
+            case ThrowableEncoder.TYPE_SUMMARY -> decoder.readSummary();
+            default -> throw new IllegalArgumentException("unknown record type " + type);
+        };
+    }
+
+    private DecodedThrowable readThrowable() {
+        String className = readString();
+        String message = readString();
+        List<Frame> frames = readFrames();
+        int omittedFrames = readVarint();
+        int commonFrames = 0;
+        switch (readByte()) {
+            case ThrowableEncoder.TAIL_COMMON -> commonFrames = readVarint();
+            case ThrowableEncoder.TAIL_TRACE -> frames.addAll(traces.getOrDefault(readVarint(), List.of()));
+            default -> {
+            }
+        }
+        int suppressedCount = readVarint();
+        List<DecodedThrowable> suppressed = new ArrayList<>(suppressedCount);
+        for (int i = 0; i < suppressedCount; i++) {
+            suppressed.add(readThrowable());
+        }
+        DecodedThrowable cause = readByte() == 1 ? readThrowable() : null;
+        return new DecodedThrowable(className, message, frames, omittedFrames, commonFrames, suppressed, cause);
+    }
+
+    private List<Frame> readFrames() {
+        int frameCount = readVarint();
+        List<Frame> frames = new ArrayList<>(frameCount);
+        for (int i = 0; i < frameCount; i++) {
+            frames.add(new Frame(readString(), readString(), readString(), readZigzag()));
+        }
+        return frames;
+    }
+
+    private SummaryRecord readSummary() {
+        String className = readString();
+        long count = readVarlong();
+        long millis = readVarlong();
+        SiteRecord site = readByte() == 0 ? null : new SiteRecord(readVarint(), readString(), readString(),
+                readString(), readVarint(), readZigzag());
+        return new SummaryRecord(className, count, millis, site);
+    }
+
+    private SymbolsRecord readSymbols() {
+        int count = readVarint();
+        Map<Integer, String> definitions = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            definitions.put(readVarint(), readString());
+        }
+        return new SymbolsRecord(definitions);
+    }
+
+    private String readString() {
+        int tag = readVarint();
+        if (tag == 0) {
+            return null;
+        }
+        if ((tag & 1) != 0) {
+            return symbols.get(tag >>> 1);
+        }
+        int length = (tag >>> 1) - 1;
+        String value = new String(bytes, position, length, UTF_8);
+        position += length;
+        return value;
+    }
+
+    private int readVarint() {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bytes[position++];
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private int readZigzag() {
+        int zigzag = readVarint();
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    private long readVarlong() {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bytes[position++];
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private long readLong() {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[position++] & 0xff);
+        }
+        return value;
+    }
+
+    private byte readByte() {
+        return bytes[position++];
+    }
+
+    public sealed interface DecodedRecord
+            permits ThrowableRecord, RepeatRecord, SiteRecord, SiteThrowableRecord, SymbolsRecord, TraceRecord,
+            SummaryRecord {
+    }
+
+    public record ThrowableRecord(long fingerprint, DecodedThrowable throwable) implements DecodedRecord {
+    }
+
+    public record RepeatRecord(long fingerprint, long count) implements DecodedRecord {
+    }
+
+    public record SiteRecord(int site, String className, String methodName, String descriptor, int offset,
+                             int lineNumber) implements DecodedRecord {
+    }
+
+    public record SiteThrowableRecord(long fingerprint, int site, String className, String message,
+                                      List<Frame> callers) implements DecodedRecord {
+    }
+
+    public record SymbolsRecord(Map<Integer, String> symbols) implements DecodedRecord {
+    }
+
+    public record TraceRecord(int trace, List<Frame> frames) implements DecodedRecord {
+    }
+
+    /**
+     * @param className null for the throws that were not counted apart
+     * @param site      null if unknown
+     */
+    public record SummaryRecord(String className, long count, long millis, SiteRecord site) implements DecodedRecord {
+    }
+
+    /**
+     * @param stackTrace    including the frames of the trace it ends with
+     * @param omittedFrames the number of frames that were left out (-Dexceptional.frames), they were after the
+     *                      written frames, before the ones of the trace
+     * @param commonFrames  the number of frames at the bottom that are the same as in the enclosing throwable, they
+     *                      are not in the stackTrace
+     */
+    public record DecodedThrowable(String className, String message, List<Frame> stackTrace, int omittedFrames,
+                                   int commonFrames, List<DecodedThrowable> suppressed, DecodedThrowable cause) {
+    }
+
+    public record Frame(String className, String methodName, String fileName, int lineNumber) {
+    }
+}
@@ -0,0 +1,634 @@
+package com.github.shautvast.exceptional;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.util.IdentityHashMap;
+import java.util.Objects;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * Writes a Throwable in a compact binary format into a buffer that is reused for every call.
+ * Replaces jackson, which reflects over all getters and produces a lot of garbage, exactly at the moment when
+ * the application is throwing a lot and the heap is under pressure.
+ * <p>
+ * The buffer is native memory, so that snappy can compress it without copying it to and from the heap.
+ * <p>
+ * An instance is not threadsafe, use one per thread.
+ * <p>
+ * Format (all integers are unsigned LEB128 varints, unless stated otherwise):
+ * <pre>
+ * record    := type:u8 body
+ * body      := throwable record (type 1): fingerprint:i64 throwable
+ *            | repeat record (type 2):    fingerprint:i64 count  ('the throwable with this fingerprint was seen
+ *                                                                count more times since the last record')
+ *            | site record (type 3):      site className:string methodName:string descriptor:string offset
+ *                                         lineNumber:zigzag varint  (definition of a throw site, written once,
+ *                                                                    before the first site throwable record)
+ *            | site throwable record (type 4): fingerprint:i64 site className:string message:string
+ *                                         callerCount frame*  (thrown at the site, the frames are its callers)
+ *            | symbols record (type 5):   count (id value:string)*  (ids for strings, see Symbols. Always
+ *                                                                    UNCOMPRESSED, the reader handles it in order)
+ *            | trace record (type 6):     trace frameCount frame*  (the bottom frames of a stacktrace, that next
+ *                                                                 ones can end with, see Traces. Always UNCOMPRESSED)
+ *            | summary record (type 7):   className:string count millis hasSite:u8 [site className:string
+ *                                         methodName:string descriptor:string offset lineNumber:zigzag varint]
+ *                                         (count throws of this class at this site in the last millis, only
+ *                                         counted during an exception storm, see ExceptionStorm. A null className
+ *                                         is all the others)
+ * throwable := className:string message:string
+ *              frameCount frame* omittedFrames tail
+ *              suppressedCount throwable*
+ *              hasCause:u8 [throwable]
+ * tail      := 0                      (the stacktrace ends there)
+ *            | 1 commonFrames         (of a cause or suppressed: it ends with this many frames of the throwable
+ *                                      that contains it, like '... n more' in printStackTrace)
+ *            | 2 trace                (it ends with the frames of this trace record)
+ * frame     := className:string methodName:string fileName:string lineNumber:zigzag varint
+ * string    := tag [utf8-bytes]  0 is null, odd is the symbol with id tag >>> 1, even is inline:
+ *                                (tag >>> 1) - 1 utf8-bytes follow
+ * i64       := 8 bytes, big endian
+ * </pre>
+ * The fingerprint is the {@link Fingerprint} of the stacktrace, or of the site and callers.
+ * With {@link Symbols}, the class names of the throwables and the names in the frames are written as an id, once the
+ * id is published. The ones that had to be written inline get an id with {@link #encodeNewSymbols()}. Messages are
+ * never symbols.
+ * With {@link Traces}, the bottom of the stacktrace is the id of a trace record, when one was written that it ends with.
+ * <p>
+ * What is written of a throwable is bounded by the {@link Limits}: frames that don't fit are counted in omittedFrames,
+ * they are the ones between the written frames and the tail. Causes and suppressed exceptions are nested up to
+ * limits.causes levels, deeper ones are left out, and so are the suppressed exceptions after the first
+ * limits.suppressed. At most limits.throwables are written per record in all, a wide tree of suppressed exceptions
+ * stops there, whatever the depth. A throwable is written once per record: one that was written already (a cycle, or the same one
+ * suppressed twice) is left out, like the dejaVu set of Throwable.printStackTrace, so a cause cycle can't recurse.
+ * The decoders are {@link ThrowableDecoder} and rustlib/src/decoder.rs
+ */
+public class ThrowableEncoder {
+
+    public static final byte TYPE_THROWABLE = 1;
+    public static final byte TYPE_REPEAT = 2;
+    public static final byte TYPE_SITE = 3;
+    public static final byte TYPE_SITE_THROWABLE = 4;
+    public static final byte TYPE_SYMBOLS = 5;
+    public static final byte TYPE_TRACE = 6;
+    public static final byte TYPE_SUMMARY = 7;
+    static final int MAX_NESTING = 32; // the default of -Dexceptional.causes
+    static final int TAIL_NONE = 0;
+    static final int TAIL_COMMON = 1;
+    static final int TAIL_TRACE = 2;
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    // new strings that are remembered per record, the rest gets an id with a next record
+    private static final int MAX_NEW_SYMBOLS = 64;
+
+    private final Symbols symbols;
+    private final String[] newSymbols;
+    private int newSymbolCount;
+    private final Symbols.Symbol[] claimed;
+    private int claimedCount;
+    private final Traces traces;
+    private final Limits limits;
+    // the bottom of the last stacktrace that the reader doesn't have yet
+    private StackTraceElement[] newTrace;
+    private long newTraceHash;
+    private int newTraceLength;
+    private Traces.Trace claimedTrace;
+    // the throwables of the record that is encoded, by identity, cleared after every record
+    private final IdentityHashMap<Throwable, Boolean> dejaVu = new IdentityHashMap<>();
+    // how many more of them may be written in the record
+    private int throwablesLeft;
+    private MemorySegment buffer;
+    private long position;
+
+    public ThrowableEncoder() {
+        this(4096, null, null, Limits.DEFAULT);
+    }
+
+    /**
+     * @param symbols null to write all strings inline
+     */
+    ThrowableEncoder(Symbols symbols) {
+        this(4096, symbols, null, Limits.DEFAULT);
+    }
+
+    /**
+     * @param symbols null to write all strings inline
+     * @param traces  null to write all frames
+     */
+    ThrowableEncoder(Symbols symbols, Traces traces, Limits limits) {
+        this(4096, symbols, traces, limits);
+    }
+
+    /**
+     * An encoder with its own {@link Symbols} and {@link Traces}, so it writes the records as the agent does: a name
+     * or the bottom of a stacktrace is inline the first time, an id after {@link #defineNewSymbols()}.
+     * For benchmarks and tools outside this package.
+     */
+    public static ThrowableEncoder withSymbols() {
+        return new ThrowableEncoder(new Symbols(65536), new Traces(1024), Limits.DEFAULT);
+    }
+
+    /**
+     * Gives ids to the names and the stacktrace bottom that the last record had inline, as if the symbols and trace
+     * records were written, see {@link #encodeNewSymbols()} and {@link #encodeNewTrace()}. Overwrites the buffer.
+     */
+    public void defineNewSymbols() {
+        newSymbolsWritten(symbols != null && encodeNewSymbols() > 0);
+        newTraceWritten(traces != null && encodeNewTrace() > 0);
+    }
+
+    ThrowableEncoder(int initialCapacity) {
+        this(initialCapacity, null, null, Limits.DEFAULT);
+    }
+
+    ThrowableEncoder(int initialCapacity, Symbols symbols, Traces traces, Limits limits) {
+        this.buffer = allocate(initialCapacity);
+        this.symbols = symbols;
+        this.newSymbols = symbols != null ? new String[MAX_NEW_SYMBOLS] : null;
+        this.claimed = symbols != null ? new Symbols.Symbol[MAX_NEW_SYMBOLS] : null;
+        this.traces = traces;
+        this.limits = limits;
+    }
+
+    /**
+     * Encodes the throwable, starting at the beginning of the buffer
+     *
+     * @return the number of bytes written, the bytes are in {@link #buffer()}
+     */
+    public int encode(Throwable throwable) {
+        StackTraceElement[] stackTrace = throwable.getStackTrace();
+        return encode(throwable, stackTrace, Fingerprint.of(throwable, stackTrace));
+    }
+
+    /**
+     * Same as {@link #encode(Throwable)}, for when the caller already has the stacktrace and fingerprint
+     */
+    public int encode(Throwable throwable, StackTraceElement[] stackTrace, long fingerprint) {
+        begin();
+        newSymbolCount = 0;
+        newTrace = null;
+        writeByte(TYPE_THROWABLE);
+        writeLong(fingerprint);
+        dejaVu.put(throwable, Boolean.TRUE);
+        throwablesLeft = limits.throwables() - 1;
+        try {
+            writeThrowable(throwable, stackTrace, null, 0);
+        } finally {
+            dejaVu.clear(); // no references to the application's throwables after the record
+        }
+        return length();
+    }
+
+    /**
+     * Encodes a repeat record, starting at the beginning of the buffer
+     *
+     * @return the number of bytes written
+     */
+    public int encodeRepeat(long fingerprint, long count) {
+        begin();
+        newSymbolCount = 0;
+        writeByte(TYPE_REPEAT);
+        writeLong(fingerprint);
+        writeVarlong(count);
+        return length();
+    }
+
+    /**
+     * Encodes the definition of a throw site, starting at the beginning of the buffer
+     *
+     * @return the number of bytes written
+     */
+    public int encodeSite(ThrowSites.Site site) {
+        begin();
+        newSymbolCount = 0;
+        writeByte(TYPE_SITE);
+        writeVarint(site.id);
+        writeString(site.className);
+        writeString(site.methodName);
+        writeString(site.descriptor);
+        writeVarint(site.offset);
+        writeZigzag(site.lineNumber);
+        return length();
+    }
+
+    /**
+     * Encodes a summary record, starting at the beginning of the buffer. All strings are inline, it is rare.
+     *
+     * @param className null for the throws that were not counted apart
+     * @param site      null if unknown
+     * @return the number of bytes written
+     */
+    public int encodeSummary(String className, ThrowSites.Site site, long count, long millis) {
+        begin();
+        newSymbolCount = 0;
+        writeByte(TYPE_SUMMARY);
+        writeString(className);
+        writeVarlong(count);
+        writeVarlong(millis);
+        writeByte(site != null ? 1 : 0);
+        if (site != null) {
+            writeVarint(site.id);
+            writeString(site.className);
+            writeString(site.methodName);
+            writeString(site.descriptor);
+            writeVarint(site.offset);
+            writeZigzag(site.lineNumber);
+        }
+        return length();
+    }
+
+    /**
+     * Encodes a throwable without its stacktrace: the site where it was thrown, and the first count callers
+     *
+     * @return the number of bytes written
+     */
+    public int encode(Throwable throwable, ThrowSites.Site site, StackWalker.StackFrame[] callers, int count,
+                      long fingerprint) {
+        begin();
+        newSymbolCount = 0;
+        writeByte(TYPE_SITE_THROWABLE);
+        writeLong(fingerprint);
+        writeVarint(site.id);
+        writeSymbol(throwable.getClass().getName());
+        writeString(throwable.getMessage());
+        writeVarint(count);
+        for (int i = 0; i < count; i++) {
+            StackWalker.StackFrame frame = callers[i];
+            writeSymbol(frame.getClassName());
+            writeSymbol(frame.getMethodName());
+            writeSymbol(frame.getFileName());
+            writeZigzag(frame.getLineNumber());
+        }
+        return length();
+    }
+
+    /**
+     * Claims ids for the strings that the last record had to write inline (see {@link Symbols}), and encodes their
+     * definitions in a symbols record, starting at the beginning of the buffer. Call {@link #newSymbolsWritten}
+     * after writing it.
+     *
+     * @return the number of bytes written, 0 if there was nothing to claim
+     */
+    int encodeNewSymbols() {
+        claimedCount = 0;
+        for (int i = 0; i < newSymbolCount; i++) {
+            Symbols.Symbol symbol = symbols.claim(newSymbols[i]);
+            if (symbol != null) {
+                claimed[claimedCount++] = symbol;
+            }
+            newSymbols[i] = null;
+        }
+        newSymbolCount = 0;
+        if (claimedCount == 0) {
+            return 0;
+        }
+        begin();
+        writeByte(TYPE_SYMBOLS);
+        writeVarint(claimedCount);
+        for (int i = 0; i < claimedCount; i++) {
+            writeVarint(claimed[i].id);
+            writeString(claimed[i].value);
+        }
+        return length();
+    }
+
+    /**
+     * Publishes the ids of the last {@link #encodeNewSymbols}, or gives them up when the record was not written
+     */
+    void newSymbolsWritten(boolean written) {
+        for (int i = 0; i < claimedCount; i++) {
+            if (written) {
+                symbols.publish(claimed[i]);
+            } else {
+                symbols.abandon(claimed[i]);
+            }
+            claimed[i] = null;
+        }
+        claimedCount = 0;
+    }
+
+    /**
+     * Claims an id for the bottom of the last stacktrace, when the reader doesn't have it yet (see {@link Traces}),
+     * and encodes its frames in a trace record, starting at the beginning of the buffer. Call
+     * {@link #newTraceWritten} after writing it.
+     *
+     * @return the number of bytes written, 0 if there was nothing to claim
+     */
+    int encodeNewTrace() {
+        StackTraceElement[] stackTrace = newTrace;
+        newTrace = null;
+        claimedTrace = stackTrace != null ? traces.claim(newTraceHash, stackTrace, newTraceLength) : null;
+        if (claimedTrace == null) {
+            return 0;
+        }
+        begin();
+        newSymbolCount = 0;
+        writeByte(TYPE_TRACE);
+        writeVarint(claimedTrace.id);
+        writeVarint(claimedTrace.frames.length);
+        for (StackTraceElement frame : claimedTrace.frames) {
+            writeFrame(frame);
+        }
+        return length();
+    }
+
+    /**
+     * Publishes the id of the last {@link #encodeNewTrace}, or gives it up when the record was not written
+     */
+    void newTraceWritten(boolean written) {
+        if (claimedTrace != null) {
+            if (written) {
+                traces.publish(claimedTrace);
+            } else {
+                traces.abandon(claimedTrace);
+            }
+            claimedTrace = null;
+        }
+    }
+
+    /**
+     * The internal buffer, valid up to the length returned by the last call to encode.
+     * It is overwritten by the next call.
+     */
+    public MemorySegment buffer() {
+        return buffer;
+    }
+
+    /**
+     * @return a copy of the last record
+     */
+    byte[] bytes() {
+        return buffer.asSlice(0, length()).toArray(JAVA_BYTE);
+    }
+
+    private void begin() {
+        position = 0;
+    }
+
+    private int length() {
+        return (int) position;
+    }
+
+    /**
+     * @param enclosing the stacktrace of the throwable that has this one as cause or suppressed, null for the top one
+     */
+    private void writeThrowable(Throwable throwable, StackTraceElement[] stackTrace, StackTraceElement[] enclosing,
+                                int nesting) {
+        writeSymbol(throwable.getClass().getName());
+        writeString(throwable.getMessage());
+
+        int commonFrames = enclosing != null ? commonFrames(stackTrace, enclosing) : 0;
+        Traces.Trace shared = enclosing == null && traces != null ? sharedBottom(stackTrace) : null;
+        int frames = stackTrace.length - commonFrames - (shared != null ? shared.frames.length : 0);
+        int written = Math.min(frames, limits.frames());
+        writeVarint(written);
+        for (int i = 0; i < written; i++) {
+            writeFrame(stackTrace[i]);
+        }
+        writeVarint(frames - written);
+        if (shared != null) {
+            writeByte(TAIL_TRACE);
+            writeVarint(shared.id);
+        } else if (commonFrames > 0) {
+            writeByte(TAIL_COMMON);
+            writeVarint(commonFrames);
+        } else {
+            writeByte(TAIL_NONE);
+        }
+
+        if (nesting < limits.causes()) {
+            // getSuppressed returns a copy, the ones that were written already are taken out of it. All of them
+            // (and the cause) are claimed before any is written, so each is written here, not deeper down
+            Throwable[] suppressed = throwable.getSuppressed();
+            int suppressedCount = 0;
+            for (int i = 0; i < suppressed.length && suppressedCount < limits.suppressed() && throwablesLeft > 0; i++) {
+                if (dejaVu.putIfAbsent(suppressed[i], Boolean.TRUE) == null) {
+                    suppressed[suppressedCount++] = suppressed[i];
+                    throwablesLeft--;
+                }
+            }
+            Throwable cause = throwable.getCause();
+            if (cause != null && (throwablesLeft <= 0 || dejaVu.putIfAbsent(cause, Boolean.TRUE) != null)) {
+                cause = null;
+            }
+            if (cause != null) {
+                throwablesLeft--;
+            }
+            writeVarint(suppressedCount);
+            for (int i = 0; i < suppressedCount; i++) {
+                // getStackTrace returns a copy, but it's the only public way to get to the frames
+                writeThrowable(suppressed[i], suppressed[i].getStackTrace(), stackTrace, nesting + 1);
+            }
+            if (cause != null) {
+                writeByte(1);
+                writeThrowable(cause, cause.getStackTrace(), stackTrace, nesting + 1);
+            } else {
+                writeByte(0);
+            }
+        } else {
+            writeVarint(0);
+            writeByte(0);
+        }
+    }
+
+    private void writeFrame(StackTraceElement frame) {
+        writeSymbol(frame.getClassName());
+        writeSymbol(frame.getMethodName());
+        writeSymbol(frame.getFileName());
+        writeZigzag(frame.getLineNumber()); // native methods have -2
+    }
+
+    // the number of frames at the bottom that are the same, as in Throwable.printStackTrace
+    private static int commonFrames(StackTraceElement[] stackTrace, StackTraceElement[] enclosing) {
+        int i = stackTrace.length - 1;
+        int j = enclosing.length - 1;
+        while (i >= 0 && j >= 0 && sameFrame(stackTrace[i], enclosing[j])) {
+            i--;
+            j--;
+        }
+        return stackTrace.length - 1 - i;
+    }
+
+    /**
+     * The longest bottom of the stacktrace that the reader has, null if none. The longest one that it doesn't have is
+     * kept for {@link #encodeNewTrace}.
+     */
+    private Traces.Trace sharedBottom(StackTraceElement[] stackTrace) {
+        Traces.Trace shared = null;
+        long hash = 0;
+        for (int length = 1; length <= stackTrace.length; length++) {
+            hash = Traces.hash(hash, stackTrace[stackTrace.length - length]);
+            if (length >= Traces.MIN_LENGTH && Integer.bitCount(length) == 1) {
+                Traces.Trace trace = traces.get(hash);
+                if (trace != null && trace.isBottomOf(stackTrace)) {
+                    shared = trace;
+                } else {
+                    newTrace = stackTrace;
+                    newTraceHash = hash;
+                    newTraceLength = length;
+                }
+            }
+        }
+        if (shared != null && newTrace != null && newTraceLength < shared.frames.length) {
+            newTrace = null;
+        }
+        return shared;
+    }
+
+    /**
+     * Same as far as it is written
+     */
+    static boolean sameFrame(StackTraceElement a, StackTraceElement b) {
+        return a.getLineNumber() == b.getLineNumber()
+                && a.getMethodName().equals(b.getMethodName())
+                && a.getClassName().equals(b.getClassName())
+                && Objects.equals(a.getFileName(), b.getFileName());
+    }
+
+    // the id if it has one, otherwise inline, and kept as a new symbol
+    private void writeSymbol(String value) {
+        if (symbols == null || value == null) {
+            writeString(value);
+            return;
+        }
+        int id = symbols.id(value);
+        if (id > 0) {
+            writeVarint((id << 1) | 1);
+            return;
+        }
+        writeString(value);
+        if (newSymbolCount < newSymbols.length) {
+            for (int i = 0; i < newSymbolCount; i++) {
+                if (newSymbols[i].equals(value)) {
+                    return;
+                }
+            }
+            newSymbols[newSymbolCount++] = value;
+        }
+    }
+
+    private void writeString(String value) {
+        if (value == null) {
+            writeVarint(0);
+            return;
+        }
+        int length = value.length();
+        int utf8Length = utf8Length(value);
+        writeVarint((utf8Length + 1) << 1);
+        ensureCapacity(utf8Length);
+        MemorySegment b = buffer;
+        long p = position;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                b.set(JAVA_BYTE, p++, (byte) c);
+            } else if (c < 0x800) {
+                b.set(JAVA_BYTE, p++, (byte) (0xc0 | (c >> 6)));
+                b.set(JAVA_BYTE, p++, (byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                b.set(JAVA_BYTE, p++, (byte) (0xf0 | (codePoint >> 18)));
+                b.set(JAVA_BYTE, p++, (byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                b.set(JAVA_BYTE, p++, (byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                b.set(JAVA_BYTE, p++, (byte) (0x80 | (codePoint & 0x3f)));
+            } else if (Character.isSurrogate(c)) {
+                b.set(JAVA_BYTE, p++, (byte) '?'); // unpaired surrogate, same as String.getBytes(UTF_8)
+            } else {
+                b.set(JAVA_BYTE, p++, (byte) (0xe0 | (c >> 12)));
+                b.set(JAVA_BYTE, p++, (byte) (0x80 | ((c >> 6) & 0x3f)));
+                b.set(JAVA_BYTE, p++, (byte) (0x80 | (c & 0x3f)));
+            }
+        }
+        position = p;
+    }
+
+    static int utf8Length(String value) {
+        int length = value.length();
+        int utf8Length = length;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    utf8Length += 1;
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    utf8Length += 2; // 4 bytes for 2 chars
+                    i++;
+                } else if (!Character.isSurrogate(c)) {
+                    utf8Length += 2;
+                }
+            }
+        }
+        return utf8Length;
+    }
+
+    private void writeVarint(int value) {
+        ensureCapacity(5);
+        MemorySegment b = buffer;
+        long p = position;
+        while ((value & ~0x7f) != 0) {
+            b.set(JAVA_BYTE, p++, (byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        b.set(JAVA_BYTE, p++, (byte) value);
+        position = p;
+    }
+
+    private void writeZigzag(int value) {
+        writeVarint((value << 1) ^ (value >> 31));
+    }
+
+    private void writeVarlong(long value) {
+        ensureCapacity(10);
+        MemorySegment b = buffer;
+        long p = position;
+        while ((value & ~0x7fL) != 0) {
+            b.set(JAVA_BYTE, p++, (byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        b.set(JAVA_BYTE, p++, (byte) value);
+        position = p;
+    }
+
+    private void writeLong(long value) {
+        ensureCapacity(8);
+        buffer.set(LONG, position, value);
+        position += 8;
+    }
+
+    private void writeByte(int value) {
+        ensureCapacity(1);
+        buffer.set(JAVA_BYTE, position++, (byte) value);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (position + extra > buffer.byteSize()) {
+            // only grows, so after a while every call is garbage free
+            MemorySegment grown = allocate(Math.max(buffer.byteSize() * 2, position + extra));
+            MemorySegment.copy(buffer, 0, grown, 0, position);
+            buffer = grown;
+        }
+    }
+
+    // freed by the gc, with the encoder
+    private static MemorySegment allocate(long size) {
+        return Arena.ofAuto().allocate(size, 8);
+    }
+
+    /**
+     * How much of a throwable is written, from -Dexceptional.frames (default 1024) frames per throwable,
+     * -Dexceptional.causes (default 32) levels of causes and suppressed exceptions, -Dexceptional.suppressed
+     * (default 32) suppressed exceptions per throwable and -Dexceptional.throwables (default 64) throwables per record
+     */
+    record Limits(int frames, int causes, int suppressed, int throwables) {
+
+        static final Limits DEFAULT = new Limits(1024, MAX_NESTING, 32, 64);
+
+        static Limits fromSystemProperties() {
+            return new Limits(Math.max(0, Integer.getInteger("exceptional.frames", DEFAULT.frames)),
+                    Math.max(0, Integer.getInteger("exceptional.causes", DEFAULT.causes)),
+                    Math.max(0, Integer.getInteger("exceptional.suppressed", DEFAULT.suppressed)),
+                    Math.max(1, Integer.getInteger("exceptional.throwables", DEFAULT.throwables)));
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.github.shautvast.exceptional;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The bottom frames of stacktraces that the reader already has, so that a next stacktrace that ends the same way
+ * refers to them by id instead of writing them again. Throws from the same thread pool, filter chain or event loop
+ * share their deepest frames, often most of the trace. One table per ringbuffer, owned by its {@link RingBufferSink}.
+ * <p>
+ * It works like {@link Symbols}: after a record with a stacktrace that has no shared bottom yet, the sink claims an id
+ * for it and writes a trace record (see ThrowableEncoder) with its frames. Only when that is in the buffer, the
+ * id is published and used by the next records. When it can't be written, the claim is abandoned.
+ * <p>
+ * Only the bottom 8, 16, 32 .. frames are shared, so that finding the longest costs one lookup per power of two.
+ * A trace that ends with the same 100 frames as one that was sent, refers to its bottom 64. The key is a hash
+ * of the frames, a match is checked frame by frame.
+ * <p>
+ * At most -Dexceptional.traces (default 1024) bottoms get an id, 0 is no sharing at all. The table never shrinks.
+ * Lock-free open addressing with primitive keys, like the AggregationCache, a lookup doesn't allocate.
+ */
+class Traces {
+
+    static final int MIN_LENGTH = 8;
+    private static final int PROBES = 8;
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private final AtomicReferenceArray<Trace> slots;
+    private final int mask;
+    private final int maxSize;
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final AtomicInteger size = new AtomicInteger();
+
+    Traces(int maxSize) {
+        this.maxSize = maxSize;
+        int capacity = Integer.highestOneBit(Math.max(1, maxSize) * 2 - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * @return null if sharing is switched off
+     */
+    static Traces fromSystemProperties() {
+        int maxSize = Integer.getInteger("exceptional.traces", 1024);
+        return maxSize > 0 ? new Traces(maxSize) : null;
+    }
+
+    /**
+     * The hash of one more frame, going up from the bottom of a stacktrace. Start with 0.
+     */
+    static long hash(long hash, StackTraceElement frame) {
+        hash = (hash + frame.getClassName().hashCode()) * MULTIPLIER;
+        hash = (hash + frame.getMethodName().hashCode()) * MULTIPLIER;
+        return (hash + frame.getLineNumber()) * MULTIPLIER;
+    }
+
+    /**
+     * @return the published trace with this hash, null if there is none
+     */
+    Trace get(long hash) {
+        int index = (int) (hash ^ (hash >>> 32));
+        for (int i = 0; i < PROBES; i++) {
+            Trace trace = slots.get((index + i) & mask);
+            if (trace == null) {
+                return null;
+            }
+            if (trace.hash == hash) {
+                return trace.published ? trace : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param length the number of frames at the bottom of the stacktrace, that are copied
+     * @return a new id for them, to be published or abandoned by the caller. null if there already is one with this
+     * hash, or another thread claimed it first, or the table is full
+     */
+    Trace claim(long hash, StackTraceElement[] stackTrace, int length) {
+        if (size.get() >= maxSize) {
+            return null;
+        }
+        int index = (int) (hash ^ (hash >>> 32));
+        for (int i = 0; i < PROBES; i++) {
+            int slot = (index + i) & mask;
+            Trace current = slots.get(slot);
+            if (current == null || (current.hash == hash && current.abandoned)) {
+                var trace = new Trace(nextId.getAndIncrement(), hash,
+                        Arrays.copyOfRange(stackTrace, stackTrace.length - length, stackTrace.length));
+                if (!slots.compareAndSet(slot, current, trace)) {
+                    return null;
+                }
+                if (current == null) {
+                    size.incrementAndGet();
+                }
+                return trace;
+            }
+            if (current.hash == hash) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The trace record is in the buffer, the id can be used
+     */
+    void publish(Trace trace) {
+        trace.published = true;
+    }
+
+    /**
+     * The trace record could not be written, the frames are written in full until a next claim
+     */
+    void abandon(Trace trace) {
+        trace.abandoned = true;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    static final class Trace {
+        final int id;
+        final long hash;
+        final StackTraceElement[] frames;
+        volatile boolean published;
+        volatile boolean abandoned;
+
+        Trace(int id, long hash, StackTraceElement[] frames) {
+            this.id = id;
+            this.hash = hash;
+            this.frames = frames;
+        }
+
+        /**
+         * @return true if the stacktrace ends with these frames, compared on what is written of them
+         */
+        boolean isBottomOf(StackTraceElement[] stackTrace) {
+            int offset = stackTrace.length - frames.length;
+            if (offset < 0) {
+                return false;
+            }
+            for (int i = 0; i < frames.length; i++) {
+                if (!ThrowableEncoder.sameFrame(frames[i], stackTrace[offset + i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.github.shautvast.exceptional;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Transformed classes on disk, so that the next JVM start (or the next container with the same image) doesn't have
+ * to parse and rebuild the same library classes again. Opt-in with -Dexceptional.cache.dir=&lt;directory&gt;
+ * <p>
+ * An entry is a file named after the SHA-256 of the agent version, the sampling and profiler configuration, the
+ * class name and the original bytes, so a changed class, agent or configuration is a miss, never a stale hit. Files are written
+ * to a temporary file and then moved, so JVMs can share the directory.
+ * When the directory grows beyond -Dexceptional.cache.size megabytes (default 256), the least recently used
+ * entries are deleted.
+ */
+public class TransformCache {
+
+    private static final String SUFFIX = ".class";
+
+    private final Path dir;
+    private final long maxBytes;
+    private final byte[] version;
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    TransformCache(Path dir, long maxBytes, String version) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.maxBytes = maxBytes;
+        this.version = version.getBytes(UTF_8);
+        size.set(evict(maxBytes));
+    }
+
+    /**
+     * @return the cache, or null if it is not configured or the directory can't be used
+     */
+    public static TransformCache fromSystemProperties() {
+        String dir = System.getProperty("exceptional.cache.dir");
+        if (dir == null) {
+            return null;
+        }
+        try {
+            long maxBytes = Long.getLong("exceptional.cache.size", 256) * 1024 * 1024;
+            return new TransformCache(Path.of(dir), maxBytes, agentVersion() + "\0" + ThrowSites.configuration()
+                    + "\0" + ExceptionProfiler.isEnabled());
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Not using the transform cache in " + dir + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * The key for the original bytes of a class, for {@link #get(String)} and {@link #put(String, byte[])}
+     */
+    public String key(String className, byte[] original) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            digest.update(version);
+            digest.update((byte) 0);
+            digest.update(className.getBytes(UTF_8));
+            digest.update((byte) 0);
+            digest.update(original);
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM has SHA-256
+        }
+    }
+
+    /**
+     * @return the transformed bytes, or null if they are not in the cache
+     */
+    public byte[] get(String key) {
+        Path file = dir.resolve(key + SUFFIX);
+        try {
+            byte[] bytes = Files.readAllBytes(file);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis())); // for the eviction
+            hits.incrementAndGet();
+            return bytes;
+        } catch (IOException e) {
+            misses.incrementAndGet(); // not there, or just evicted by another JVM
+            return null;
+        }
+    }
+
+    public void put(String key, byte[] transformed) {
+        try {
+            Path temp = Files.createTempFile(dir, key, ".tmp");
+            Files.write(temp, transformed);
+            Files.move(temp, dir.resolve(key + SUFFIX), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            if (size.addAndGet(transformed.length) > maxBytes) {
+                synchronized (this) {
+                    if (size.get() > maxBytes) {
+                        size.set(evict(maxBytes * 3 / 4)); // make some room, so that we don't do this on every put
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not write to the transform cache: " + e);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Deletes the least recently used entries, until the total size is at most targetBytes
+     *
+     * @return the size after eviction
+     */
+    private long evict(long targetBytes) throws IOException {
+        record Entry(Path file, long size, FileTime lastModified) {
+        }
+        List<Entry> entries = new ArrayList<>();
+        long total = 0;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (!file.getFileName().toString().endsWith(SUFFIX)) {
+                    continue;
+                }
+                try {
+                    var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    entries.add(new Entry(file, attributes.size(), attributes.lastModifiedTime()));
+                    total += attributes.size();
+                } catch (NoSuchFileException e) {
+                    // evicted by another JVM
+                }
+            }
+        }
+        if (total <= targetBytes) {
+            return total;
+        }
+        entries.sort(Comparator.comparing(Entry::lastModified));
+        for (Entry entry : entries) {
+            if (total <= targetBytes) {
+                break;
+            }
+            Files.deleteIfExists(entry.file());
+            total -= entry.size();
+        }
+        return total;
+    }
+
+    // the version from the manifest is the same for every snapshot build, the jar itself is not
+    private static String agentVersion() {
+        String version = String.valueOf(TransformCache.class.getPackage().getImplementationVersion());
+        try {
+            Path jar = Path.of(TransformCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            return version + "-" + Files.size(jar) + "-" + Files.getLastModifiedTime(jar).toMillis();
+        } catch (Exception e) {
+            return version;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.github.shautvast.exceptional;
+
+import org.junit.jupiter.api.Test;
+
+import javax.management.ObjectName;
+import java.lang.foreign.Arena;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AgentMetricsTest {
+
+    @Test
+    void testMXBean() throws Exception {
+        var writer = new CircularBufferWriter(Arena.ofAuto().allocate(MultiProducerCircularByteBuffer.segmentSize(64), 64), false);
+        AgentMetrics.watch(writer);
+        writer.put(new byte[24]);
+        AgentMetrics.encodeNanos.record(1000);
+
+        AgentMetrics.register();
+        var server = ManagementFactory.getPlatformMBeanServer();
+        var name = new ObjectName(AgentMetrics.OBJECT_NAME);
+
+        assertEquals(1L, server.getAttribute(name, "RecordsWritten"));
+        assertEquals(24L, server.getAttribute(name, "BytesWritten"));
+        assertEquals(0.5, (double) server.getAttribute(name, "RingFillLevel"));
+        assertEquals(64L, server.getAttribute(name, "RingCapacity"));
+        assertTrue((long) server.getAttribute(name, "EncodeNanosP99") >= 1000);
+    }
+}
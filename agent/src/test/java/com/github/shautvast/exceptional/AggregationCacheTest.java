@@ -0,0 +1,98 @@
+package com.github.shautvast.exceptional;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AggregationCacheTest {
+
+    private static final long WINDOW = 1_000_000_000;
+
+    @Test
+    void testOnlyFirstIsSent() {
+        var cache = new AggregationCache(16, WINDOW);
+
+        assertTrue(cache.record(1, 0));
+        assertFalse(cache.record(1, 1));
+        assertFalse(cache.record(1, 2));
+        assertTrue(cache.record(2, 3));
+    }
+
+    @Test
+    void testFlushHandsOutCounts() {
+        var cache = new AggregationCache(16, WINDOW);
+        cache.record(1, 0);
+        cache.record(1, 1);
+        cache.record(1, 2);
+        cache.record(2, 3);
+
+        var repeats = flush(cache, 10);
+        assertEquals(Map.of(1L, 2L), repeats);
+
+        // counts are reset
+        assertEquals(Map.of(), flush(cache, 20));
+    }
+
+    @Test
+    void testSentAgainInNextWindow() {
+        var cache = new AggregationCache(16, WINDOW);
+
+        assertTrue(cache.record(1, 0));
+        assertFalse(cache.record(1, WINDOW - 1));
+        assertTrue(cache.record(1, WINDOW));
+        assertFalse(cache.record(1, WINDOW + 1));
+    }
+
+    @Test
+    void testIdleEntriesAreEvicted() {
+        var cache = new AggregationCache(1, WINDOW);
+        cache.record(1, 0);
+        cache.record(1, 1);
+        assertEquals(Map.of(1L, 1L), flush(cache, WINDOW / 2));
+
+        // not idle, so still taking up the only slot
+        assertTrue(cache.record(2, WINDOW / 2));
+        assertFalse(cache.record(1, WINDOW / 2));
+        assertEquals(Map.of(1L, 1L), flush(cache, WINDOW / 2 + 1));
+
+        // idle for a whole window
+        assertEquals(Map.of(), flush(cache, 2 * WINDOW));
+        assertTrue(cache.record(2, 2 * WINDOW));
+        assertFalse(cache.record(2, 2 * WINDOW + 1));
+    }
+
+    @Test
+    void testEvictionKeepsTheProbeChain() {
+        var cache = new AggregationCache(2, WINDOW);
+        // both go to slot 1 first, 3 ends up in slot 0
+        cache.record(1, 0);
+        cache.record(3, WINDOW);
+
+        // 1 is idle and evicted, 3 must still be found behind it
+        assertEquals(Map.of(), flush(cache, WINDOW + 2));
+        assertFalse(cache.record(3, WINDOW + 3));
+
+        // the evicted slot is reused
+        assertTrue(cache.record(1, WINDOW + 4));
+        assertFalse(cache.record(1, WINDOW + 5));
+        assertEquals(Map.of(1L, 1L, 3L, 1L), flush(cache, WINDOW + 6));
+    }
+
+    @Test
+    void testFullCacheDoesNotAggregate() {
+        var cache = new AggregationCache(1, WINDOW);
+        cache.record(1, 0);
+
+        assertTrue(cache.record(2, 1));
+        assertTrue(cache.record(2, 2));
+    }
+
+    private static Map<Long, Long> flush(AggregationCache cache, long now) {
+        var repeats = new HashMap<Long, Long>();
+        cache.flush(now, repeats::put);
+        return repeats;
+    }
+}
@@ -0,0 +1,108 @@
+package com.github.shautvast.exceptional;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.foreign.Arena;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CircularBufferWriterTest {
+
+    @AfterEach
+    void clearProperties() {
+        System.clearProperty("exceptional.overflow");
+        System.clearProperty("exceptional.overflow.sample");
+        System.clearProperty("exceptional.overflow.timeout");
+        System.clearProperty("exceptional.overflow.backoff");
+    }
+
+    @Test
+    void testDropNewest() {
+        var writer = createWriter();
+
+        fill(writer);
+        writer.put(new byte[24]);
+
+        assertEquals(2, writer.getEnqueued());
+        assertEquals(1, writer.getDropped());
+        assertEquals(0, writer.getSpun());
+        assertEquals(48, writer.getBytes());
+        assertEquals(writer.getCapacity(), writer.getUsed());
+        assertEquals(0, writer.getDowncalls());
+    }
+
+    @Test
+    void testSampleOnlyWritesSomeWhenAlmostFull() {
+        System.setProperty("exceptional.overflow", "sample");
+        System.setProperty("exceptional.overflow.sample", "1000000");
+        var writer = createWriter();
+
+        writer.put(new byte[40]); // 48 of 64 bytes, so 3/4 full
+        writer.put(new byte[8]); // would fit, but is very unlikely to be sampled
+
+        assertEquals(1, writer.getEnqueued());
+        assertEquals(1, writer.getDropped());
+    }
+
+    @Test
+    void testUnknownPolicyIsTheDefault() {
+        System.setProperty("exceptional.overflow", "drop_oldest");
+        System.setProperty("exceptional.overflow.backoff", "sleep");
+        var writer = createWriter();
+
+        fill(writer);
+        writer.put(new byte[24]);
+
+        assertEquals(1, writer.getDropped()); // drop_newest
+        assertEquals(Backoff.PARK, Backoff.fromProperty("sleep"));
+    }
+
+    @Test
+    void testBlockGivesUpAfterTimeout() {
+        System.setProperty("exceptional.overflow", "block");
+        System.setProperty("exceptional.overflow.timeout", "10000");
+        System.setProperty("exceptional.overflow.backoff", "yield");
+        var writer = createWriter();
+        fill(writer);
+
+        long start = System.nanoTime();
+        writer.put(new byte[24]);
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(10));
+        assertEquals(1, writer.getDropped());
+        assertTrue(writer.getSpun() > 0);
+    }
+
+    @Test
+    void testBlockWritesWhenSpaceComesFree() throws InterruptedException {
+        System.setProperty("exceptional.overflow", "block");
+        System.setProperty("exceptional.overflow.timeout", "10000000");
+        var writer = createWriter();
+        fill(writer);
+
+        var reader = Thread.ofPlatform().start(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            writer.buffer().get();
+        });
+        writer.put(new byte[24]);
+        reader.join();
+
+        assertEquals(3, writer.getEnqueued());
+        assertEquals(0, writer.getDropped());
+    }
+
+    private static CircularBufferWriter createWriter() {
+        return new CircularBufferWriter(Arena.ofAuto().allocate(MultiProducerCircularByteBuffer.segmentSize(64), 64), false);
+    }
+
+    private static void fill(CircularBufferWriter writer) {
+        writer.put(new byte[24]); // 32 bytes with header
+        writer.put(new byte[24]);
+    }
+}
@@ -0,0 +1,41 @@
+package com.github.shautvast.exceptional;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClassFilterTest {
+
+    @Test
+    void testEverythingByDefault() {
+        var filter = new ClassFilter(List.of(), List.of());
+
+        assertTrue(filter.accepts("com/acme/Main"));
+        assertTrue(filter.accepts("com/fasterxml/jackson/databind/ObjectMapper"));
+    }
+
+    @Test
+    void testOwnClassesAreAlwaysExcluded() {
+        var filter = new ClassFilter(List.of("com.github"), List.of());
+
+        assertFalse(filter.accepts("com/github/shautvast/exceptional/ExceptionLogger"));
+        assertFalse(filter.accepts("org/xerial/snappy/Snappy"));
+        assertTrue(filter.accepts("com/github/other/Main"));
+    }
+
+    @Test
+    void testIncludeAndExclude() {
+        var filter = new ClassFilter(List.of("com.acme"), List.of("com.acme.generated", "com.acme.Noisy"));
+
+        assertTrue(filter.accepts("com/acme/Main"));
+        assertTrue(filter.accepts("com/acme/service/Service$Inner"));
+        assertFalse(filter.accepts("com/acmeco/Main")); // not a package boundary
+        assertFalse(filter.accepts("org/other/Main"));
+        assertFalse(filter.accepts("com/acme/generated/Parser"));
+        assertFalse(filter.accepts("com/acme/Noisy"));
+        assertFalse(filter.accepts("com/acme/Noisy$Inner"));
+        assertTrue(filter.accepts("com/acme/NoisyNeighbour"));
+    }
+}
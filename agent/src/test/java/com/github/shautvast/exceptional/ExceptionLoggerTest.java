@@ -4,6 +4,8 @@ import org.junit.jupiter.api.Test;
 
 import java.time.Duration;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
 class ExceptionLoggerTest {
 
     @Test
@@ -14,4 +16,20 @@ class ExceptionLoggerTest {
         Thread.sleep(Duration.ofSeconds(1));
     }
 
+    @Test
+    void testThrowsWhileLoggingAreNotLoggedOnVirtualThread() throws InterruptedException {
+        var throwable = new Throwable() {
+            @Override
+            public StackTraceElement[] getStackTrace() {
+                ExceptionLogger.log(new Throwable()); // like instrumented code that throws
+                return super.getStackTrace();
+            }
+        };
+        long before = AgentMetrics.logged.sum();
+
+        Thread.ofVirtual().start(() -> ExceptionLogger.log(throwable)).join();
+
+        assertEquals(1, AgentMetrics.logged.sum() - before);
+    }
+
 }
\ No newline at end of file
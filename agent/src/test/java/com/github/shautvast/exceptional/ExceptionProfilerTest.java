@@ -0,0 +1,72 @@
+package com.github.shautvast.exceptional;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.WeakReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExceptionProfilerTest {
+
+    @Test
+    void testThrowIsPairedWithItsCatch() {
+        var thrown = ThrowSites.register("com/acme/Profiled", "parse", "()V", 10, 5);
+        var caught = ThrowSites.registerHandler("com/acme/Profiled", "main", "()V", 20, 9);
+        var exception = new IllegalArgumentException();
+
+        ExceptionProfiler.thrown(exception, thrown.id);
+        ExceptionProfiler.caught(exception, caught.id);
+
+        assertEquals(1, thrown.profile.events.sum());
+        assertEquals(1, thrown.profile.frames.count());
+        assertEquals(1, caught.profile.events.sum());
+        assertEquals(1, caught.profile.nanos.count());
+        assertEquals(0, caught.profile.unmatched.sum());
+    }
+
+    @Test
+    void testCatchWithoutThrowIsUnmatched() {
+        var thrown = ThrowSites.register("com/acme/Unmatched", "parse", "()V", 10, 5);
+        var caught = ThrowSites.registerHandler("com/acme/Unmatched", "main", "()V", 20, 9);
+
+        ExceptionProfiler.thrown(new IllegalStateException(), thrown.id);
+        ExceptionProfiler.caught(new NullPointerException(), caught.id); // thrown by the JVM
+
+        assertEquals(1, caught.profile.unmatched.sum());
+        assertEquals(0, caught.profile.frames.count());
+        assertEquals(0, thrown.profile.frames.count());
+    }
+
+    @Test
+    void testFillInStackTraceIsCountedAtTheFirstThrow() {
+        var thrown = ThrowSites.register("com/acme/Filled", "parse", "()V", 10, 5);
+        var exception = new IllegalArgumentException();
+
+        ExceptionProfiler.fillStart();
+        ExceptionProfiler.fillEnd(exception);
+        ExceptionProfiler.thrown(exception, thrown.id);
+        ExceptionProfiler.thrown(exception, thrown.id); // rethrown
+
+        assertEquals(2, thrown.profile.events.sum());
+        assertEquals(1, thrown.profile.fill.count());
+        assertTrue(ExceptionProfiler.report(20).contains("com.acme.Filled.parse:5 @10"));
+    }
+
+    @Test
+    void testUncaughtExceptionIsNotKeptAlive() throws InterruptedException {
+        var thrown = ThrowSites.register("com/acme/Uncaught", "parse", "()V", 10, 5);
+        var exception = new IllegalStateException();
+        var reference = new WeakReference<>(exception);
+
+        ExceptionProfiler.fillStart();
+        ExceptionProfiler.fillEnd(exception);
+        ExceptionProfiler.thrown(exception, thrown.id); // and never caught
+        exception = null;
+
+        for (int i = 0; i < 50 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(reference.get());
+    }
+}
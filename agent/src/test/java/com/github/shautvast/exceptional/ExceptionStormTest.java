@@ -0,0 +1,122 @@
+package com.github.shautvast.exceptional;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExceptionStormTest {
+
+    private static final long TICK = 100_000_000; // the window is 1 s, in 10 buckets
+    private static final long SUMMARY_MILLIS = 1000;
+
+    private final List<String> summaries = new ArrayList<>();
+    private long now;
+
+    @Test
+    void testBelowThresholdEverythingIsLogged() {
+        var storm = new ExceptionStorm(100, 0.5, 1000, 500, 16);
+        throwMany(storm, 99, new IllegalStateException(), 1);
+
+        assertNull(tick(storm));
+        assertFalse(storm.isDegraded());
+        assertEquals(99, storm.rate());
+        assertFalse(storm.counted(new IllegalStateException(), 1));
+    }
+
+    @Test
+    void testDegradesAndCountsPerClassAndSite() {
+        var storm = new ExceptionStorm(100, 0.5, 1000, 500, 16);
+        throwMany(storm, 100, new IllegalStateException(), 1);
+
+        assertEquals(ExceptionStorm.Transition.DEGRADED, tick(storm));
+        assertTrue(storm.isDegraded());
+        assertTrue(storm.counted(new IllegalStateException(), 1));
+        assertTrue(storm.counted(new IllegalStateException(), 1));
+        assertTrue(storm.counted(new IllegalStateException(), 2));
+        assertTrue(storm.counted(new IllegalArgumentException(), 1));
+
+        for (int i = 0; i < 9; i++) {
+            throwMany(storm, 20, new IllegalStateException(), 3); // still a storm
+            assertNull(tick(storm));
+        }
+        assertEquals(List.of(), summaries); // not yet a second
+        assertNull(tick(storm));
+
+        assertEquals(List.of("java.lang.IllegalArgumentException@1: 1 in 1000 ms",
+                "java.lang.IllegalStateException@1: 2 in 1000 ms",
+                "java.lang.IllegalStateException@2: 1 in 1000 ms",
+                "java.lang.IllegalStateException@3: 180 in 1000 ms"), summaries.stream().sorted().toList());
+    }
+
+    @Test
+    void testRecoversWithHysteresis() {
+        var storm = new ExceptionStorm(100, 0.5, 1000, 500, 16);
+        throwMany(storm, 100, new IllegalStateException(), 1);
+        assertEquals(ExceptionStorm.Transition.DEGRADED, tick(storm));
+
+        // the window empties, but 60 a second is above the recovery rate
+        for (int i = 0; i < 20; i++) {
+            throwMany(storm, 6, new IllegalStateException(), 1);
+            assertNull(tick(storm));
+        }
+        assertTrue(storm.isDegraded());
+
+        // below it (under 50 in the window), for the cooldown of 5 ticks
+        assertNull(tick(storm)); // 54
+        summaries.clear();
+        assertNull(tick(storm));
+        assertNull(tick(storm));
+        assertNull(tick(storm));
+        throwMany(storm, 4, new IllegalStateException(), 1);
+        assertNull(tick(storm));
+        assertEquals(ExceptionStorm.Transition.RECOVERED, tick(storm));
+
+        assertFalse(storm.isDegraded());
+        assertEquals(List.of("java.lang.IllegalStateException@1: 4 in 600 ms"), summaries); // the rest is sent
+        assertFalse(storm.counted(new IllegalStateException(), 1));
+    }
+
+    @Test
+    void testTheOthers() {
+        var storm = new ExceptionStorm(1, 0.5, 1000, 500, 1);
+        throwMany(storm, 1, new IllegalStateException(), 1);
+        assertEquals(ExceptionStorm.Transition.DEGRADED, tick(storm));
+
+        for (int site = 0; site < 100; site++) {
+            storm.counted(new IllegalStateException(), site);
+        }
+        for (int i = 0; i < 10; i++) {
+            tick(storm);
+        }
+
+        long counted = 0;
+        for (String summary : summaries) {
+            counted += Long.parseLong(summary.substring(summary.indexOf(": ") + 2, summary.indexOf(" in")));
+        }
+        assertEquals(100, counted);
+        assertTrue(summaries.stream().anyMatch(summary -> summary.startsWith("null@-1")), summaries.toString());
+    }
+
+    @Test
+    void testBadRecoveryIsTheDefault() {
+        assertEquals(0.5, ExceptionStorm.recovery(null));
+        assertEquals(0.25, ExceptionStorm.recovery("0.25"));
+        assertEquals(0.5, ExceptionStorm.recovery("half"));
+        assertEquals(0.5, ExceptionStorm.recovery("NaN"));
+    }
+
+    private static void throwMany(ExceptionStorm storm, int count, Throwable throwable, int site) {
+        for (int i = 0; i < count; i++) {
+            storm.counted(throwable, site);
+        }
+    }
+
+    private ExceptionStorm.Transition tick(ExceptionStorm storm) {
+        now += TICK;
+        return storm.tick(now, SUMMARY_MILLIS, (className, site, count, millis) ->
+                summaries.add(className + "@" + site + ": " + count + " in " + millis + " ms"));
+    }
+}
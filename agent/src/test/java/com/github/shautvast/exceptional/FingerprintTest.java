@@ -0,0 +1,41 @@
+package com.github.shautvast.exceptional;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FingerprintTest {
+
+    @Test
+    void testSameTraceSameFingerprint() {
+        var fingerprints = new long[2];
+        for (int i = 0; i < 2; i++) {
+            var throwable = new Throwable();
+            fingerprints[i] = Fingerprint.of(throwable, throwable.getStackTrace());
+        }
+
+        assertEquals(fingerprints[0], fingerprints[1]);
+    }
+
+    @Test
+    void testDifferentLineDifferentFingerprint() {
+        var first = new Throwable();
+        var second = new Throwable();
+
+        assertNotEquals(Fingerprint.of(first, first.getStackTrace()), Fingerprint.of(second, second.getStackTrace()));
+    }
+
+    @Test
+    void testMessageIsIgnored() {
+        var trace = new StackTraceElement[]{new StackTraceElement("Main", "call", "Main.java", 17)};
+
+        assertEquals(Fingerprint.of(new Throwable("1"), trace), Fingerprint.of(new Throwable("2"), trace));
+    }
+
+    @Test
+    void testTypeIsIncluded() {
+        var trace = new StackTraceElement[]{new StackTraceElement("Main", "call", "Main.java", 17)};
+
+        assertNotEquals(Fingerprint.of(new Throwable(), trace), Fingerprint.of(new Exception(), trace));
+    }
+}
@@ -0,0 +1,199 @@
+package com.github.shautvast.exceptional;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.ValueLayout;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class HttpBatchSenderTest {
+
+    private HttpServer server;
+    private final BlockingQueue<String> bodies = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> encodings = new LinkedBlockingQueue<>();
+    private volatile int status = 204;
+    private MultiProducerCircularByteBuffer buffer;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/api/stacktraces/bulk", exchange -> {
+            String encoding = String.valueOf(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+            int status = this.status; // before the test sees the body and changes it
+            try (var in = encoding.equals("gzip") ? new GZIPInputStream(exchange.getRequestBody()) : exchange.getRequestBody()) {
+                encodings.add(encoding);
+                bodies.add(new String(in.readAllBytes(), UTF_8));
+            }
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        });
+        server.start();
+        buffer = new MultiProducerCircularByteBuffer(Arena.ofAuto().allocate(MultiProducerCircularByteBuffer.segmentSize(1 << 16), 64));
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void testBatch() throws Exception {
+        try (var sender = sender(2, 60_000, null)) {
+            var exception = new IllegalStateException("\"quoted\"");
+            put(encoder -> encoder.encode(exception, exception.getStackTrace(), 0xcafeL), false);
+            put(encoder -> encoder.encodeRepeat(0xcafeL, 3), true);
+
+            String body = bodies.poll(5, TimeUnit.SECONDS);
+
+            assertNotNull(body);
+            assertEquals("gzip", encodings.poll());
+            assertTrue(body.startsWith("{\"stacktraces\":[{\"fingerprint\":\"000000000000cafe\",\"className\":\"java.lang.IllegalStateException\",\"message\":\"\\\"quoted\\\"\",\"stackTrace\":[{\"className\":\"" + HttpBatchSenderTest.class.getName()), body);
+            assertTrue(body.endsWith("\"suppressed\":[],\"cause\":null}],\"repeats\":[{\"fingerprint\":\"000000000000cafe\",\"count\":3}],\"summaries\":[]}"), body);
+            assertEquals(2, sender.getRecords());
+        }
+    }
+
+    @Test
+    void testSummariesHaveTheirOwnArray() throws Exception {
+        try (var sender = sender(2, 60_000, null)) {
+            put(encoder -> encoder.encodeRepeat(0xcafeL, 3), true);
+            put(encoder -> encoder.encodeSummary("java.net.ConnectException", null, 300, 1000), true);
+
+            String body = bodies.poll(5, TimeUnit.SECONDS);
+
+            assertEquals("{\"stacktraces\":[],\"repeats\":[{\"fingerprint\":\"000000000000cafe\",\"count\":3}],"
+                    + "\"summaries\":[{\"className\":\"java.net.ConnectException\",\"count\":300,\"millis\":1000,"
+                    + "\"site\":null}]}", body);
+        }
+    }
+
+    @Test
+    void testPlainBatchWithDeflatedRecord() throws Exception {
+        buffer.setReaderFlags(MultiProducerCircularByteBuffer.PLAIN_BATCHES);
+        try (var sender = sender(1, 60_000, null)) {
+            var encoder = new ThrowableEncoder();
+            var exception = new IllegalArgumentException("deflated");
+            int length = encoder.encode(exception, exception.getStackTrace(), 0xbeefL);
+            var target = Arena.ofAuto().allocate(length + 64L);
+            int compressed = new RecordDictionary.Compressor().compress(encoder.buffer(), length, target, 0, length + 64);
+            assertTrue(compressed > 0 && compressed < length);
+            assertTrue(buffer.put(target.asSlice(0, compressed).toArray(ValueLayout.JAVA_BYTE), 0, compressed,
+                    MultiProducerCircularByteBuffer.DEFLATED));
+
+            String body = bodies.poll(5, TimeUnit.SECONDS);
+
+            assertNotNull(body);
+            assertEquals("null", encodings.poll()); // no Content-Encoding
+            assertTrue(body.contains("\"fingerprint\":\"000000000000beef\",\"className\":\"java.lang.IllegalArgumentException\",\"message\":\"deflated\""), body);
+        }
+    }
+
+    @Test
+    void testLingerSendsAnIncompleteBatch() throws Exception {
+        try (var sender = sender(100, 20, null)) {
+            put(encoder -> encoder.encodeRepeat(1, 1), false);
+
+            assertNotNull(bodies.poll(5, TimeUnit.SECONDS));
+            assertEquals(1, sender.getRecords());
+        }
+    }
+
+    @Test
+    void testRetry() throws Exception {
+        status = 503;
+        try (var sender = sender(1, 0, null)) {
+            put(encoder -> encoder.encodeRepeat(1, 1), false);
+            assertNotNull(bodies.poll(5, TimeUnit.SECONDS));
+            status = 204;
+
+            assertNotNull(bodies.poll(5, TimeUnit.SECONDS)); // after 100 millis
+            awaitSent(sender, 1);
+            assertEquals(1, sender.getRetried());
+        }
+    }
+
+    @Test
+    void testSpillAndResend() throws Exception {
+        Path spillDir = Files.createTempDirectory("exceptional-spill");
+        status = 500;
+        try (var sender = sender(1, 0, spillDir)) {
+            put(encoder -> encoder.encodeRepeat(1, 1), false);
+            assertNotNull(bodies.poll(5, TimeUnit.SECONDS));
+            awaitCondition(() -> sender.getSpilled() == 1);
+            assertEquals(1, Files.list(spillDir).count());
+
+            status = 204;
+            put(encoder -> encoder.encodeRepeat(2, 1), false);
+
+            assertTrue(bodies.poll(5, TimeUnit.SECONDS).contains("\"fingerprint\":\"0000000000000002\""));
+            assertTrue(bodies.poll(5, TimeUnit.SECONDS).contains("\"fingerprint\":\"0000000000000001\"")); // spilled
+            awaitSent(sender, 2);
+            awaitCondition(() -> Files.list(spillDir).findAny().isEmpty());
+        }
+    }
+
+    @Test
+    void testNoBulkEndpointIsSpilled() throws Exception {
+        Path spillDir = Files.createTempDirectory("exceptional-spill");
+        status = 404;
+        try (var sender = sender(1, 0, spillDir)) {
+            put(encoder -> encoder.encodeRepeat(1, 1), false);
+            assertNotNull(bodies.poll(5, TimeUnit.SECONDS));
+            awaitCondition(() -> sender.getSpilled() == 1);
+
+            assertEquals(0, sender.getRetried());
+            assertEquals(0, sender.getDropped());
+        }
+    }
+
+    private HttpBatchSender sender(int batchSize, long lingerMillis, Path spillDir) {
+        URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/api/stacktraces/bulk");
+        return new HttpBatchSender(buffer, uri, batchSize, lingerMillis, spillDir == null ? 1 : 0, spillDir);
+    }
+
+    private void put(Encoding encoding, boolean compressed) throws IOException {
+        var encoder = new ThrowableEncoder();
+        int length = encoding.encode(encoder);
+        byte[] record = encoder.bytes();
+        if (compressed) {
+            assertTrue(buffer.put(Snappy.compress(record)));
+        } else {
+            assertTrue(buffer.put(record, 0, length, MultiProducerCircularByteBuffer.UNCOMPRESSED));
+        }
+    }
+
+    private static void awaitSent(HttpBatchSender sender, long count) throws Exception {
+        awaitCondition(() -> sender.getSent() == count);
+    }
+
+    private static void awaitCondition(Condition condition) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.met()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    interface Encoding {
+        int encode(ThrowableEncoder encoder);
+    }
+
+    interface Condition {
+        boolean met() throws Exception;
+    }
+}
@@ -0,0 +1,80 @@
+package com.github.shautvast.exceptional;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JfrSinkTest {
+
+    @Test
+    void testUnknownSinkIsTheDefault() {
+        System.setProperty("exceptional.sink", "jrf");
+        try {
+            assertInstanceOf(JfrSink.class, ExceptionSink.fromSystemProperties()); // no agentlib
+        } finally {
+            System.clearProperty("exceptional.sink");
+        }
+    }
+
+    @Test
+    void testThrowAtSite() throws IOException {
+        var sink = new JfrSink();
+        var site = ThrowSites.register("com/acme/Jfr", "parse", "(Ljava/lang/String;)I", 14, 42);
+        var exception = new IllegalArgumentException("not a number", new NumberFormatException());
+
+        List<RecordedEvent> events = record(() -> sink.log(exception, site, 0, 1234L, null));
+
+        assertEquals(1, events.size());
+        RecordedEvent event = events.getFirst();
+        assertEquals("com.github.shautvast.exceptional.Throw", event.getEventType().getName());
+        assertEquals(IllegalArgumentException.class.getName(), event.getClass("thrownClass").getName());
+        assertEquals(NumberFormatException.class.getName(), event.getClass("causeClass").getName());
+        assertEquals("not a number", event.getString("message"));
+        assertEquals(1234L, event.getLong("fingerprint"));
+        assertEquals("com.acme.Jfr", event.getString("siteClass"));
+        assertEquals("parse", event.getString("siteMethod"));
+        assertEquals(42, event.getInt("siteLine"));
+        assertEquals(14, event.getInt("siteOffset"));
+        assertNotNull(event.getStackTrace());
+    }
+
+    @Test
+    void testThrowWithStackTraceAndRepeat() throws IOException {
+        var sink = new JfrSink();
+        var exception = new IllegalStateException();
+
+        List<RecordedEvent> events = record(() -> {
+            sink.log(exception, null, exception.getStackTrace(), 99L, null);
+            sink.repeated(99L, 7, null);
+        });
+
+        assertEquals(2, events.size());
+        assertEquals(JfrSinkTest.class.getName(), events.get(0).getString("siteClass"));
+        assertEquals(7, events.get(1).getLong("count"));
+    }
+
+    private static List<RecordedEvent> record(Runnable logging) throws IOException {
+        Path file = Files.createTempFile("exceptional", ".jfr");
+        try (var recording = new Recording()) {
+            recording.enable("com.github.shautvast.exceptional.Throw");
+            recording.enable("com.github.shautvast.exceptional.Repeat");
+            recording.start();
+            logging.run();
+            recording.stop();
+            recording.dump(file);
+            return RecordingFile.readAllEvents(file).stream()
+                    .filter(event -> event.getEventType().getName().startsWith("com.github.shautvast.exceptional"))
+                    .toList();
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.github.shautvast.exceptional;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class Log2HistogramTest {
+
+    @Test
+    void testEmpty() {
+        var histogram = new Log2Histogram();
+
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentile(0.99));
+    }
+
+    @Test
+    void testPercentiles() {
+        var histogram = new Log2Histogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(5); // [4, 8)
+        }
+        histogram.record(1000); // [512, 1024)
+
+        assertEquals(100, histogram.count());
+        assertEquals(99 * 5 + 1000, histogram.sum());
+        assertEquals(7, histogram.percentile(0.5));
+        assertEquals(7, histogram.percentile(0.99));
+        assertEquals(1023, histogram.percentile(1));
+    }
+
+    @Test
+    void testExtremes() {
+        var histogram = new Log2Histogram();
+        histogram.record(-1);
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals(0, histogram.percentile(0.5));
+        assertEquals(Long.MAX_VALUE, histogram.percentile(1));
+    }
+}
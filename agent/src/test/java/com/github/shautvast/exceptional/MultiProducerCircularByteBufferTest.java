@@ -0,0 +1,265 @@
+package com.github.shautvast.exceptional;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class MultiProducerCircularByteBufferTest {
+
+    @Test
+    void testPutAndGet() {
+        var buffer = create(64);
+        byte[] bytes = "hello".getBytes(UTF_8);
+
+        assertTrue(buffer.put(bytes));
+        assertEquals(16, buffer.getWritePosition());
+        assertArrayEquals(bytes, buffer.get());
+        assertEquals(16, buffer.getReadPosition());
+        assertNull(buffer.get());
+    }
+
+    @Test
+    void testPartOfArrayWithFlags() {
+        var buffer = create(64);
+        byte[] bytes = "xxhelloxx".getBytes(UTF_8);
+
+        assertTrue(buffer.put(bytes, 2, 5, MultiProducerCircularByteBuffer.UNCOMPRESSED));
+        assertTrue(buffer.put("bye".getBytes(UTF_8)));
+
+        assertArrayEquals("hello".getBytes(UTF_8), buffer.get());
+        assertEquals(MultiProducerCircularByteBuffer.UNCOMPRESSED, buffer.flags());
+        assertArrayEquals("bye".getBytes(UTF_8), buffer.get());
+        assertEquals(0, buffer.flags());
+    }
+
+    @Test
+    void testReaderFlags() {
+        var memory = Arena.ofAuto().allocate(MultiProducerCircularByteBuffer.segmentSize(64), 64);
+        var buffer = new MultiProducerCircularByteBuffer(memory);
+        assertEquals(0, buffer.getReaderFlags());
+
+        buffer.setReaderFlags(MultiProducerCircularByteBuffer.PLAIN_BATCHES);
+
+        assertEquals(MultiProducerCircularByteBuffer.PLAIN_BATCHES, buffer.getReaderFlags());
+        assertEquals(MultiProducerCircularByteBuffer.PLAIN_BATCHES,
+                MultiProducerCircularByteBuffer.attach(memory).getReaderFlags()); // the reader in another process
+    }
+
+    @Test
+    void testEmptyRecordIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> create(64).put(new byte[0]));
+    }
+
+    @Test
+    void testCapacityMustBePowerOfTwo() {
+        var memory = Arena.ofAuto().allocate(MultiProducerCircularByteBuffer.METADATA_LENGTH + 100, 64);
+        assertThrows(IllegalArgumentException.class, () -> new MultiProducerCircularByteBuffer(memory));
+    }
+
+    @Test
+    void testFull() {
+        var buffer = create(64);
+        var bytes = new byte[24]; // 32 bytes with header
+
+        assertTrue(buffer.put(bytes));
+        assertTrue(buffer.put(bytes));
+        assertFalse(buffer.put(bytes));
+        assertFalse(buffer.put(new byte[100])); // never fits
+
+        buffer.get();
+        assertTrue(buffer.put(bytes));
+    }
+
+    @Test
+    void testPaddingAtWrapAround() {
+        var buffer = create(64);
+        buffer.put(new byte[40]); // 48 bytes
+        buffer.get();
+
+        // 16 bytes left before the end, this one needs 24, so it goes to the start, after 16 bytes of padding
+        byte[] bytes = "wrapping!".getBytes(UTF_8);
+        byte[] more = "around!!!".getBytes(UTF_8);
+        assertTrue(buffer.put(bytes));
+        assertEquals(48 + 16 + 24, buffer.getWritePosition());
+        assertTrue(buffer.put(more));
+
+        assertArrayEquals(bytes, buffer.get());
+        assertArrayEquals(more, buffer.get());
+        assertNull(buffer.get());
+        assertEquals(buffer.getWritePosition(), buffer.getReadPosition());
+    }
+
+    @Test
+    void testReserveAndCommit() {
+        var buffer = create(64);
+        var reservation = new MultiProducerCircularByteBuffer.Reservation();
+        byte[] bytes = "in place".getBytes(UTF_8);
+
+        assertTrue(buffer.reserve(40, reservation));
+        assertNull(buffer.get()); // not committed yet
+        MemorySegment.copy(bytes, 0, reservation.slice(), ValueLayout.JAVA_BYTE, 0, bytes.length);
+        buffer.commit(reservation, bytes.length, MultiProducerCircularByteBuffer.UNCOMPRESSED);
+
+        assertEquals(16, buffer.getWritePosition()); // the rest is given back
+        assertArrayEquals(bytes, buffer.get());
+        assertEquals(MultiProducerCircularByteBuffer.UNCOMPRESSED, buffer.flags());
+        assertNull(buffer.get());
+    }
+
+    @Test
+    void testUnusedRestOfReservationIsSkipped() {
+        var buffer = create(128);
+        var first = new MultiProducerCircularByteBuffer.Reservation();
+        var second = new MultiProducerCircularByteBuffer.Reservation();
+        byte[] bytes = "first".getBytes(UTF_8);
+
+        assertTrue(buffer.reserve(40, first));
+        assertTrue(buffer.put("second".getBytes(UTF_8))); // so the rest of the first can't be given back
+        assertTrue(buffer.reserve(8, second));
+        MemorySegment.copy(bytes, 0, first.segment(), ValueLayout.JAVA_BYTE, first.offset(), bytes.length);
+        buffer.commit(first, bytes.length, 0);
+        buffer.abort(second);
+
+        assertEquals(48 + 16 + 16, buffer.getWritePosition());
+        assertArrayEquals(bytes, buffer.get());
+        assertArrayEquals("second".getBytes(UTF_8), buffer.get());
+        assertNull(buffer.get());
+        assertEquals(buffer.getWritePosition(), buffer.getReadPosition());
+    }
+
+    @Test
+    void testUnusedRestOfReservationIsCleared() {
+        var buffer = create(128);
+        var reservation = new MultiProducerCircularByteBuffer.Reservation();
+
+        assertTrue(buffer.reserve(40, reservation));
+        reservation.slice().fill((byte) 7); // like snappy, past the length that is committed
+        buffer.commit(reservation, 4, 0);
+
+        assertArrayEquals(new byte[]{7, 7, 7, 7}, buffer.get());
+        assertNull(buffer.get()); // the rest is not taken for the header of a record
+        assertEquals(buffer.getWritePosition(), buffer.getReadPosition());
+        assertTrue(buffer.put("next".getBytes(UTF_8)));
+        assertArrayEquals("next".getBytes(UTF_8), buffer.get());
+    }
+
+    @Test
+    void testReservationAtWrapAround() {
+        var buffer = create(64);
+        buffer.put(new byte[40]);
+        buffer.get();
+        var reservation = new MultiProducerCircularByteBuffer.Reservation();
+
+        // 16 bytes left before the end, so it starts at 0, and the slice is contiguous
+        assertTrue(buffer.reserve(20, reservation));
+        assertEquals(MultiProducerCircularByteBuffer.METADATA_LENGTH + 8, reservation.offset());
+        reservation.slice().fill((byte) 7);
+        buffer.commit(reservation, 20, 0);
+
+        assertArrayEquals(new byte[]{7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7}, buffer.get());
+        assertFalse(buffer.reserve(100, reservation));
+        assertThrows(IllegalArgumentException.class, () -> buffer.reserve(0, reservation));
+    }
+
+    @Test
+    void testReadBytesAreZeroed() {
+        var memory = Arena.ofAuto().allocate(MultiProducerCircularByteBuffer.segmentSize(64), 64);
+        var buffer = new MultiProducerCircularByteBuffer(memory);
+        buffer.put("hello".getBytes(UTF_8));
+        buffer.get();
+
+        assertArrayEquals(new byte[64], memory.asSlice(MultiProducerCircularByteBuffer.METADATA_LENGTH, 64).toArray(ValueLayout.JAVA_BYTE));
+    }
+
+    @Test
+    void testMetadataForTheReader() {
+        var memory = Arena.ofAuto().allocate(MultiProducerCircularByteBuffer.segmentSize(1 << 20), 64);
+        new MultiProducerCircularByteBuffer(memory);
+
+        var header = memory.asByteBuffer();
+        assertEquals(MultiProducerCircularByteBuffer.MAGIC, header.getInt(0));
+        assertEquals(MultiProducerCircularByteBuffer.VERSION, header.getInt(4));
+        assertEquals(1 << 20, header.getLong(8));
+    }
+
+    @Test
+    void testSegmentSizeRoundsUpToPowerOfTwo() {
+        assertEquals(MultiProducerCircularByteBuffer.METADATA_LENGTH + 16, MultiProducerCircularByteBuffer.segmentSize(1));
+        assertEquals(MultiProducerCircularByteBuffer.METADATA_LENGTH + 4096, MultiProducerCircularByteBuffer.segmentSize(4096));
+        assertEquals(MultiProducerCircularByteBuffer.METADATA_LENGTH + 8192, MultiProducerCircularByteBuffer.segmentSize(4097));
+        assertThrows(IllegalArgumentException.class, () -> MultiProducerCircularByteBuffer.segmentSize(0));
+    }
+
+    @Test
+    void testLargeRecord() {
+        var buffer = create(1 << 20);
+        var bytes = new byte[200_000]; // way more than the 2-byte length prefix of the old buffer allowed
+        bytes[199_999] = 42;
+
+        assertTrue(buffer.put(bytes));
+        assertArrayEquals(bytes, buffer.get());
+    }
+
+    @Test
+    void testManyWriters() throws InterruptedException {
+        var buffer = create(4096);
+        int writers = 4;
+        int recordsPerWriter = 10_000;
+        var start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            int writer = w;
+            var thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < recordsPerWriter; i++) {
+                    // variable lengths, so that padding happens at varying positions
+                    var record = ByteBuffer.allocate(8 + i % 13).putInt(writer).putInt(i).array();
+                    while (!buffer.put(record)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+
+        int[] expected = new int[writers];
+        int read = 0;
+        while (read < writers * recordsPerWriter) {
+            byte[] record = buffer.get();
+            if (record == null) {
+                Thread.yield();
+                continue;
+            }
+            var data = ByteBuffer.wrap(record);
+            int writer = data.getInt();
+            // records of one writer come out in the order they went in
+            assertEquals(expected[writer]++, data.getInt());
+            assertEquals(8 + (expected[writer] - 1) % 13, record.length);
+            read++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(buffer.get());
+    }
+
+    private static MultiProducerCircularByteBuffer create(int capacity) {
+        return new MultiProducerCircularByteBuffer(
+                Arena.ofAuto().allocate(MultiProducerCircularByteBuffer.segmentSize(capacity), 64));
+    }
+}
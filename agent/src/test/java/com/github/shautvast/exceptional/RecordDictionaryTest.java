@@ -0,0 +1,38 @@
+package com.github.shautvast.exceptional;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.ValueLayout;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RecordDictionaryTest {
+
+    @Test
+    void testCompressAndInflate() throws Exception {
+        var encoder = new ThrowableEncoder();
+        var exception = new NumberFormatException("For input string: \"abc\"");
+        int length = encoder.encode(exception, exception.getStackTrace(), 1);
+        var target = Arena.ofAuto().allocate(length + 100L);
+        var compressor = new RecordDictionary.Compressor();
+
+        int compressed = compressor.compress(encoder.buffer(), length, target, 100, length);
+
+        assertTrue(compressed > 0 && compressed < length, "compressed " + length + " to " + compressed);
+        byte[] record = target.asSlice(100, compressed).toArray(ValueLayout.JAVA_BYTE);
+        assertArrayEquals(encoder.bytes(), RecordDictionary.inflate(new Inflater(true), record));
+        // and again, with the same compressor and target
+        assertEquals(compressed, compressor.compress(encoder.buffer(), length, target, 100, length));
+    }
+
+    @Test
+    void testDoesNotFit() {
+        var encoder = new ThrowableEncoder();
+        int length = encoder.encode(new IllegalStateException());
+        var target = Arena.ofAuto().allocate(8);
+
+        assertEquals(-1, new RecordDictionary.Compressor().compress(encoder.buffer(), length, target, 0, 8));
+    }
+}
@@ -0,0 +1,59 @@
+package com.github.shautvast.exceptional;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class RingBufferFileReaderTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testReadWhatWasWrittenToTheFile() throws IOException {
+        var file = dir.resolve("ring.bin");
+        var writer = new CircularBufferWriter(CircularBufferWriter.mapFile(file, MultiProducerCircularByteBuffer.segmentSize(4096)), false);
+        assertEquals(MultiProducerCircularByteBuffer.METADATA_LENGTH + 4096, Files.size(file));
+
+        writer.put("first".getBytes(UTF_8));
+        try (var reader = new RingBufferFileReader(file)) {
+            assertArrayEquals("first".getBytes(UTF_8), reader.poll());
+            assertNull(reader.poll());
+
+            // the writer keeps writing while the reader reads
+            writer.put("second".getBytes(UTF_8));
+            assertArrayEquals("second".getBytes(UTF_8), reader.poll());
+        }
+    }
+
+    @Test
+    void testUnreadRecordsStayInTheFile() throws IOException {
+        var file = dir.resolve("ring.bin");
+        var writer = new CircularBufferWriter(CircularBufferWriter.mapFile(file, MultiProducerCircularByteBuffer.segmentSize(4096)), false);
+        writer.put("one".getBytes(UTF_8));
+        writer.put("two".getBytes(UTF_8));
+
+        try (var reader = new RingBufferFileReader(file)) {
+            assertArrayEquals("one".getBytes(UTF_8), reader.poll());
+        }
+        // a next reader continues where the previous one stopped
+        try (var reader = new RingBufferFileReader(file)) {
+            assertArrayEquals("two".getBytes(UTF_8), reader.poll());
+            assertNull(reader.poll());
+        }
+    }
+
+    @Test
+    void testNotARingBuffer() throws IOException {
+        var file = dir.resolve("other.bin");
+        Files.write(file, new byte[MultiProducerCircularByteBuffer.METADATA_LENGTH + 4096]);
+
+        assertThrows(IOException.class, () -> new RingBufferFileReader(file));
+    }
+}
@@ -0,0 +1,40 @@
+package com.github.shautvast.exceptional;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RingBufferSinkTest {
+
+    @Test
+    void testVirtualThreadEncodesBeforeItReserves() throws InterruptedException {
+        var writer = new CircularBufferWriter(Arena.ofAuto().allocate(MultiProducerCircularByteBuffer.segmentSize(1 << 16), 64), false);
+        var sink = new RingBufferSink(writer);
+        var writePosition = new AtomicLong(-1);
+        // application code, that may park the virtual thread. Until it is done, nothing is reserved
+        var throwable = new IllegalStateException() {
+            @Override
+            public String getMessage() {
+                writePosition.set(writer.buffer().getWritePosition());
+                return "parked";
+            }
+        };
+
+        Thread.ofVirtual().start(() -> {
+            try {
+                sink.log(throwable, null, throwable.getStackTrace(), 1234L, new ExceptionLogger.Staging());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }).join();
+
+        assertEquals(0, writePosition.get());
+        assertNotNull(writer.buffer().get());
+        assertEquals(MultiProducerCircularByteBuffer.UNCOMPRESSED, writer.buffer().flags());
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.shautvast.exceptional;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StripedPoolTest {
+
+    @Test
+    void testReleasedIsReused() {
+        var pool = new StripedPool<>(4, Object::new);
+        Object first = pool.acquire();
+        pool.release(first);
+
+        assertSame(first, pool.acquire());
+    }
+
+    @Test
+    void testCreatesWhenEmptyAndDropsWhenFull() {
+        var created = new AtomicInteger();
+        var pool = new StripedPool<>(2, () -> "value " + created.incrementAndGet());
+        List<String> taken = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            taken.add(pool.acquire());
+        }
+        taken.forEach(pool::release); // one too many
+
+        assertEquals(3, created.get());
+        assertEquals(3, Set.copyOf(List.of(pool.acquire(), pool.acquire(), pool.acquire())).size());
+        assertEquals(4, created.get()); // only two came back
+    }
+
+    @Test
+    void testNeverSharedBetweenVirtualThreads() throws InterruptedException {
+        var pool = new StripedPool<>(4, Object::new);
+        Set<Object> inUse = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+        var shared = new AtomicInteger();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < 10_000; i++) {
+                executor.submit(() -> {
+                    Object value = pool.acquire();
+                    if (!inUse.add(value)) {
+                        shared.incrementAndGet();
+                    }
+                    Thread.yield(); // unmount, another virtual thread may run on this carrier
+                    inUse.remove(value);
+                    pool.release(value);
+                });
+            }
+        }
+
+        assertEquals(0, shared.get());
+    }
+}
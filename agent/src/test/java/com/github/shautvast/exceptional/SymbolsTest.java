@@ -0,0 +1,50 @@
+package com.github.shautvast.exceptional;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SymbolsTest {
+
+    @Test
+    void testIdOnlyWhenPublished() {
+        var symbols = new Symbols(10);
+
+        var symbol = symbols.claim("com.acme.Main");
+
+        assertNotNull(symbol);
+        assertEquals(0, symbols.id("com.acme.Main"));
+        symbols.publish(symbol);
+        assertEquals(symbol.id, symbols.id("com.acme.Main"));
+    }
+
+    @Test
+    void testClaimedOnce() {
+        var symbols = new Symbols(10);
+
+        assertNotNull(symbols.claim("main"));
+        assertNull(symbols.claim("main"));
+    }
+
+    @Test
+    void testAbandonedCanBeClaimedAgain() {
+        var symbols = new Symbols(10);
+        var first = symbols.claim("main");
+
+        symbols.abandon(first);
+        var second = symbols.claim("main");
+
+        assertNotNull(second);
+        assertNotEquals(first.id, second.id); // the reader may have seen the first one after all
+    }
+
+    @Test
+    void testMaxSize() {
+        var symbols = new Symbols(2);
+
+        assertNotNull(symbols.claim("a"));
+        assertNotNull(symbols.claim("b"));
+        assertNull(symbols.claim("c"));
+        assertEquals(0, symbols.id("c"));
+    }
+}
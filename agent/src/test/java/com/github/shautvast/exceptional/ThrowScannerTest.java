@@ -0,0 +1,96 @@
+package com.github.shautvast.exceptional;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ThrowScannerTest {
+
+    @Test
+    void testFindsTheThrowingMethod() throws IOException {
+        BitSet throwing = ThrowScanner.throwingMethods(bytes(Throwing.class));
+
+        // <init>, quiet, throwing
+        assertEquals(1, throwing.cardinality());
+        assertTrue(throwing.get(2));
+    }
+
+    @Test
+    void testNothingToDo() throws IOException {
+        assertTrue(ThrowScanner.throwingMethods(bytes(Quiet.class)).isEmpty());
+        assertTrue(ThrowScanner.throwingMethods(bytes(Runnable.class)).isEmpty()); // only an abstract method
+    }
+
+    @Test
+    void testOrCatching() throws IOException {
+        BitSet methods = ThrowScanner.throwingMethods(bytes(Catching.class), true);
+
+        // <init>, catching, throwing
+        assertEquals(2, methods.cardinality());
+        assertTrue(methods.get(1));
+        assertTrue(methods.get(2));
+        assertEquals(1, ThrowScanner.throwingMethods(bytes(Catching.class)).cardinality());
+    }
+
+    @Test
+    void testNotAClass() {
+        assertThrows(IllegalArgumentException.class, () -> ThrowScanner.throwingMethods(new byte[]{1, 2, 3}));
+    }
+
+    @Test
+    void testTruncated() throws IOException {
+        byte[] bytes = bytes(Throwing.class);
+        byte[] truncated = Arrays.copyOf(bytes, bytes.length / 2);
+
+        assertThrows(IllegalArgumentException.class, () -> ThrowScanner.throwingMethods(truncated));
+    }
+
+    private static byte[] bytes(Class<?> type) throws IOException {
+        try (InputStream in = type.getResourceAsStream("/" + type.getName().replace('.', '/') + ".class")) {
+            return in.readAllBytes();
+        }
+    }
+
+    @SuppressWarnings("unused")
+    static class Throwing {
+        long quiet(long value) {
+            return value * 31 + 7;
+        }
+
+        void throwing(String value) {
+            if (value == null) {
+                throw new IllegalArgumentException("no value");
+            }
+        }
+    }
+
+    @SuppressWarnings("unused")
+    static class Catching {
+        int catching(String value) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        void throwing() {
+            throw new IllegalStateException();
+        }
+    }
+
+    @SuppressWarnings("unused")
+    static class Quiet {
+        static final double PI = 3.14;
+        static final long BIG = 123456789012L;
+
+        String quiet(String value) {
+            return value + PI + BIG;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.github.shautvast.exceptional;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ThrowSitesTest {
+
+    @Test
+    void testLongestMatchingNameWins() {
+        var properties = new Properties();
+        properties.setProperty("exceptional.sampling.com.acme", "10");
+        properties.setProperty("exceptional.sampling.com.acme.parser", "1000");
+        properties.setProperty("exceptional.sampling.com.acme.parser.Lexer", "1");
+        properties.setProperty("exceptional.ratelimit", "5");
+        var perName = ThrowSites.readSamplingPerName(properties);
+
+        assertEquals(1000, ThrowSites.sampling("com.acme.parser.Parser", perName, 1));
+        assertEquals(1000, ThrowSites.sampling("com.acme.parser.sub.Parser", perName, 1));
+        assertEquals(1, ThrowSites.sampling("com.acme.parser.Lexer", perName, 1));
+        assertEquals(1, ThrowSites.sampling("com.acme.parser.Lexer$Inner", perName, 1));
+        assertEquals(10, ThrowSites.sampling("com.acme.Main", perName, 1));
+        assertEquals(10, ThrowSites.sampling("com.acme.parserx.Main", perName, 1)); // not a package boundary
+        assertEquals(3, ThrowSites.sampling("org.other.Main", perName, 3));
+    }
+
+    @Test
+    void testInvalidRateIsIgnored() {
+        var properties = new Properties();
+        properties.setProperty("exceptional.sampling.com.acme", "lots");
+
+        assertTrue(ThrowSites.readSamplingPerName(properties).isEmpty());
+    }
+
+    @Test
+    void testSitesWithoutSamplingAreNotChecked() {
+        // no sampling or rate limit configured for the tests
+        var site = ThrowSites.register("com/acme/Main", "main", "([Ljava/lang/String;)V", 12, 7);
+
+        assertFalse(site.checked);
+        assertSame(site, ThrowSites.lookup(site.id));
+        assertEquals("com.acme.Main", site.className);
+        assertEquals(7, site.lineNumber);
+    }
+
+    @Test
+    void testIdIsStable() {
+        var site = ThrowSites.register("com/acme/Stable", "run", "()V", 4, 10);
+
+        // same site in another JVM, or retransformed
+        assertSame(site, ThrowSites.register("com/acme/Stable", "run", "()V", 4, 10));
+        assertEquals(("com.acme.Stable.run()V@4").hashCode() & Integer.MAX_VALUE, site.id);
+        assertNotEquals(site.id, ThrowSites.register("com/acme/Stable", "run", "()V", 9, 11).id);
+    }
+
+    @Test
+    void testCatchSiteIsNotTheThrowSite() {
+        var thrown = ThrowSites.register("com/acme/Handler", "run", "()V", 6, 3);
+        var caught = ThrowSites.registerHandler("com/acme/Handler", "run", "()V", 6, 3);
+
+        assertNotEquals(thrown.id, caught.id);
+        assertTrue(caught.handler);
+        assertFalse(caught.checked);
+        assertSame(caught, ThrowSites.registerHandler("com/acme/Handler", "run", "()V", 6, 3));
+    }
+
+    @Test
+    void testDefineSitesFromAnEarlierRun() {
+        var registered = ThrowSites.register("com/acme/Taken", "run", "()V", 0, 1);
+        var cached = ThrowSites.site(4242, "com/acme/Cached", "run", "()V", 0, 1, false);
+        var conflicting = ThrowSites.site(registered.id, "com/acme/Cached", "run", "()V", 8, 2, false);
+
+        assertFalse(ThrowSites.define(List.of(cached, conflicting)));
+        assertNull(ThrowSites.lookup(4242)); // none of them
+        assertTrue(ThrowSites.define(List.of(cached)));
+        assertSame(cached, ThrowSites.lookup(4242));
+    }
+}
@@ -0,0 +1,339 @@
+package com.github.shautvast.exceptional;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ThrowableEncoderTest {
+
+    @Test
+    void testRoundTrip() {
+        var throwable = new IllegalStateException("outer", new IOException("inner"));
+        throwable.addSuppressed(new RuntimeException("suppressed"));
+
+        var decoded = decode(new ThrowableEncoder(), throwable);
+
+        assertEquals("java.lang.IllegalStateException", decoded.className());
+        assertEquals("outer", decoded.message());
+        assertEquals(throwable.getStackTrace().length, decoded.stackTrace().size());
+        var frame = decoded.stackTrace().getFirst();
+        assertEquals(ThrowableEncoderTest.class.getName(), frame.className());
+        assertEquals("testRoundTrip", frame.methodName());
+        assertEquals("ThrowableEncoderTest.java", frame.fileName());
+        assertEquals(throwable.getStackTrace()[0].getLineNumber(), frame.lineNumber());
+
+        assertEquals(1, decoded.suppressed().size());
+        assertEquals("suppressed", decoded.suppressed().getFirst().message());
+        assertEquals("java.io.IOException", decoded.cause().className());
+        assertEquals("inner", decoded.cause().message());
+        assertNull(decoded.cause().cause());
+    }
+
+    @Test
+    void testNullMessageAndNegativeLineNumber() {
+        var throwable = new Throwable();
+        throwable.setStackTrace(new StackTraceElement[]{
+                new StackTraceElement("Main", "call", null, -2)});
+
+        var decoded = decode(new ThrowableEncoder(), throwable);
+
+        assertNull(decoded.message());
+        var frame = decoded.stackTrace().getFirst();
+        assertNull(frame.fileName());
+        assertEquals(-2, frame.lineNumber());
+    }
+
+    @Test
+    void testNonAscii() {
+        var message = "héllo wörld € 😀";
+        var throwable = new Throwable(message);
+
+        var decoded = decode(new ThrowableEncoder(), throwable);
+
+        assertEquals(message, decoded.message());
+        assertEquals(message.getBytes(UTF_8).length, ThrowableEncoder.utf8Length(message));
+    }
+
+    @Test
+    void testBufferGrows() {
+        var encoder = new ThrowableEncoder(8);
+        var message = "x".repeat(10_000);
+
+        var decoded = decode(encoder, new Throwable(message));
+
+        assertEquals(message, decoded.message());
+    }
+
+    @Test
+    void testCyclicCauseIsCutOff() {
+        var first = new Exception("first");
+        var second = new Exception("second", first);
+        first.initCause(second);
+
+        var decoded = decode(new ThrowableEncoder(), first);
+
+        // every throwable once, the cause of second is first again
+        assertEquals("second", decoded.cause().message());
+        assertNull(decoded.cause().cause());
+    }
+
+    @Test
+    void testSuppressedWithTheOuterAsCauseAreWrittenOnce() {
+        var outer = new Exception("outer");
+        for (int i = 0; i < 2; i++) {
+            outer.addSuppressed(new Exception("suppressed " + i, outer));
+        }
+
+        var decoded = decode(new ThrowableEncoder(), outer);
+
+        assertEquals(2, decoded.suppressed().size());
+        assertNull(decoded.suppressed().get(0).cause());
+        assertNull(decoded.suppressed().get(1).cause());
+    }
+
+    @Test
+    void testWideTreeStopsAtMaxThrowables() {
+        // 2^11 - 1 different throwables, 10 levels deep
+        var root = fanOut(10);
+        var encoder = new ThrowableEncoder(null, null, new ThrowableEncoder.Limits(8, 32, 32, 16));
+
+        assertEquals(16, count(decode(encoder, root)));
+    }
+
+    private static Exception fanOut(int depth) {
+        var exception = new Exception("level " + depth, depth > 0 ? fanOut(depth - 1) : null);
+        if (depth > 0) {
+            exception.addSuppressed(fanOut(depth - 1));
+        }
+        return exception;
+    }
+
+    private static int count(ThrowableDecoder.DecodedThrowable throwable) {
+        int count = 1;
+        for (var suppressed : throwable.suppressed()) {
+            count += count(suppressed);
+        }
+        return throwable.cause() == null ? count : count + count(throwable.cause());
+    }
+
+    @Test
+    void testFingerprint() {
+        var throwable = new Throwable();
+        var encoder = new ThrowableEncoder();
+        encoder.encode(throwable);
+
+        var record = (ThrowableDecoder.ThrowableRecord) ThrowableDecoder.decode(encoder.bytes());
+
+        assertEquals(Fingerprint.of(throwable, throwable.getStackTrace()), record.fingerprint());
+    }
+
+    @Test
+    void testRepeat() {
+        var encoder = new ThrowableEncoder();
+        encoder.encodeRepeat(-42L, 5_000_000_000L);
+
+        var record = (ThrowableDecoder.RepeatRecord) ThrowableDecoder.decode(encoder.bytes());
+
+        assertEquals(-42L, record.fingerprint());
+        assertEquals(5_000_000_000L, record.count());
+    }
+
+    @Test
+    void testSite() {
+        var site = ThrowSites.site(77, "com/acme/Main", "parse", "(Ljava/lang/String;)I", 130, -1, false);
+        var encoder = new ThrowableEncoder();
+        encoder.encodeSite(site);
+
+        var record = (ThrowableDecoder.SiteRecord) ThrowableDecoder.decode(encoder.bytes());
+
+        assertEquals(new ThrowableDecoder.SiteRecord(77, "com.acme.Main", "parse", "(Ljava/lang/String;)I", 130, -1), record);
+    }
+
+    @Test
+    void testSummary() {
+        var site = ThrowSites.site(5, "com/acme/Main", "parse", "()V", 12, 17, false);
+        var encoder = new ThrowableEncoder();
+        encoder.encodeSummary("java.net.ConnectException", site, 300, 1000);
+
+        var record = (ThrowableDecoder.SummaryRecord) ThrowableDecoder.decode(encoder.bytes());
+
+        assertEquals(new ThrowableDecoder.SummaryRecord("java.net.ConnectException", 300, 1000,
+                new ThrowableDecoder.SiteRecord(5, "com.acme.Main", "parse", "()V", 12, 17)), record);
+        var json = new StringBuilder();
+        JsonRecords.append(json, record);
+        assertEquals("{\"className\":\"java.net.ConnectException\",\"count\":300,\"millis\":1000,"
+                + "\"site\":{\"id\":5,\"className\":\"com.acme.Main\",\"methodName\":\"parse\",\"descriptor\":\"()V\","
+                + "\"offset\":12,\"lineNumber\":17}}", json.toString());
+
+        encoder.encodeSummary(null, null, 7, 1000);
+        assertEquals(new ThrowableDecoder.SummaryRecord(null, 7, 1000, null), ThrowableDecoder.decode(encoder.bytes()));
+    }
+
+    @Test
+    void testThrowableAtSite() {
+        var site = ThrowSites.site(300, "com/acme/Main", "parse", "()V", 0, 1, false);
+        var callers = StackWalker.getInstance().walk(frames -> frames.limit(2).toArray(StackWalker.StackFrame[]::new));
+        var throwable = new IllegalArgumentException("bad");
+        var encoder = new ThrowableEncoder();
+        encoder.encode(throwable, site, callers, 1, 42L);
+
+        var record = (ThrowableDecoder.SiteThrowableRecord) ThrowableDecoder.decode(encoder.bytes());
+
+        assertEquals(42L, record.fingerprint());
+        assertEquals(300, record.site());
+        assertEquals("java.lang.IllegalArgumentException", record.className());
+        assertEquals("bad", record.message());
+        assertEquals(1, record.callers().size()); // only count are written
+        var caller = record.callers().getFirst();
+        assertEquals(ThrowableEncoderTest.class.getName(), caller.className());
+        assertEquals("testThrowableAtSite", caller.methodName());
+        assertEquals(callers[0].getLineNumber(), caller.lineNumber());
+    }
+
+    @Test
+    void testSymbols() {
+        var symbols = new Symbols(1000);
+        var encoder = new ThrowableEncoder(symbols);
+        var throwable = new IllegalStateException("message");
+        encoder.encode(throwable);
+        byte[] inline = encoder.bytes();
+
+        encoder.encodeNewSymbols();
+        var definitions = (ThrowableDecoder.SymbolsRecord) ThrowableDecoder.decode(encoder.bytes());
+        encoder.newSymbolsWritten(true);
+        encoder.encode(throwable);
+        byte[] withSymbols = encoder.bytes();
+
+        assertTrue(definitions.symbols().containsValue("java.lang.IllegalStateException"));
+        assertTrue(definitions.symbols().containsValue("testSymbols"));
+        assertTrue(withSymbols.length < inline.length);
+        assertEquals(ThrowableDecoder.decode(inline), ThrowableDecoder.decode(withSymbols, definitions.symbols()));
+    }
+
+    @Test
+    void testSymbolsThatWereNotWrittenStayInline() {
+        var symbols = new Symbols(1000);
+        var encoder = new ThrowableEncoder(symbols);
+        var throwable = new Throwable();
+        int length = encoder.encode(throwable);
+
+        assertTrue(encoder.encodeNewSymbols() > 0);
+        encoder.newSymbolsWritten(false);
+
+        assertEquals(0, symbols.size());
+        assertEquals(length, encoder.encode(throwable));
+    }
+
+    @Test
+    void testDefineNewSymbols() {
+        var encoder = ThrowableEncoder.withSymbols();
+        var throwable = new IllegalStateException("message");
+        int inline = encoder.encode(throwable);
+
+        encoder.defineNewSymbols();
+
+        assertTrue(encoder.encode(throwable) < inline);
+    }
+
+    @Test
+    void testLimits() {
+        var throwable = new IllegalStateException("outer");
+        throwable.setStackTrace(frames("Outer", 10));
+        for (int i = 0; i < 5; i++) {
+            throwable.addSuppressed(new RuntimeException("suppressed " + i));
+        }
+        var encoder = new ThrowableEncoder(null, null, new ThrowableEncoder.Limits(4, 1, 2, 64));
+
+        var decoded = decode(encoder, throwable);
+
+        assertEquals(4, decoded.stackTrace().size());
+        assertEquals("Outer", decoded.stackTrace().getFirst().className());
+        assertEquals(6, decoded.omittedFrames());
+        assertEquals(2, decoded.suppressed().size());
+        assertTrue(decoded.suppressed().getFirst().suppressed().isEmpty());
+    }
+
+    @Test
+    void testCommonFramesOfCause() {
+        var cause = new IOException("inner");
+        var throwable = new IllegalStateException("outer", cause);
+
+        var decoded = decode(new ThrowableEncoder(), throwable);
+
+        // created on different lines of the same method, the rest is the same
+        assertEquals(1, decoded.cause().stackTrace().size());
+        assertEquals(cause.getStackTrace().length - 1, decoded.cause().commonFrames());
+        assertEquals(0, decoded.commonFrames());
+        assertEquals(throwable.getStackTrace().length, decoded.stackTrace().size());
+    }
+
+    @Test
+    void testSharedBottom() {
+        var traces = new Traces(100);
+        var encoder = new ThrowableEncoder(null, traces, ThrowableEncoder.Limits.DEFAULT);
+        StackTraceElement[] bottom = frames("Pool", 40);
+        var first = new IllegalStateException("first");
+        first.setStackTrace(concat(frames("First", 3), bottom));
+        var second = new IllegalArgumentException("second");
+        second.setStackTrace(concat(frames("Second", 5), bottom));
+
+        encoder.encode(first);
+        byte[] firstRecord = encoder.bytes();
+        encoder.encodeNewTrace();
+        var trace = (ThrowableDecoder.TraceRecord) ThrowableDecoder.decode(encoder.bytes());
+        encoder.newTraceWritten(true);
+        encoder.encode(second);
+        byte[] secondRecord = encoder.bytes();
+
+        assertEquals(32, trace.frames().size()); // the largest power of two
+        assertEquals(1, traces.size());
+        var decoded = ((ThrowableDecoder.ThrowableRecord) ThrowableDecoder.decode(secondRecord, Map.of(),
+                Map.of(trace.trace(), trace.frames()))).throwable();
+        assertEquals(45, decoded.stackTrace().size());
+        assertEquals(Arrays.asList(second.getStackTrace()), decoded.stackTrace().stream()
+                .map(frame -> new StackTraceElement(frame.className(), frame.methodName(), frame.fileName(), frame.lineNumber()))
+                .toList());
+        assertTrue(secondRecord.length < firstRecord.length);
+    }
+
+    @Test
+    void testTraceThatWasNotWrittenIsNotShared() {
+        var traces = new Traces(100);
+        var encoder = new ThrowableEncoder(null, traces, ThrowableEncoder.Limits.DEFAULT);
+        var throwable = new Throwable();
+        throwable.setStackTrace(frames("Main", 20));
+        int length = encoder.encode(throwable);
+
+        assertTrue(encoder.encodeNewTrace() > 0);
+        encoder.newTraceWritten(false);
+
+        assertEquals(length, encoder.encode(throwable));
+        assertTrue(encoder.encodeNewTrace() > 0); // claimed again
+    }
+
+    private static StackTraceElement[] frames(String className, int count) {
+        var frames = new StackTraceElement[count];
+        for (int i = 0; i < count; i++) {
+            frames[i] = new StackTraceElement(className, "method" + i, className + ".java", i + 1);
+        }
+        return frames;
+    }
+
+    private static StackTraceElement[] concat(StackTraceElement[] top, StackTraceElement[] bottom) {
+        StackTraceElement[] frames = Arrays.copyOf(top, top.length + bottom.length);
+        System.arraycopy(bottom, 0, frames, top.length, bottom.length);
+        return frames;
+    }
+
+    private static ThrowableDecoder.DecodedThrowable decode(ThrowableEncoder encoder, Throwable throwable) {
+        encoder.encode(throwable);
+        var record = ThrowableDecoder.decode(encoder.bytes());
+        return ((ThrowableDecoder.ThrowableRecord) record).throwable();
+    }
+}
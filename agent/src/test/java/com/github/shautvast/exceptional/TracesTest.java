@@ -0,0 +1,64 @@
+package com.github.shautvast.exceptional;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TracesTest {
+
+    private static final StackTraceElement[] STACK_TRACE = {
+            new StackTraceElement("Main", "run", "Main.java", 3),
+            new StackTraceElement("Main", "main", "Main.java", 1)};
+
+    @Test
+    void testOnlyWhenPublished() {
+        var traces = new Traces(10);
+
+        var trace = traces.claim(42, STACK_TRACE, 1);
+
+        assertNotNull(trace);
+        assertNull(traces.get(42));
+        traces.publish(trace);
+        assertSame(trace, traces.get(42));
+        assertEquals("main", trace.frames[0].getMethodName()); // the bottom one
+    }
+
+    @Test
+    void testClaimedOnce() {
+        var traces = new Traces(10);
+
+        assertNotNull(traces.claim(42, STACK_TRACE, 1));
+        assertNull(traces.claim(42, STACK_TRACE, 1));
+    }
+
+    @Test
+    void testAbandonedCanBeClaimedAgain() {
+        var traces = new Traces(10);
+        var first = traces.claim(42, STACK_TRACE, 1);
+
+        traces.abandon(first);
+        var second = traces.claim(42, STACK_TRACE, 1);
+
+        assertNotNull(second);
+        assertNotEquals(first.id, second.id);
+        assertEquals(1, traces.size());
+    }
+
+    @Test
+    void testMaxSize() {
+        var traces = new Traces(1);
+
+        assertNotNull(traces.claim(1, STACK_TRACE, 1));
+        assertNull(traces.claim(2, STACK_TRACE, 1));
+    }
+
+    @Test
+    void testIsBottomOf() {
+        var traces = new Traces(10);
+        var trace = traces.claim(42, STACK_TRACE, 1);
+
+        assertTrue(trace.isBottomOf(STACK_TRACE));
+        assertFalse(trace.isBottomOf(new StackTraceElement[]{new StackTraceElement("Main", "main", "Main.java", 2)}));
+        assertFalse(trace.isBottomOf(new StackTraceElement[0]));
+    }
+}
@@ -0,0 +1,78 @@
+package com.github.shautvast.exceptional;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransformCacheTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testPutAndGet() throws IOException {
+        var cache = new TransformCache(dir, 1024 * 1024, "1.0");
+        String key = cache.key("com/acme/Main", new byte[]{1, 2, 3});
+
+        assertNull(cache.get(key));
+        cache.put(key, new byte[]{4, 5, 6});
+
+        assertArrayEquals(new byte[]{4, 5, 6}, cache.get(key));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    void testKeyDependsOnEverything() throws IOException {
+        var cache = new TransformCache(dir, 1024 * 1024, "1.0");
+        var otherVersion = new TransformCache(dir, 1024 * 1024, "1.1");
+        byte[] bytes = {1, 2, 3};
+        String key = cache.key("com/acme/Main", bytes);
+
+        assertEquals(key, cache.key("com/acme/Main", bytes.clone()));
+        assertNotEquals(key, cache.key("com/acme/Other", bytes));
+        assertNotEquals(key, cache.key("com/acme/Main", new byte[]{1, 2, 4}));
+        assertNotEquals(key, otherVersion.key("com/acme/Main", bytes));
+    }
+
+    @Test
+    void testEvictsLeastRecentlyUsed() throws IOException {
+        var cache = new TransformCache(dir, 2500, "1.0");
+        String first = cache.key("First", new byte[0]);
+        String second = cache.key("Second", new byte[0]);
+        cache.put(first, new byte[1000]);
+        cache.put(second, new byte[1000]);
+        // make the first one the oldest, whatever the resolution of the file times
+        Files.setLastModifiedTime(dir.resolve(first + ".class"), FileTime.fromMillis(0));
+
+        cache.put(cache.key("Third", new byte[0]), new byte[1000]); // 3000 > 2500, evict until 1875
+
+        assertNull(cache.get(first));
+        assertEquals(1, count(dir));
+    }
+
+    @Test
+    void testEvictsAtStartup() throws IOException {
+        var cache = new TransformCache(dir, 10_000, "1.0");
+        for (int i = 0; i < 5; i++) {
+            cache.put(cache.key("Class" + i, new byte[0]), new byte[1000]);
+        }
+
+        new TransformCache(dir, 2000, "1.0");
+
+        assertEquals(2, count(dir));
+    }
+
+    private static long count(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+}
@@ -0,0 +1 @@
+DROP TABLE stacktrace_repeats
@@ -0,0 +1,5 @@
+create table stacktrace_repeats
+(
+    fingerprint varchar PRIMARY KEY,
+    occurrences bigint not null
+)
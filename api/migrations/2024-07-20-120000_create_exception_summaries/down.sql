@@ -0,0 +1 @@
+DROP TABLE exception_summaries
@@ -0,0 +1,8 @@
+create table exception_summaries
+(
+    id          INT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+    class_name  varchar,
+    site        varchar,
+    occurrences bigint not null,
+    millis      bigint not null
+)
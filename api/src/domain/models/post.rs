@@ -24,6 +24,7 @@ pub struct SimpleStacktraceModel {
 pub enum StacktraceError {
     InternalServerError,
     NotFound(i32),
+    BadRequest(String),
     InfraError(InfraError),
 }
 
@@ -34,6 +35,10 @@ impl IntoResponse for StacktraceError {
                 StatusCode::NOT_FOUND,
                 format!("StacktraceModel with id {} has not been found", id),
             ),
+            Self::BadRequest(message) => (
+                StatusCode::BAD_REQUEST,
+                format!("Bad request: {}", message),
+            ),
             Self::InfraError(db_error) => (
                 StatusCode::INTERNAL_SERVER_ERROR,
                 format!("Internal server error: {}", db_error),
@@ -0,0 +1,70 @@
+use std::io::Read;
+
+use axum::body::Bytes;
+use axum::extract::State;
+use axum::http::{header, HeaderMap, StatusCode};
+use flate2::read::GzDecoder;
+
+use crate::AppState;
+use crate::domain::models::post::StacktraceError;
+use crate::handlers::stacktraces::CreateBulkRequest;
+use crate::infra::repositories::stacktrace_repository;
+
+// the agent and the rust lib send at most 1 MB of json per batch, this is for a gzip bomb
+const MAX_UNCOMPRESSED: u64 = 16 * 1024 * 1024;
+
+/// A batch of stacktraces, repeats and storm summaries, from the java http sink or the rust lib, in one request and
+/// one transaction. The body is {"stacktraces":[...],"repeats":[...],"summaries":[...]}, optionally gzipped
+/// (Content-Encoding: gzip). The stacktraces are stored as they are, like create_stacktrace does
+pub async fn create_bulk(
+    State(state): State<AppState>,
+    headers: HeaderMap,
+    body: Bytes,
+) -> Result<StatusCode, StacktraceError> {
+    let gzipped = headers
+        .get(header::CONTENT_ENCODING)
+        .is_some_and(|encoding| encoding.as_bytes().eq_ignore_ascii_case(b"gzip"));
+    let json = if gzipped {
+        let mut json = Vec::with_capacity(body.len() * 4);
+        GzDecoder::new(&body[..])
+            .take(MAX_UNCOMPRESSED + 1)
+            .read_to_end(&mut json)
+            .map_err(|e| StacktraceError::BadRequest(e.to_string()))?;
+        if json.len() as u64 > MAX_UNCOMPRESSED {
+            return Err(StacktraceError::BadRequest("batch too large".to_string()));
+        }
+        json
+    } else {
+        body.to_vec()
+    };
+    let request: CreateBulkRequest = serde_json::from_slice(&json)
+        .map_err(|e| StacktraceError::BadRequest(e.to_string()))?;
+
+    let stacktraces = request
+        .stacktraces
+        .into_iter()
+        .map(|stacktrace| stacktrace_repository::NewPostDb {
+            stacktrace: stacktrace.get().to_string(),
+        })
+        .collect();
+    let repeats = request
+        .repeats
+        .into_iter()
+        .map(|repeat| (repeat.fingerprint, repeat.count))
+        .collect();
+    let summaries = request
+        .summaries
+        .into_iter()
+        .map(|summary| stacktrace_repository::NewSummaryDb {
+            class_name: summary.class_name,
+            site: summary.site.map(|site| site.get().to_string()),
+            occurrences: summary.count,
+            millis: summary.millis,
+        })
+        .collect();
+    stacktrace_repository::insert_bulk(&state.pool, stacktraces, repeats, summaries)
+        .await
+        .map_err(StacktraceError::InfraError)?;
+
+    Ok(StatusCode::NO_CONTENT)
+}
@@ -0,0 +1,21 @@
+use axum::extract::State;
+use axum::http::StatusCode;
+use axum::Json;
+
+use crate::AppState;
+use crate::domain::models::post::StacktraceError;
+use crate::handlers::stacktraces::CreateRepeatsRequest;
+use crate::infra::repositories::stacktrace_repository;
+
+/// The agent sends the full stacktrace only once in a while, after that only the number of times
+/// it was thrown again
+pub async fn create_repeats(
+    State(state): State<AppState>,
+    Json(request): Json<CreateRepeatsRequest>,
+) -> Result<StatusCode, StacktraceError> {
+    stacktrace_repository::add_repeats(&state.pool, request.fingerprint, request.count)
+        .await
+        .map_err(StacktraceError::InfraError)?;
+
+    Ok(StatusCode::NO_CONTENT)
+}
@@ -1,9 +1,13 @@
 use serde::{Deserialize, Serialize};
 
+pub use create_bulk::create_bulk;
+pub use create_repeats::create_repeats;
 pub use create_stacktrace::create_stacktrace;
 pub use get_stacktrace::get_stacktrace;
 pub use list_stacktraces::list_stacktraces;
 
+mod create_bulk;
+mod create_repeats;
 mod create_stacktrace;
 mod get_stacktrace;
 mod list_stacktraces;
@@ -13,6 +17,34 @@ pub struct CreatePostRequest {
     stacktrace: String,
 }
 
+#[derive(Debug, Deserialize)]
+pub struct CreateRepeatsRequest {
+    fingerprint: String,
+    count: i64,
+}
+
+/// the throws of a class at a site that were only counted, during an exception storm
+#[derive(Debug, Deserialize)]
+#[serde(rename_all = "camelCase")]
+pub struct CreateSummaryRequest {
+    class_name: Option<String>,
+    count: i64,
+    millis: i64,
+    /// kept as json text, like the stacktraces
+    site: Option<Box<serde_json::value::RawValue>>,
+}
+
+/// the stacktraces are kept as json text, they are stored as they are
+#[derive(Debug, Deserialize)]
+pub struct CreateBulkRequest {
+    #[serde(default)]
+    stacktraces: Vec<Box<serde_json::value::RawValue>>,
+    #[serde(default)]
+    repeats: Vec<CreateRepeatsRequest>,
+    #[serde(default)]
+    summaries: Vec<CreateSummaryRequest>,
+}
+
 #[derive(Debug, Serialize, Deserialize)]
 pub struct StacktraceResponse {
     id: i32,
@@ -4,3 +4,20 @@ diesel::table! {
         stacktrace -> Varchar,
     }
 }
+
+diesel::table! {
+    stacktrace_repeats (fingerprint) {
+        fingerprint -> Varchar,
+        occurrences -> BigInt,
+    }
+}
+
+diesel::table! {
+    exception_summaries (id) {
+        id -> Integer,
+        class_name -> Nullable<Varchar>,
+        site -> Nullable<Varchar>,
+        occurrences -> BigInt,
+        millis -> BigInt,
+    }
+}
@@ -1,11 +1,14 @@
+use std::collections::HashMap;
+
+use diesel::upsert::excluded;
 use diesel::{
-    ExpressionMethods, Insertable, QueryDsl, Queryable, RunQueryDsl,
+    Connection, ExpressionMethods, Insertable, QueryDsl, Queryable, RunQueryDsl,
     Selectable, SelectableHelper,
 };
 use serde::{Deserialize, Serialize};
 
 use crate::domain::models::post::{SimpleStacktraceModel};
-use crate::infra::db::schema::stacktraces;
+use crate::infra::db::schema::{exception_summaries, stacktrace_repeats, stacktraces};
 use crate::infra::errors::{adapt_infra_error, InfraError};
 
 #[derive(Serialize, Queryable, Selectable)]
@@ -22,6 +25,25 @@ pub struct NewPostDb {
     pub stacktrace: String,
 }
 
+#[derive(Insertable)]
+#[diesel(table_name = stacktrace_repeats)]
+pub struct NewRepeatDb {
+    pub fingerprint: String,
+    pub occurrences: i64,
+}
+
+#[derive(Insertable)]
+#[diesel(table_name = exception_summaries)]
+pub struct NewSummaryDb {
+    pub class_name: Option<String>,
+    pub site: Option<String>,
+    pub occurrences: i64,
+    pub millis: i64,
+}
+
+// postgres takes at most 65535 bind parameters per statement
+const ROWS_PER_INSERT: usize = 10_000;
+
 pub async fn insert(
     pool: &deadpool_diesel::postgres::Pool,
     new_post: NewPostDb,
@@ -41,6 +63,82 @@ pub async fn insert(
     Ok(adapt_stacktracedb_to_stacktracemodel(res))
 }
 
+/// adds count to the occurrences of the stacktrace with this fingerprint
+pub async fn add_repeats(
+    pool: &deadpool_diesel::postgres::Pool,
+    fingerprint: String,
+    count: i64,
+) -> Result<(), InfraError> {
+    let conn = pool.get().await.map_err(adapt_infra_error)?;
+    conn.interact(move |conn| {
+        diesel::insert_into(stacktrace_repeats::table)
+            .values((
+                stacktrace_repeats::fingerprint.eq(fingerprint),
+                stacktrace_repeats::occurrences.eq(count),
+            ))
+            .on_conflict(stacktrace_repeats::fingerprint)
+            .do_update()
+            .set(stacktrace_repeats::occurrences.eq(stacktrace_repeats::occurrences + count))
+            .execute(conn)
+    })
+    .await
+    .map_err(adapt_infra_error)?
+    .map_err(adapt_infra_error)?;
+
+    Ok(())
+}
+
+/// inserts a batch of stacktraces and summaries, and adds a batch of repeats, with multi-row inserts in one
+/// transaction
+pub async fn insert_bulk(
+    pool: &deadpool_diesel::postgres::Pool,
+    new_posts: Vec<NewPostDb>,
+    repeats: Vec<(String, i64)>,
+    new_summaries: Vec<NewSummaryDb>,
+) -> Result<(), InfraError> {
+    // one row per fingerprint, an upsert can't update the same row twice
+    let mut occurrences: HashMap<String, i64> = HashMap::new();
+    for (fingerprint, count) in repeats {
+        *occurrences.entry(fingerprint).or_insert(0) += count;
+    }
+    let new_repeats: Vec<NewRepeatDb> = occurrences
+        .into_iter()
+        .map(|(fingerprint, occurrences)| NewRepeatDb { fingerprint, occurrences })
+        .collect();
+
+    let conn = pool.get().await.map_err(adapt_infra_error)?;
+    conn.interact(move |conn| {
+        conn.transaction(|conn| {
+            for rows in new_posts.chunks(ROWS_PER_INSERT) {
+                diesel::insert_into(stacktraces::table)
+                    .values(rows)
+                    .execute(conn)?;
+            }
+            for rows in new_repeats.chunks(ROWS_PER_INSERT) {
+                diesel::insert_into(stacktrace_repeats::table)
+                    .values(rows)
+                    .on_conflict(stacktrace_repeats::fingerprint)
+                    .do_update()
+                    .set(stacktrace_repeats::occurrences.eq(
+                        stacktrace_repeats::occurrences + excluded(stacktrace_repeats::occurrences),
+                    ))
+                    .execute(conn)?;
+            }
+            for rows in new_summaries.chunks(ROWS_PER_INSERT) {
+                diesel::insert_into(exception_summaries::table)
+                    .values(rows)
+                    .execute(conn)?;
+            }
+            Ok::<_, diesel::result::Error>(())
+        })
+    })
+    .await
+    .map_err(adapt_infra_error)?
+    .map_err(adapt_infra_error)?;
+
+    Ok(())
+}
+
 pub async fn get(
     pool: &deadpool_diesel::postgres::Pool,
     id: i32,
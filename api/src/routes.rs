@@ -3,7 +3,7 @@ use axum::response::IntoResponse;
 use axum::routing::{get, post};
 use axum::Router;
 
-use crate::handlers::stacktraces::{create_stacktrace, get_stacktrace, list_stacktraces};
+use crate::handlers::stacktraces::{create_bulk, create_repeats, create_stacktrace, get_stacktrace, list_stacktraces};
 use crate::AppState;
 
 pub fn app_router(state: AppState) -> Router<AppState> {
@@ -28,6 +28,8 @@ fn stacktraces_routes(state: AppState) -> Router<AppState> {
     Router::new()
         .route("/", post(create_stacktrace))
         .route("/", get(list_stacktraces))
+        .route("/repeats", post(create_repeats))
+        .route("/bulk", post(create_bulk))
         .route("/:id", get(get_stacktrace))
         .with_state(state)
 }
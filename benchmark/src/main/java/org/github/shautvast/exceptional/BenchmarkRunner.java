@@ -0,0 +1,57 @@
+package org.github.shautvast.exceptional;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Runs all benchmarks with the GC profiler (allocation rate per operation). The single-threaded stages are
+ * run once, the contended benchmarks are repeated for 1, 2, 4 .. -DmaxThreads producer threads
+ * (default: number of cpus).
+ * <p>
+ * Results are written as json to the directory in -Dresults (default: results).
+ * Any arguments are passed to JMH as-is, in which case only that run is done.
+ */
+public class BenchmarkRunner {
+
+    private static final List<Class<?>> CONTENDED = List.of(ContendedLogBenchmark.class, ContendedRingBufferBenchmark.class);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        Path results = Path.of(System.getProperty("results", "results"));
+        Files.createDirectories(results);
+        int maxThreads = Integer.getInteger("maxThreads", Runtime.getRuntime().availableProcessors());
+
+        ChainedOptionsBuilder singleThreaded = options(results.resolve("jmh-single-threaded.json")).threads(1);
+        CONTENDED.forEach(benchmark -> singleThreaded.exclude(benchmark.getName()));
+        run(singleThreaded);
+
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            ChainedOptionsBuilder contended = options(results.resolve("jmh-contended-" + threads + "-threads.json"))
+                    .threads(threads);
+            CONTENDED.forEach(benchmark -> contended.include(benchmark.getName()));
+            run(contended);
+        }
+    }
+
+    private static ChainedOptionsBuilder options(Path resultFile) {
+        return new OptionsBuilder()
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(resultFile.toString());
+    }
+
+    private static void run(ChainedOptionsBuilder options) throws RunnerException {
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,141 @@
+package org.github.shautvast.exceptional;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.xerial.snappy.Snappy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compares the choices of -Dexceptional.compression (none, record, batch, dictionary) on the records of an
+ * {@link ExceptionCorpus}: the compression ratio, and the cpu time per record, measured as thread cpu time.
+ * <p>
+ * record and dictionary compress every record on its own, as the throwing thread does. batch gzips batches of 500
+ * records, as the reader does (it gzips their json, which is bigger but compresses as well), so that cpu time is
+ * not spent by the application. The dictionary is the one in the agent jar, or the file in -Ddictionary, eg. a new
+ * one from the {@link DictionaryTrainer}. Use another seed than it was trained on.
+ * <p>
+ * System properties: records (default 10000), seed (2), rounds (20, the best one counts) and results (the directory
+ * for results/compression.json, default results).
+ */
+public class CompressionBenchmark {
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final int BATCH = 500;
+
+    public static void main(String[] args) throws IOException {
+        Path results = Path.of(System.getProperty("results", "results"));
+        Files.createDirectories(results);
+        List<byte[]> records = new ExceptionCorpus(Long.getLong("seed", 2)).records(Integer.getInteger("records", 10000));
+        int rounds = Integer.getInteger("rounds", 20);
+        byte[] dictionary = dictionary();
+        long bytes = records.stream().mapToLong(record -> record.length).sum();
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("records", records.size());
+        report.put("averageRecordLength", bytes / records.size());
+        report.put("dictionaryLength", dictionary.length);
+        Map<String, Codec> codecs = new LinkedHashMap<>();
+        codecs.put("none", batch -> bytes(batch));
+        codecs.put("record", CompressionBenchmark::snappy);
+        codecs.put("batch", CompressionBenchmark::gzip);
+        codecs.put("dictionary", batch -> deflate(batch, dictionary));
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        System.out.printf("%-12s %8s %14s%n", "compression", "ratio", "cpu ns/record");
+        for (var codec : codecs.entrySet()) {
+            long compressed = 0;
+            long bestNanos = Long.MAX_VALUE;
+            for (int round = 0; round < rounds; round++) {
+                long start = threads.getCurrentThreadCpuTime();
+                compressed = 0;
+                for (int from = 0; from < records.size(); from += BATCH) {
+                    compressed += codec.getValue().compress(records.subList(from, Math.min(records.size(), from + BATCH)));
+                }
+                bestNanos = Math.min(bestNanos, threads.getCurrentThreadCpuTime() - start);
+            }
+            double ratio = (double) bytes / compressed;
+            long nanosPerRecord = codec.getKey().equals("none") ? 0 : bestNanos / records.size();
+            System.out.printf("%-12s %8.2f %14d%n", codec.getKey(), ratio, nanosPerRecord);
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("ratio", ratio);
+            result.put("bytesPerRecord", compressed / records.size());
+            result.put("cpuNanosPerRecord", nanosPerRecord);
+            report.put(codec.getKey(), result);
+        }
+        Path file = results.resolve("compression.json");
+        JSON.writerWithDefaultPrettyPrinter().writeValue(file.toFile(), report);
+        System.out.println("report written to " + file);
+    }
+
+    private static byte[] dictionary() throws IOException {
+        String file = System.getProperty("dictionary");
+        if (file != null) {
+            return Files.readAllBytes(Path.of(file));
+        }
+        try (InputStream in = CompressionBenchmark.class.getResourceAsStream("/com/github/shautvast/exceptional/records.dict")) {
+            if (in == null) {
+                throw new IllegalStateException("records.dict not found, put the agent on the classpath or set -Ddictionary");
+            }
+            return in.readAllBytes();
+        }
+    }
+
+    private static long bytes(List<byte[]> batch) {
+        return batch.stream().mapToLong(record -> record.length).sum();
+    }
+
+    private static long snappy(List<byte[]> batch) throws IOException {
+        long length = 0;
+        byte[] out = new byte[0];
+        for (byte[] record : batch) {
+            if (out.length < Snappy.maxCompressedLength(record.length)) {
+                out = new byte[Snappy.maxCompressedLength(record.length)];
+            }
+            length += Snappy.rawCompress(record, 0, record.length, out, 0);
+        }
+        return length;
+    }
+
+    private static long gzip(List<byte[]> batch) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new GZIPOutputStream(bytes)) {
+            for (byte[] record : batch) {
+                out.write(record);
+            }
+        }
+        return bytes.size();
+    }
+
+    // like RecordDictionary.Compressor in the agent
+    private static long deflate(List<byte[]> batch, byte[] dictionary) {
+        var deflater = new Deflater(Deflater.BEST_SPEED, true);
+        long length = 0;
+        byte[] out = new byte[4096];
+        for (byte[] record : batch) {
+            deflater.reset();
+            deflater.setDictionary(dictionary);
+            deflater.setInput(record);
+            deflater.finish();
+            while (!deflater.finished()) {
+                length += deflater.deflate(out);
+            }
+        }
+        deflater.end();
+        return length;
+    }
+
+    private interface Codec {
+        long compress(List<byte[]> batch) throws IOException;
+    }
+}
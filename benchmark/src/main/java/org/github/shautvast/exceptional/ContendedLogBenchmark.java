@@ -0,0 +1,86 @@
+package org.github.shautvast.exceptional;
+
+import com.github.shautvast.exceptional.CircularBufferWriter;
+import com.github.shautvast.exceptional.ExceptionLogger;
+import com.github.shautvast.exceptional.RingBufferFileReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The multi-producer part of the log path. Run it with an increasing number of threads (see BenchmarkRunner)
+ * to see how the writes into the shared ringbuffer behave under contention.
+ * <p>
+ * Both ringbuffers are files, so no native lib is needed: bufferWriterPut writes to one of its own,
+ * log to the one of the logger, and a platform thread drains the two.
+ * Every log is sent in full: without -Dexceptional.aggregation.size=0 the same throwable over and over would only
+ * measure a hit in the aggregation cache.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "--enable-native-access=ALL-UNNAMED",
+        "-Dexceptional.buffer.file=" + ContendedLogBenchmark.RING_FILE, "-Dexceptional.buffer.size=67108864",
+        "-Dexceptional.aggregation.size=0", "-Dexceptional.storm=0"})
+@State(Scope.Benchmark)
+public class ContendedLogBenchmark {
+
+    static final String RING_FILE = "/tmp/exceptional-contended-%p.ring";
+    private static final String PUT_FILE = "/tmp/exceptional-contended-put-%p.ring";
+
+    @Param({"1", "16", "64", "256"})
+    int stackDepth;
+
+    private CircularBufferWriter writer;
+    private RingBufferFileReader logReader;
+    private RingBufferFileReader putReader;
+    private Thread drainer;
+    private volatile boolean draining;
+    private Throwable throwable;
+    private byte[] payload;
+
+    @Setup
+    public void setup() throws IOException {
+        ExceptionLogger.log(new Throwable("creates the ringbuffer file"));
+        logReader = new RingBufferFileReader(ofThisProcess(RING_FILE));
+        writer = CircularBufferWriter.onFile(ofThisProcess(PUT_FILE), 1 << 26);
+        putReader = new RingBufferFileReader(ofThisProcess(PUT_FILE));
+        draining = true;
+        drainer = Thread.ofPlatform().daemon().name("drainer").start(() -> {
+            while (draining) {
+                if (logReader.poll() == null & putReader.poll() == null) {
+                    LockSupport.parkNanos(100_000);
+                }
+            }
+        });
+        throwable = Throwables.atDepth(stackDepth);
+        payload = new byte[256];
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        draining = false;
+        drainer.join();
+        writer.close();
+        putReader.close();
+        logReader.close();
+    }
+
+    @Benchmark
+    public void bufferWriterPut() {
+        writer.put(payload);
+    }
+
+    @Benchmark
+    public void log() {
+        ExceptionLogger.log(throwable);
+    }
+
+    private static Path ofThisProcess(String file) {
+        return Path.of(file.replace("%p", String.valueOf(ProcessHandle.current().pid())));
+    }
+}
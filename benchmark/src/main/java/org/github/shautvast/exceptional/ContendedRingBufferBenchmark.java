@@ -0,0 +1,56 @@
+package org.github.shautvast.exceptional;
+
+import com.github.shautvast.exceptional.MultiProducerCircularByteBuffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.foreign.Arena;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Concurrent writers on the multi-producer ringbuffer, without the native library: a java reader thread drains it.
+ * Run it with an increasing number of threads (see BenchmarkRunner) to see what the CAS on the write position costs.
+ * A put that returns false found the buffer full, ie. the reader could not keep up.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview"})
+@State(Scope.Benchmark)
+public class ContendedRingBufferBenchmark {
+
+    @Param({"64", "256", "1024"})
+    int payloadSize;
+
+    private MultiProducerCircularByteBuffer buffer;
+    private byte[] payload;
+    private final AtomicBoolean active = new AtomicBoolean();
+    private Thread reader;
+
+    @Setup
+    public void setup() {
+        buffer = new MultiProducerCircularByteBuffer(
+                Arena.ofAuto().allocate(MultiProducerCircularByteBuffer.segmentSize(32768), 64));
+        payload = new byte[payloadSize];
+        active.set(true);
+        reader = Thread.ofPlatform().daemon().start(() -> {
+            while (active.get()) {
+                if (buffer.get() == null) {
+                    Thread.onSpinWait();
+                }
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        active.set(false);
+        reader.join();
+    }
+
+    @Benchmark
+    public boolean put() {
+        return buffer.put(payload);
+    }
+}
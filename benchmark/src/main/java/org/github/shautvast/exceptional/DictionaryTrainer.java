@@ -0,0 +1,118 @@
+package org.github.shautvast.exceptional;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Trains the preset dictionary of -Dexceptional.compression=dictionary (see RecordDictionary in the agent) on the
+ * records of an {@link ExceptionCorpus}.
+ * <p>
+ * Like the cover algorithm of zstd: a dictionary is made of segments of the records, and a segment is worth as much
+ * as the number of records that contain its 8 byte substrings. The best segment is taken, its substrings are worth
+ * nothing after that, and so on until the dictionary is full. Deflate finds a match nearby cheaper than one far
+ * back, so the best segments go last.
+ * <p>
+ * System properties: size (default 4096 bytes, at most 32K, the window of deflate), samples (5000), seed (1) and
+ * output (agent/src/main/resources/com/github/shautvast/exceptional/records.dict). Compare the result with the
+ * {@link CompressionBenchmark}, on another seed. A new dictionary needs a new VERSION of the ringbuffer.
+ */
+public class DictionaryTrainer {
+
+    private static final int K = 8;
+    private static final int SEGMENT = 64;
+
+    public static void main(String[] args) throws IOException {
+        int size = Math.min(32 * 1024, Integer.getInteger("size", 4096));
+        int samples = Integer.getInteger("samples", 5000);
+        long seed = Long.getLong("seed", 1);
+        Path output = Path.of(System.getProperty("output",
+                "agent/src/main/resources/com/github/shautvast/exceptional/records.dict"));
+
+        byte[] dictionary = train(new ExceptionCorpus(seed).records(samples), size);
+        Files.createDirectories(output.toAbsolutePath().getParent());
+        Files.write(output, dictionary);
+        System.out.println("wrote " + dictionary.length + " bytes to " + output);
+    }
+
+    static byte[] train(List<byte[]> records, int size) {
+        // the substrings of each record as ids, and in how many records each one occurs
+        Map<Long, Integer> ids = new HashMap<>();
+        int[][] kmers = new int[records.size()][];
+        int[] frequencies = new int[16];
+        for (int r = 0; r < records.size(); r++) {
+            byte[] record = records.get(r);
+            kmers[r] = new int[Math.max(0, record.length - K + 1)];
+            Set<Integer> seen = new HashSet<>();
+            for (int i = 0; i < kmers[r].length; i++) {
+                int id = ids.computeIfAbsent(kmer(record, i), kmer -> ids.size());
+                kmers[r][i] = id;
+                if (id >= frequencies.length) {
+                    frequencies = Arrays.copyOf(frequencies, frequencies.length * 2);
+                }
+                if (seen.add(id)) {
+                    frequencies[id]++;
+                }
+            }
+        }
+
+        List<byte[]> segments = new ArrayList<>();
+        int length = 0;
+        while (length < size) {
+            int bestRecord = -1;
+            int bestStart = 0;
+            int bestWindow = 0;
+            long bestScore = 0;
+            for (int r = 0; r < kmers.length; r++) {
+                int[] ofRecord = kmers[r];
+                int window = Math.min(SEGMENT - K + 1, ofRecord.length);
+                long score = 0;
+                for (int i = 0; i < ofRecord.length; i++) {
+                    score += frequencies[ofRecord[i]];
+                    if (i >= window) {
+                        score -= frequencies[ofRecord[i - window]];
+                    }
+                    if (i >= window - 1 && score > bestScore) {
+                        bestScore = score;
+                        bestRecord = r;
+                        bestStart = i - window + 1;
+                        bestWindow = window;
+                    }
+                }
+            }
+            if (bestRecord < 0) {
+                break; // everything is covered
+            }
+            for (int i = bestStart; i < bestStart + bestWindow; i++) {
+                frequencies[kmers[bestRecord][i]] = 0;
+            }
+            int segmentLength = Math.min(bestWindow + K - 1, size - length);
+            segments.add(Arrays.copyOfRange(records.get(bestRecord), bestStart, bestStart + segmentLength));
+            length += segmentLength;
+        }
+
+        byte[] dictionary = new byte[length];
+        int position = 0;
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            byte[] segment = segments.get(i);
+            System.arraycopy(segment, 0, dictionary, position, segment.length);
+            position += segment.length;
+        }
+        return dictionary;
+    }
+
+    private static long kmer(byte[] bytes, int offset) {
+        long kmer = 0;
+        for (int i = 0; i < K; i++) {
+            kmer = kmer << 8 | (bytes[offset + i] & 0xff);
+        }
+        return kmer;
+    }
+}
@@ -0,0 +1,184 @@
+package org.github.shautvast.exceptional;
+
+import com.github.shautvast.exceptional.ThrowableEncoder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.ValueLayout;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Encoded records of exceptions like applications throw them: thrown by the JDK itself (parsing numbers and dates,
+ * collections, casts, files, class loading) or by application code, with and without causes.
+ * Unlike {@link Throwables}, the frames, messages and class names vary, so that compressing them is realistic.
+ * <p>
+ * The frames of the JDK that threw are kept, the frames of this class are replaced by a random number of made up
+ * application frames, and those by the bottom of a thread pool, fork join pool or virtual thread. The application
+ * frames come from a fixed set per corpus, like the code of one application. Every corpus has its own names, so a
+ * dictionary that is trained on them learns the JDK, not the application.
+ * <p>
+ * The same seed gives the same exceptions in the same order. The records are encoded as the agent writes them, with
+ * symbols and traces (see ThrowableEncoder.withSymbols): a name or the bottom of a stacktrace is inline in the first
+ * record that has it, later ones refer to it by id. So what is compressed is mostly the messages, the line numbers and
+ * the names that are new.
+ */
+final class ExceptionCorpus {
+
+    private static final String[] WORDS = {"order", "customer", "invoice", "account", "session", "payment", "user",
+            "product", "shipment", "token"};
+    private static final String[] ROLES = {"Service", "Controller", "Repository", "Handler", "Mapper", "Client"};
+    private static final String[] METHODS = {"get", "find", "save", "handle", "process", "validate", "load", "apply"};
+    private static final int APPLICATION_FRAMES = 500;
+
+    private final Random random;
+    private final ThrowableEncoder encoder = ThrowableEncoder.withSymbols();
+    private final List<StackTraceElement[]> bottoms = new ArrayList<>();
+    private final StackTraceElement[] application;
+
+    ExceptionCorpus(long seed) {
+        this.random = new Random(seed);
+        this.application = new StackTraceElement[APPLICATION_FRAMES];
+        for (int i = 0; i < application.length; i++) {
+            application[i] = applicationFrame();
+        }
+        Callable<StackTraceElement[]> bottom = () -> jdkFrames(new Throwable().getStackTrace(), true);
+        try (var pool = Executors.newFixedThreadPool(1); var virtual = Executors.newVirtualThreadPerTaskExecutor()) {
+            bottoms.add(pool.submit(bottom).get());
+            bottoms.add(ForkJoinPool.commonPool().submit(bottom).get());
+            bottoms.add(virtual.submit(bottom).get());
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return count encoded records
+     */
+    List<byte[]> records(int count) {
+        List<byte[]> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = encoder.encode(next());
+            records.add(encoder.buffer().asSlice(0, length).toArray(ValueLayout.JAVA_BYTE));
+            encoder.defineNewSymbols();
+        }
+        return records;
+    }
+
+    Throwable next() {
+        Throwable throwable = thrown(random.nextInt(14));
+        StackTraceElement[] bottom = bottoms.get(random.nextInt(bottoms.size()));
+        StackTraceElement[] application = applicationFrames(1 + random.nextInt(30));
+        for (Throwable t = throwable; t != null; t = t.getCause()) {
+            List<StackTraceElement> frames = new ArrayList<>(List.of(jdkFrames(t.getStackTrace(), false)));
+            // a cause is thrown further up, in the same stack
+            frames.addAll(List.of(application).subList(t == throwable ? 0 : 1, application.length));
+            frames.addAll(List.of(bottom));
+            t.setStackTrace(frames.toArray(StackTraceElement[]::new));
+        }
+        return throwable;
+    }
+
+    private StackTraceElement[] applicationFrames(int depth) {
+        StackTraceElement[] frames = new StackTraceElement[depth];
+        for (int i = 0; i < depth; i++) {
+            frames[i] = application[random.nextInt(application.length)];
+        }
+        return frames;
+    }
+
+    private StackTraceElement applicationFrame() {
+        // every application has its own names, the dictionary shouldn't learn them
+        String word = word(4 + random.nextInt(6));
+        String name = Character.toUpperCase(word.charAt(0)) + word.substring(1) + ROLES[random.nextInt(ROLES.length)];
+        return new StackTraceElement("com." + word(3 + random.nextInt(4)) + "." + word + "." + name,
+                METHODS[random.nextInt(METHODS.length)] + name.substring(0, word.length()),
+                name + ".java", 20 + random.nextInt(400));
+    }
+
+    private String word(int length) {
+        char[] letters = new char[length];
+        for (int i = 0; i < length; i++) {
+            letters[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(letters);
+    }
+
+    // the frames above (top) or below the first frame of this class
+    private static StackTraceElement[] jdkFrames(StackTraceElement[] stackTrace, boolean bottom) {
+        int own = 0;
+        while (own < stackTrace.length && !stackTrace[own].getClassName().startsWith(ExceptionCorpus.class.getName())) {
+            own++;
+        }
+        if (!bottom) {
+            return Arrays.copyOf(stackTrace, own);
+        }
+        int below = own;
+        while (below < stackTrace.length && stackTrace[below].getClassName().startsWith(ExceptionCorpus.class.getName())) {
+            below++;
+        }
+        return Arrays.copyOfRange(stackTrace, below, stackTrace.length);
+    }
+
+    private Throwable thrown(int kind) {
+        String word = WORDS[random.nextInt(WORDS.length)];
+        int id = random.nextInt(100_000);
+        try {
+            switch (kind) {
+                case 0 -> Integer.parseInt(word + id);
+                case 1 -> {
+                    Map<String, String> map = Map.of();
+                    map.get(word).length();
+                }
+                case 2 -> {
+                    int[] values = new int[id % 10];
+                    values[id % 10 + 1] = 1;
+                }
+                case 3 -> List.of(word).get(id % 5 + 1);
+                case 4 -> List.of(word).add(word);
+                case 5 -> {
+                    Object value = id;
+                    String ignored = (String) value;
+                }
+                case 6 -> Files.readAllBytes(Path.of("/var/data", word, id + ".json"));
+                case 7 -> LocalDate.parse(word + "-" + id);
+                case 8 -> {
+                    try {
+                        URI.create("http://" + word + ":" + id + "/a b");
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalStateException("could not connect to the " + word + " service", e);
+                    }
+                }
+                case 9 -> {
+                    int zero = id - id;
+                    int ignored = id / zero;
+                }
+                case 10 -> Class.forName("com.acme." + word + ".Handler" + id % 10);
+                case 11 -> throw new IllegalArgumentException("no " + word + " with id " + id);
+                case 12 -> throw new UnsupportedOperationException(word + " is read only");
+                default -> {
+                    try {
+                        Long.parseLong("");
+                    } catch (NumberFormatException e) {
+                        throw new RuntimeException("could not load " + word + " " + id,
+                                new UncheckedIOException(new IOException("connection reset", e)));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            return e;
+        }
+        throw new IllegalStateException("did not throw: " + kind);
+    }
+}
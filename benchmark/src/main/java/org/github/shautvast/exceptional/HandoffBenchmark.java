@@ -0,0 +1,60 @@
+package org.github.shautvast.exceptional;
+
+import com.github.shautvast.exceptional.MultiProducerCircularByteBuffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per record cost of the hand-off to the native side, versus the batch size: one record is written per operation,
+ * and every batchSize records there is one downcall, after which the buffer is drained.
+ * <p>
+ * The downcall is getpid from libc, to measure the FFI transition and not what the rust lib does with the records
+ * (that depends on the http endpoint being up). The buffer is drained by the java reference reader.
+ * Batch size 1 is the old situation: one downcall per exception.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "--enable-native-access=ALL-UNNAMED"})
+@State(Scope.Thread)
+public class HandoffBenchmark {
+
+    @Param({"1", "4", "16", "64"})
+    int batchSize;
+
+    private MultiProducerCircularByteBuffer buffer;
+    private MethodHandle downcall;
+    private byte[] payload;
+    private int pending;
+
+    @Setup
+    public void setup() {
+        buffer = new MultiProducerCircularByteBuffer(
+                Arena.ofAuto().allocate(MultiProducerCircularByteBuffer.segmentSize(32768), 64));
+        Linker linker = Linker.nativeLinker();
+        downcall = linker.downcallHandle(linker.defaultLookup().find("getpid").orElseThrow(),
+                FunctionDescriptor.of(ValueLayout.JAVA_INT));
+        payload = new byte[256]; // about the size of a compressed record
+    }
+
+    @Benchmark
+    public int putAndSignal() throws Throwable {
+        buffer.put(payload);
+        if (++pending < batchSize) {
+            return 0;
+        }
+        pending = 0;
+        int pid = (int) downcall.invokeExact();
+        while (buffer.get() != null) {
+            // drain, like the rust lib does
+        }
+        return pid;
+    }
+}
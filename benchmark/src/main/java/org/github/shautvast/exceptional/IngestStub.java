@@ -0,0 +1,143 @@
+package org.github.shautvast.exceptional;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Stands in for the api in a load run: accepts what the rust lib (/api/stacktraces, /api/stacktraces/repeats)
+ * and the java http sink (/api/stacktraces/bulk) post, and only counts it. Nothing is stored.
+ * <p>
+ * For every stacktrace with a message from {@link LoadWorkload} the time from the throw to here is recorded.
+ * That includes the batching, so the linger of the sink is in it.
+ */
+final class IngestStub implements AutoCloseable {
+
+    private static final Pattern THROWN_AT = Pattern.compile("\"message\":\"" + Pattern.quote(LoadWorkload.MESSAGE_PREFIX) + "(\\d+)\"");
+    private static final Pattern COUNT = Pattern.compile("\"count\":(\\d+)");
+
+    private final HttpServer server;
+    private final Latencies latencies = new Latencies();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong stacktraces = new AtomicLong();
+    private final AtomicLong repeated = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile long firstReceived;
+    private volatile long lastReceived = System.nanoTime();
+
+    IngestStub(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/api/stacktraces", this::handle);
+        server.start();
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        long received = ChronoUnit.MICROS.between(Instant.EPOCH, Instant.now());
+        String json;
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = in.readAllBytes();
+            bytes.addAndGet(body.length);
+            boolean gzipped = "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+            json = gzipped ? new String(new GZIPInputStream(new ByteArrayInputStream(body)).readAllBytes(), UTF_8)
+                    : new String(body, UTF_8);
+        }
+        // the bulk body is {"stacktraces":[...],"repeats":[...],"summaries":[...]}, the summaries are not counted
+        int repeats = exchange.getRequestURI().getPath().endsWith("/repeats") ? 0 : json.lastIndexOf("\"repeats\":[");
+        if (repeats < 0) {
+            repeats = json.length();
+        }
+        int summaries = json.lastIndexOf("\"summaries\":[");
+        if (summaries < repeats) {
+            summaries = json.length();
+        }
+        countStacktraces(json.substring(0, repeats), received);
+        countRepeats(json.substring(repeats, summaries));
+        lastReceived = System.nanoTime();
+        if (requests.getAndIncrement() == 0) {
+            firstReceived = lastReceived;
+        }
+        exchange.sendResponseHeaders(204, -1);
+        exchange.close();
+    }
+
+    private void countStacktraces(String json, long received) {
+        // one per throwable, so causes and suppressed ones would count too, the workload has none
+        Matcher thrownAt = THROWN_AT.matcher(json);
+        long count = 0;
+        synchronized (latencies) {
+            while (thrownAt.find()) {
+                latencies.record(TimeUnit.MICROSECONDS.toNanos(received - Long.parseLong(thrownAt.group(1))));
+                count++;
+            }
+        }
+        stacktraces.addAndGet(count);
+    }
+
+    private void countRepeats(String json) {
+        Matcher counts = COUNT.matcher(json);
+        while (counts.find()) {
+            repeated.addAndGet(Long.parseLong(counts.group(1)));
+        }
+    }
+
+    /**
+     * Waits until nothing has come in for the given time
+     */
+    void awaitQuiet(long quietMillis, long maxMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxMillis);
+        while (System.nanoTime() - lastReceived < TimeUnit.MILLISECONDS.toNanos(quietMillis) && System.nanoTime() < deadline) {
+            Thread.sleep(100);
+        }
+    }
+
+    /**
+     * @return nanos from the first request to the last
+     */
+    long receivingNanos() {
+        return lastReceived - firstReceived;
+    }
+
+    long requests() {
+        return requests.get();
+    }
+
+    long stacktraces() {
+        return stacktraces.get();
+    }
+
+    long repeated() {
+        return repeated.get();
+    }
+
+    long bytes() {
+        return bytes.get();
+    }
+
+    Latencies latencies() {
+        return latencies;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,48 @@
+package org.github.shautvast.exceptional;
+
+import java.util.Arrays;
+
+/**
+ * All recorded latencies in nanos, for exact percentiles. A load run records at most some millions, that fits.
+ * Not thread safe, one per thread and merge them after.
+ */
+final class Latencies {
+
+    private long[] values = new long[1024];
+    private int count;
+    private boolean sorted = true;
+
+    void record(long nanos) {
+        if (count == values.length) {
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+        values[count++] = nanos;
+        sorted = false;
+    }
+
+    void addAll(Latencies other) {
+        for (int i = 0; i < other.count; i++) {
+            record(other.values[i]);
+        }
+    }
+
+    int count() {
+        return count;
+    }
+
+    /**
+     * @param percentile eg. 99.9
+     * @return the latency in nanos that this percentage of the values does not exceed, 0 when there are none
+     */
+    long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        if (!sorted) {
+            Arrays.sort(values, 0, count);
+            sorted = true;
+        }
+        int index = (int) Math.ceil(percentile / 100 * count) - 1;
+        return values[Math.clamp(index, 0, count - 1)];
+    }
+}
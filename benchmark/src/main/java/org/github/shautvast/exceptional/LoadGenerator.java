@@ -0,0 +1,198 @@
+package org.github.shautvast.exceptional;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * End-to-end load run: the {@link LoadWorkload} is started in a JVM without the agent and then in one with it,
+ * with the same settings. The instrumented one sends what it throws, through the agent, the ringbuffer and
+ * the sink, to an {@link IngestStub} in this JVM.
+ * <p>
+ * Reported: the throughput and request latency (p50, p99, p999) of both runs, and the difference, which is the
+ * overhead of the agent on the application. For the ingest: the number of throws that arrived, the throughput,
+ * the latency from throw to ingest, and the throws that never arrived.
+ * <p>
+ * System properties:
+ * <ul>
+ *     <li>rate (default 10000), threads (4), depth (20), throwRatio (1), warmup (5 seconds), duration (30 seconds):
+ *     see LoadWorkload</li>
+ *     <li>jvmArgs: extra options for both JVMs, eg. -Xmx1g</li>
+ *     <li>agent: the agent jar (default agent/target/exceptional-agent-1.0-SNAPSHOT.jar)</li>
+ *     <li>port: of the ingest stand-in (default 3000, the rust lib only posts there)</li>
+ *     <li>label: for the report file (default snapshot), eg. the release</li>
+ *     <li>results: the directory for the report (default results)</li>
+ * </ul>
+ * The exceptional.* properties and agentlib are passed on to the instrumented JVM. Without agentlib the http sink is
+ * used. Unless set otherwise, aggregation and the storm detector are off (so every throw is sent in full and has a
+ * latency) and metrics are on.
+ * <p>
+ * The report is written as json to results/load-[label].json
+ */
+public class LoadGenerator {
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final Map<String, String> WORKLOAD_DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        WORKLOAD_DEFAULTS.put("rate", "10000");
+        WORKLOAD_DEFAULTS.put("threads", "4");
+        WORKLOAD_DEFAULTS.put("depth", "20");
+        WORKLOAD_DEFAULTS.put("throwRatio", "1");
+        WORKLOAD_DEFAULTS.put("warmup", "5");
+        WORKLOAD_DEFAULTS.put("duration", "30");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path results = Path.of(System.getProperty("results", "results"));
+        Files.createDirectories(results);
+        String label = System.getProperty("label", "snapshot");
+        int port = Integer.getInteger("port", 3000);
+        Path agent = Path.of(System.getProperty("agent", "agent/target/exceptional-agent-1.0-SNAPSHOT.jar"));
+        if (!Files.isRegularFile(agent)) {
+            throw new IllegalArgumentException("agent jar not found: " + agent.toAbsolutePath() + ", set -Dagent");
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("label", label);
+        Map<String, String> workload = new LinkedHashMap<>();
+        WORKLOAD_DEFAULTS.forEach((name, value) -> workload.put(name, System.getProperty(name, value)));
+        Map<String, Object> config = new LinkedHashMap<>(workload);
+        config.put("jvmArgs", System.getProperty("jvmArgs"));
+        report.put("config", config);
+
+        System.out.println("# baseline, without the agent");
+        Map<String, Object> baseline = run(workload, List.of());
+        report.put("baseline", baseline);
+
+        Map<String, Object> instrumented;
+        try (var ingest = new IngestStub(port)) {
+            List<String> agentOptions = agentOptions(agent, ingest.port());
+            config.put("agentOptions", agentOptions);
+            System.out.println("# instrumented: " + String.join(" ", agentOptions));
+            instrumented = run(workload, agentOptions);
+            report.put("instrumented", instrumented);
+
+            // the last batches are sent when the JVM exits
+            ingest.awaitQuiet(2000, 60_000);
+            report.put("ingest", ingestReport(ingest, (long) instrumented.get("thrownTotal")));
+        }
+        report.put("overhead", overhead(baseline, instrumented));
+
+        Path file = results.resolve("load-" + label + ".json");
+        String json = JSON.writerWithDefaultPrettyPrinter().writeValueAsString(report);
+        Files.writeString(file, json);
+        System.out.println(json);
+        System.out.println("# written to " + file);
+    }
+
+    private static List<String> agentOptions(Path agent, int port) {
+        List<String> options = new ArrayList<>();
+        options.add("-javaagent:" + agent.toAbsolutePath());
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("exceptional.aggregation.size", "0");
+        properties.put("exceptional.storm", "0");
+        properties.put("exceptional.metrics", "true");
+        if (System.getProperty("agentlib") == null) {
+            properties.put("exceptional.sink", "http");
+            properties.put("exceptional.http.url", "http://localhost:" + port + "/api/stacktraces/bulk");
+        }
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("exceptional.") || name.equals("agentlib")) {
+                properties.put(name, System.getProperty(name));
+            }
+        }
+        properties.forEach((name, value) -> options.add("-D" + name + "=" + value));
+        return options;
+    }
+
+    // starts the workload in a new JVM, and returns what it printed after RESULT
+    private static Map<String, Object> run(Map<String, String> workload, List<String> agentOptions) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.add("--enable-preview");
+        command.add("--enable-native-access=ALL-UNNAMED");
+        String jvmArgs = System.getProperty("jvmArgs", "");
+        if (!jvmArgs.isBlank()) {
+            command.addAll(List.of(jvmArgs.trim().split("\\s+")));
+        }
+        command.addAll(agentOptions);
+        workload.forEach((name, value) -> command.add("-D" + name + "=" + value));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(LoadWorkload.class.getName());
+
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        Map<String, Object> result = null;
+        try (var out = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = out.readLine()) != null) {
+                if (line.startsWith(LoadWorkload.RESULT + " ")) {
+                    result = parse(line);
+                } else {
+                    System.out.println(line);
+                }
+            }
+        }
+        int exitCode = process.waitFor();
+        if (exitCode != 0 || result == null) {
+            throw new IllegalStateException("workload failed, exit code " + exitCode);
+        }
+        return result;
+    }
+
+    private static Map<String, Object> parse(String line) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (String field : line.substring(LoadWorkload.RESULT.length()).trim().split(" ")) {
+            int equals = field.indexOf('=');
+            String name = field.substring(0, equals);
+            String value = field.substring(equals + 1);
+            if (value.contains(".")) {
+                result.put(name, Double.parseDouble(value));
+            } else {
+                result.put(name, Long.parseLong(value));
+            }
+        }
+        return result;
+    }
+
+    private static Map<String, Object> ingestReport(IngestStub ingest, long thrown) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        long received = ingest.stacktraces() + ingest.repeated();
+        Latencies latencies = ingest.latencies();
+        result.put("requests", ingest.requests());
+        result.put("bytes", ingest.bytes());
+        result.put("stacktraces", ingest.stacktraces());
+        result.put("repeated", ingest.repeated());
+        result.put("lost", thrown - received);
+        result.put("lostRatio", thrown == 0 ? 0.0 : (double) (thrown - received) / thrown);
+        result.put("throughput", ingest.requests() < 2 ? 0.0 : received * 1e9 / ingest.receivingNanos());
+        result.put("p50", latencies.percentile(50));
+        result.put("p99", latencies.percentile(99));
+        result.put("p999", latencies.percentile(99.9));
+        result.put("max", latencies.percentile(100));
+        return result;
+    }
+
+    // instrumented minus baseline, for the latencies also as a factor
+    private static Map<String, Object> overhead(Map<String, Object> baseline, Map<String, Object> instrumented) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        double throughput = (double) instrumented.get("throughput") / (double) baseline.get("throughput");
+        result.put("throughputRatio", throughput);
+        for (String percentile : List.of("p50", "p99", "p999")) {
+            long base = (long) baseline.get(percentile);
+            long with = (long) instrumented.get(percentile);
+            result.put(percentile, with - base);
+            result.put(percentile + "Ratio", base == 0 ? 0.0 : (double) with / base);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,176 @@
+package org.github.shautvast.exceptional;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The application for the {@link LoadGenerator}, started in its own JVM, once without and once with the agent.
+ * <p>
+ * -Dthreads worker threads each handle requests at a fixed pace, together -Drate per second. A -DthrowRatio fraction
+ * of the requests fails: it throws an exception -Ddepth frames down, which is caught again at the top of the request.
+ * The message of the exception is the wall clock time of the throw, in micros, so the ingest stand-in can
+ * tell how long it took to get there.
+ * <p>
+ * The latency of a request is measured from when it should have started, not from when it did, so a worker that
+ * falls behind (the agent blocks it, a gc) counts the delay for every request that was waiting. The first
+ * -Dwarmup seconds are not recorded, the next -Dduration seconds are.
+ * <p>
+ * At the end a single line is printed: RESULT key=value ..., including the agent's own metrics, when they are there.
+ */
+public class LoadWorkload {
+
+    static final String RESULT = "RESULT";
+    static final String MESSAGE_PREFIX = "load @";
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final String[] AGENT_METRICS = {"ThrowsLogged", "ThrowsAggregated", "RecordsWritten",
+            "RecordsDropped", "WriterBackoffs", "RingFillLevel", "EncodeNanosP99", "CompressNanosP99", "ThrowsCounted",
+            "Storms"};
+
+    public static void main(String[] args) throws Exception {
+        double rate = Double.parseDouble(System.getProperty("rate", "10000"));
+        int threads = Integer.getInteger("threads", 4);
+        int depth = Integer.getInteger("depth", 20);
+        double throwRatio = Double.parseDouble(System.getProperty("throwRatio", "1"));
+        long warmup = TimeUnit.SECONDS.toNanos(Long.getLong("warmup", 5));
+        long duration = TimeUnit.SECONDS.toNanos(Long.getLong("duration", 30));
+
+        long interval = (long) (threads * 1e9 / rate);
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureFrom = start + warmup;
+        long end = measureFrom + duration;
+
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            // spread out, so the workers don't all start a request at the same moment
+            var worker = new Worker(start + i * interval / threads, interval, measureFrom, end, depth, throwRatio);
+            workers.add(worker);
+            worker.thread.start();
+        }
+        var latencies = new Latencies();
+        long requests = 0, thrown = 0, measuredThrown = 0;
+        for (Worker worker : workers) {
+            worker.thread.join();
+            latencies.addAll(worker.latencies);
+            requests += worker.requests;
+            thrown += worker.thrown;
+            measuredThrown += worker.measuredThrown;
+        }
+
+        var result = new StringBuilder(RESULT);
+        result.append(" requests=").append(latencies.count());
+        result.append(" requestsTotal=").append(requests);
+        result.append(" thrown=").append(measuredThrown);
+        result.append(" thrownTotal=").append(thrown);
+        result.append(" throughput=").append(latencies.count() * 1e9 / duration);
+        result.append(" p50=").append(latencies.percentile(50));
+        result.append(" p99=").append(latencies.percentile(99));
+        result.append(" p999=").append(latencies.percentile(99.9));
+        result.append(" max=").append(latencies.percentile(100));
+        appendAgentMetrics(result);
+        System.out.println(result);
+    }
+
+    // when the agent runs with -Dexceptional.metrics=true
+    private static void appendAgentMetrics(StringBuilder result) throws JMException {
+        var server = ManagementFactory.getPlatformMBeanServer();
+        var name = new ObjectName("com.github.shautvast.exceptional:type=Agent");
+        if (!server.isRegistered(name)) {
+            return;
+        }
+        for (String metric : AGENT_METRICS) {
+            result.append(" agent.").append(metric).append('=').append(server.getAttribute(name, metric));
+        }
+    }
+
+    private static final class Worker implements Runnable {
+        final Thread thread = Thread.ofPlatform().unstarted(this);
+        final Latencies latencies = new Latencies();
+        private final long start;
+        private final long interval;
+        private final long measureFrom;
+        private final long end;
+        private final int depth;
+        private final double throwRatio;
+        private double throwCredit;
+        long requests;
+        long thrown;
+        long measuredThrown;
+        // so that the work isn't optimized away
+        long sink;
+
+        Worker(long start, long interval, long measureFrom, long end, int depth, double throwRatio) {
+            this.start = start;
+            this.interval = interval;
+            this.measureFrom = measureFrom;
+            this.end = end;
+            this.depth = depth;
+            this.throwRatio = throwRatio;
+        }
+
+        @Override
+        public void run() {
+            for (long scheduled = start; scheduled < end; scheduled += interval) {
+                awaitNanoTime(scheduled);
+                throwCredit += throwRatio;
+                boolean fail = throwCredit >= 1;
+                if (fail) {
+                    throwCredit -= 1;
+                }
+                handle(fail);
+                long latency = System.nanoTime() - scheduled;
+
+                requests++;
+                if (fail) {
+                    thrown++;
+                }
+                if (scheduled >= measureFrom) {
+                    latencies.record(latency);
+                    if (fail) {
+                        measuredThrown++;
+                    }
+                }
+            }
+        }
+
+        // a request: a bit of work of its own, and maybe an exception from deep down
+        private void handle(boolean fail) {
+            long hash = requests;
+            for (int i = 0; i < 64; i++) {
+                hash = hash * 31 + i;
+            }
+            sink += hash;
+            if (fail) {
+                try {
+                    call(depth);
+                } catch (IllegalStateException e) {
+                    sink += e.getMessage().length();
+                }
+            }
+        }
+
+        private void call(int depth) {
+            if (depth <= 1) {
+                throw new IllegalStateException(MESSAGE_PREFIX + ChronoUnit.MICROS.between(Instant.EPOCH, Instant.now()));
+            }
+            call(depth - 1);
+        }
+
+        private static void awaitNanoTime(long time) {
+            long wait;
+            while ((wait = time - System.nanoTime()) > 0) {
+                if (wait > SPIN_NANOS) {
+                    LockSupport.parkNanos(wait - SPIN_NANOS);
+                } else {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.github.shautvast.exceptional;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.shautvast.exceptional.ThrowableEncoder;
+import org.openjdk.jmh.annotations.*;
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The separate stages of ExceptionLogger.log, measured on a single thread for several stack depths.
+ * Jackson is the serialization that ThrowableEncoder replaced and is kept as a baseline.
+ * <p>
+ * stackTrace and walkCallers compare the two ways to find out where a new throwable comes from, both at the same
+ * depth: getStackTrace (-Dexceptional.stacktrace=full) and the 8 callers of the throw site (=site).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "--enable-native-access=ALL-UNNAMED"})
+@State(Scope.Thread)
+public class LogPathBenchmark {
+
+    @Param({"1", "16", "64", "256"})
+    int stackDepth;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ThrowableEncoder encoder = new ThrowableEncoder();
+    private final StackWalker walker = StackWalker.getInstance();
+    private Throwable throwable;
+    private byte[] json;
+    private MemorySegment compressed;
+
+    @Setup
+    public void setup() throws IOException {
+        throwable = Throwables.atDepth(stackDepth);
+        json = objectMapper.writeValueAsBytes(throwable);
+        compressed = Arena.ofAuto().allocate(Snappy.maxCompressedLength(encoder.encode(throwable)));
+    }
+
+    @Benchmark
+    public byte[] jackson() throws IOException {
+        return objectMapper.writeValueAsBytes(throwable);
+    }
+
+    @Benchmark
+    public byte[] jacksonAndCompress() throws IOException {
+        return Snappy.compress(objectMapper.writeValueAsBytes(throwable));
+    }
+
+    @Benchmark
+    public byte[] compress() throws IOException {
+        return Snappy.compress(json);
+    }
+
+    @Benchmark
+    public Object stackTrace() {
+        return atDepth(stackDepth, true);
+    }
+
+    @Benchmark
+    public Object walkCallers() {
+        return atDepth(stackDepth, false);
+    }
+
+    private Object atDepth(int depth, boolean stackTrace) {
+        if (depth > 1) {
+            return atDepth(depth - 1, stackTrace);
+        }
+        var thrown = new IllegalStateException(); // the application pays for this in both cases
+        if (stackTrace) {
+            return thrown.getStackTrace();
+        }
+        walker.walk(frames -> frames.skip(1).limit(8).toArray(StackWalker.StackFrame[]::new));
+        return thrown;
+    }
+
+    @Benchmark
+    public int encode() {
+        return encoder.encode(throwable);
+    }
+
+    @Benchmark
+    public long encodeAndCompress() throws IOException {
+        // like the RingBufferSink: from the native buffer of the encoder straight into native memory
+        int length = encoder.encode(throwable);
+        return Snappy.rawCompress(encoder.buffer().address(), length, compressed.address());
+    }
+}
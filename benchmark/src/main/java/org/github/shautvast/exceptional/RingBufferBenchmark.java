@@ -0,0 +1,94 @@
+package org.github.shautvast.exceptional;
+
+import com.github.shautvast.exceptional.SingleThreadCircularByteBuffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.foreign.Arena;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SingleThreadCircularByteBuffer put and get, on the heap and on native memory.
+ * Every invocation fills (or drains) the complete buffer, so that put and get can be measured separately.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "--enable-native-access=ALL-UNNAMED"})
+public class RingBufferBenchmark {
+
+    static final int RECORDS = 8;
+
+    @State(Scope.Thread)
+    public static class Buffer {
+        @Param({"64", "512", "4096"})
+        int payloadSize;
+
+        @Param({"heap", "native"})
+        String backing;
+
+        SingleThreadCircularByteBuffer buffer;
+        byte[] payload;
+        private Arena arena;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            payload = new byte[payloadSize];
+            // room for RECORDS entries (each with its 2 byte length) and one spare slot, so that every record
+            // starts at a multiple of its size and a full buffer is never mistaken for an empty one
+            int capacity = (RECORDS + 1) * (payloadSize + 2);
+            if (backing.equals("heap")) {
+                buffer = new SingleThreadCircularByteBuffer(capacity);
+            } else {
+                arena = Arena.ofShared();
+                buffer = new SingleThreadCircularByteBuffer(arena.allocate(capacity + 8));
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            if (arena != null) {
+                arena.close();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class EmptyBuffer extends Buffer {
+        @Setup(Level.Invocation)
+        public void drain() {
+            while (buffer.get() != null) ;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class FullBuffer extends Buffer {
+        @Setup(Level.Invocation)
+        public void fill() {
+            while (buffer.get() != null) ;
+            for (int i = 0; i < RECORDS; i++) {
+                buffer.put(payload);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public boolean put(EmptyBuffer state) {
+        boolean written = true;
+        for (int i = 0; i < RECORDS; i++) {
+            written &= state.buffer.put(state.payload);
+        }
+        return written;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public int get(FullBuffer state) {
+        int read = 0;
+        for (int i = 0; i < RECORDS; i++) {
+            read += state.buffer.get().length;
+        }
+        return read;
+    }
+}
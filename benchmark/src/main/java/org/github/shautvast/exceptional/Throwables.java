@@ -0,0 +1,18 @@
+package org.github.shautvast.exceptional;
+
+/**
+ * Creates throwables with a predictable number of frames, so that the cost of logging can be related to the
+ * size of the stacktrace. The frames of the benchmark harness come on top of the requested depth.
+ */
+final class Throwables {
+
+    private Throwables() {
+    }
+
+    static Throwable atDepth(int depth) {
+        if (depth <= 1) {
+            return new IllegalStateException("benchmark exception at depth " + depth);
+        }
+        return atDepth(depth - 1);
+    }
+}
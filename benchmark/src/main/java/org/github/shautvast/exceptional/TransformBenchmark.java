@@ -0,0 +1,76 @@
+package org.github.shautvast.exceptional;
+
+import com.github.shautvast.exceptional.ClassFilter;
+import com.github.shautvast.exceptional.ThrowTransformer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.lang.classfile.ClassFile;
+import java.lang.classfile.ClassTransform;
+import java.lang.classfile.CodeTransform;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * What the agent adds to startup: transform time per class, over the first {@link #CLASSES} classes of java.base,
+ * a mix of classes with and without throws, like on a real classpath.
+ * <ul>
+ *     <li>transform: the agent's transformer (pre-scan, only the methods that throw are rebuilt)</li>
+ *     <li>rebuildEverything: parse and rebuild the code of every method of every class, like the agent used to do</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview"})
+@State(Scope.Benchmark)
+public class TransformBenchmark {
+
+    static final int CLASSES = 1000;
+
+    private final List<String> names = new ArrayList<>();
+    private final List<byte[]> classes = new ArrayList<>();
+    private ThrowTransformer transformer;
+
+    @Setup
+    public void setup() throws IOException {
+        FileSystem jrt = FileSystems.getFileSystem(URI.create("jrt:/"));
+        Path root = jrt.getPath("modules", "java.base");
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path file : files.filter(f -> f.toString().endsWith(".class") && !f.endsWith("module-info.class"))
+                    .sorted().limit(CLASSES).toList()) {
+                String name = root.relativize(file).toString();
+                names.add(name.substring(0, name.length() - ".class".length()));
+                classes.add(Files.readAllBytes(file));
+            }
+        }
+        transformer = new ThrowTransformer(ClassFilter.fromSystemProperties());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CLASSES)
+    public void transform(Blackhole blackhole) {
+        for (int i = 0; i < classes.size(); i++) {
+            blackhole.consume(transformer.transform(names.get(i), classes.get(i)));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CLASSES)
+    public void rebuildEverything(Blackhole blackhole) {
+        var classFile = ClassFile.of();
+        for (byte[] bytes : classes) {
+            blackhole.consume(classFile.transform(classFile.parse(bytes),
+                    ClassTransform.transformingMethodBodies(CodeTransform.ACCEPT_ALL)));
+        }
+    }
+}
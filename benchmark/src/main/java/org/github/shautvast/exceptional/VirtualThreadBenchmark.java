@@ -0,0 +1,94 @@
+package org.github.shautvast.exceptional;
+
+import com.github.shautvast.exceptional.ExceptionLogger;
+import com.github.shautvast.exceptional.RingBufferFileReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A million virtual threads that each throw and log, like a Loom based service that is failing.
+ * On a virtual thread the logger doesn't call snappy (JNI pins the carrier) and borrows its buffers from a pool.
+ * <ul>
+ *     <li>throwOnly: the baseline, a million virtual threads that create a throwable</li>
+ *     <li>throwAndLog: and log it</li>
+ *     <li>throwAndLogOnPlatformThreads: the same tasks on a pool of platform threads, compressed by the caller</li>
+ * </ul>
+ * The ringbuffer is a file, so no native lib is needed, and a platform thread drains it.
+ * Every throw is sent in full, no aggregation.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "--enable-native-access=ALL-UNNAMED",
+        "-Dexceptional.buffer.file=" + VirtualThreadBenchmark.RING_FILE, "-Dexceptional.buffer.size=67108864",
+        "-Dexceptional.aggregation.size=0", "-Dexceptional.storm=0"})
+@State(Scope.Benchmark)
+public class VirtualThreadBenchmark {
+
+    static final String RING_FILE = "/tmp/exceptional-benchmark-%p.ring";
+
+    @Param({"1000000"})
+    int threads;
+
+    @Param({"16"})
+    int stackDepth;
+
+    private RingBufferFileReader reader;
+    private Thread drainer;
+    private volatile boolean draining = true;
+
+    @Setup
+    public void setup() throws IOException {
+        ExceptionLogger.log(new Throwable("creates the ringbuffer file"));
+        reader = new RingBufferFileReader(Path.of(RING_FILE.replace("%p", String.valueOf(ProcessHandle.current().pid()))));
+        drainer = Thread.ofPlatform().daemon().name("drainer").start(() -> {
+            while (draining) {
+                if (reader.poll() == null) {
+                    LockSupport.parkNanos(100_000);
+                }
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        draining = false;
+        drainer.join();
+        reader.close();
+    }
+
+    @Benchmark
+    public void throwOnly() {
+        run(Executors.newVirtualThreadPerTaskExecutor(), false);
+    }
+
+    @Benchmark
+    public void throwAndLog() {
+        run(Executors.newVirtualThreadPerTaskExecutor(), true);
+    }
+
+    @Benchmark
+    public void throwAndLogOnPlatformThreads() {
+        run(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()), true);
+    }
+
+    private void run(ExecutorService executor, boolean log) {
+        try (executor) {
+            for (int i = 0; i < threads; i++) {
+                executor.execute(() -> {
+                    Throwable throwable = Throwables.atDepth(stackDepth);
+                    if (log) {
+                        ExceptionLogger.log(throwable);
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.github.shautvast.exceptional;
+
+import com.github.shautvast.exceptional.MultiProducerCircularByteBuffer;
+import org.openjdk.jcstress.annotations.*;
+import org.openjdk.jcstress.infra.results.II_Result;
+
+import java.lang.foreign.Arena;
+import java.util.Arrays;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+/**
+ * Two writers and a reader on the multi-producer buffer, right at the point where it wraps around:
+ * the first record that is claimed needs padding at the end, the second one goes to the start.
+ * Both records must come out exactly once and unchanged.
+ * <p>
+ * r1: bitmask of the records that were read, r2: number of corrupt records
+ */
+@JCStressTest
+@Outcome(id = "3, 0", expect = ACCEPTABLE, desc = "Both records read, intact")
+@Outcome(expect = FORBIDDEN, desc = "Lost, duplicated or corrupt record")
+@State
+public class MultiProducerStressTest {
+    private static final int CAPACITY = 64;
+
+    private final MultiProducerCircularByteBuffer buffer = new MultiProducerCircularByteBuffer(
+            Arena.ofAuto().allocate(MultiProducerCircularByteBuffer.segmentSize(CAPACITY), 64));
+    private int seen;
+    private int corrupt;
+
+    public MultiProducerStressTest() {
+        // move both positions to 56, so that only 8 bytes are left before the end
+        buffer.put(new byte[48]);
+        buffer.get();
+    }
+
+    @Actor
+    public void writer1() {
+        buffer.put(record(1));
+    }
+
+    @Actor
+    public void writer2() {
+        buffer.put(record(2));
+    }
+
+    @Actor
+    public void reader() {
+        byte[] bytes;
+        while ((bytes = buffer.get()) != null) {
+            check(bytes);
+        }
+    }
+
+    @Arbiter
+    public void arbiter(II_Result r) {
+        byte[] bytes;
+        while ((bytes = buffer.get()) != null) {
+            check(bytes);
+        }
+        r.r1 = seen;
+        r.r2 = corrupt;
+    }
+
+    private void check(byte[] bytes) {
+        int value = bytes[0];
+        for (byte b : bytes) {
+            if (b != value) {
+                corrupt++;
+                return;
+            }
+        }
+        if ((seen & value) != 0) {
+            corrupt++; // duplicate
+        }
+        seen |= value;
+    }
+
+    // 12 bytes, so 24 with header and alignment: does not fit in the 8 bytes before the end
+    private static byte[] record(int value) {
+        byte[] bytes = new byte[12];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+}
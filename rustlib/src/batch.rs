@@ -0,0 +1,150 @@
+//! Collects the json of the records into the body for the bulk endpoint of the api:
+//! {"stacktraces":[...],"repeats":[...],"summaries":[...]}, gzipped once per batch (unless -Dexceptional.compression=none).
+
+use std::io::Write;
+use std::time::{Duration, Instant};
+
+use flate2::write::GzEncoder;
+use flate2::Compression;
+
+/// the json of one record, and where it goes in the batch
+#[derive(Debug, PartialEq)]
+pub enum Entry {
+    Stacktrace(String),
+    Repeat(String),
+    Summary(String),
+}
+
+pub struct Batch {
+    stacktraces: String,
+    repeats: String,
+    summaries: String,
+    count: usize,
+    // when the first record was added
+    started: Option<Instant>,
+}
+
+impl Batch {
+    pub fn new() -> Self {
+        Batch {
+            stacktraces: String::new(),
+            repeats: String::new(),
+            summaries: String::new(),
+            count: 0,
+            started: None,
+        }
+    }
+
+    pub fn add(&mut self, entry: Entry) {
+        let (json, array) = match entry {
+            Entry::Stacktrace(json) => (json, &mut self.stacktraces),
+            Entry::Repeat(json) => (json, &mut self.repeats),
+            Entry::Summary(json) => (json, &mut self.summaries),
+        };
+        if !array.is_empty() {
+            array.push(',');
+        }
+        array.push_str(&json);
+        self.count += 1;
+        self.started.get_or_insert_with(Instant::now);
+    }
+
+    pub fn len(&self) -> usize {
+        self.count
+    }
+
+    pub fn is_empty(&self) -> bool {
+        self.count == 0
+    }
+
+    /// the length of the json so far
+    pub fn bytes(&self) -> usize {
+        self.stacktraces.len() + self.repeats.len() + self.summaries.len()
+    }
+
+    /// how long the batch may still wait for more records, None when it is empty
+    pub fn linger_left(&self, linger: Duration) -> Option<Duration> {
+        self.started.map(|started| linger.saturating_sub(started.elapsed()))
+    }
+
+    pub fn json(&self) -> String {
+        format!(
+            r#"{{"stacktraces":[{}],"repeats":[{}],"summaries":[{}]}}"#,
+            self.stacktraces, self.repeats, self.summaries
+        )
+    }
+
+    /// the body, gzipped or not, and an empty batch for the next records
+    pub fn take(&mut self, gzip: bool) -> Vec<u8> {
+        let json = self.json();
+        *self = Batch::new();
+        if !gzip {
+            return json.into_bytes();
+        }
+        let mut encoder = GzEncoder::new(Vec::with_capacity(json.len() / 4), Compression::fast());
+        // writing to a Vec doesn't fail
+        encoder.write_all(json.as_bytes()).unwrap();
+        encoder.finish().unwrap()
+    }
+}
+
+#[cfg(test)]
+mod test {
+    use std::io::Read;
+    use std::time::Duration;
+
+    use flate2::read::GzDecoder;
+
+    use super::{Batch, Entry};
+
+    #[test]
+    fn json() {
+        let mut batch = Batch::new();
+        assert_eq!(batch.json(), r#"{"stacktraces":[],"repeats":[],"summaries":[]}"#);
+
+        batch.add(Entry::Stacktrace(r#"{"a":1}"#.to_string()));
+        batch.add(Entry::Repeat(r#"{"r":1}"#.to_string()));
+        batch.add(Entry::Summary(r#"{"s":1}"#.to_string()));
+        batch.add(Entry::Stacktrace(r#"{"b":2}"#.to_string()));
+
+        assert_eq!(batch.len(), 4);
+        assert_eq!(
+            batch.json(),
+            r#"{"stacktraces":[{"a":1},{"b":2}],"repeats":[{"r":1}],"summaries":[{"s":1}]}"#
+        );
+    }
+
+    #[test]
+    fn take_gzips_and_empties() {
+        let mut batch = Batch::new();
+        batch.add(Entry::Repeat(r#"{"r":1}"#.to_string()));
+
+        let body = batch.take(true);
+
+        let mut json = String::new();
+        GzDecoder::new(&body[..]).read_to_string(&mut json).unwrap();
+        assert_eq!(json, r#"{"stacktraces":[],"repeats":[{"r":1}],"summaries":[]}"#);
+        assert!(batch.is_empty());
+        assert_eq!(batch.linger_left(Duration::from_secs(1)), None);
+    }
+
+    #[test]
+    fn take_plain() {
+        let mut batch = Batch::new();
+        batch.add(Entry::Repeat(r#"{"r":1}"#.to_string()));
+
+        assert_eq!(batch.take(false), br#"{"stacktraces":[],"repeats":[{"r":1}],"summaries":[]}"#.to_vec());
+        assert!(batch.is_empty());
+    }
+
+    #[test]
+    fn linger() {
+        let mut batch = Batch::new();
+        assert_eq!(batch.linger_left(Duration::from_secs(1)), None);
+
+        batch.add(Entry::Repeat(r#"{"r":1}"#.to_string()));
+
+        assert!(batch.linger_left(Duration::from_secs(1)).unwrap() > Duration::ZERO);
+        assert_eq!(batch.linger_left(Duration::ZERO), Some(Duration::ZERO));
+    }
+}
@@ -0,0 +1,531 @@
+//! Reads the binary records written by ThrowableEncoder on the java side
+//! (see the javadoc there for the layout) and turns them into json for the api.
+
+use std::collections::HashMap;
+
+use serde::Serialize;
+
+pub const TYPE_THROWABLE: u8 = 1;
+pub const TYPE_REPEAT: u8 = 2;
+pub const TYPE_SITE: u8 = 3;
+pub const TYPE_SITE_THROWABLE: u8 = 4;
+pub const TYPE_SYMBOLS: u8 = 5;
+pub const TYPE_TRACE: u8 = 6;
+pub const TYPE_SUMMARY: u8 = 7;
+
+// how a stacktrace ends, after its frames
+const TAIL_COMMON: u8 = 1;
+const TAIL_TRACE: u8 = 2;
+
+// the java encoder stops at 32 levels of causes and suppressed exceptions, this is just a safety net
+const MAX_NESTING: usize = 64;
+
+#[derive(Debug, PartialEq)]
+pub enum Record {
+    Throwable(ThrowableRecord),
+    Repeat(RepeatRecord),
+    Site(Site),
+    SiteThrowable(SiteThrowableRecord),
+    /// ids for the class, method and file names in the records after it, see Symbols.java
+    Symbols(Vec<(u32, String)>),
+    /// the bottom frames of a stacktrace, that the records after it can end with, see Traces.java
+    Trace(u32, Vec<Frame>),
+    Summary(SummaryRecord),
+}
+
+/// the fingerprint is serialized as a hex string, because json numbers lose precision beyond 2^53
+#[derive(Debug, PartialEq, Serialize)]
+pub struct ThrowableRecord {
+    #[serde(serialize_with = "as_hex")]
+    pub fingerprint: u64,
+    #[serde(flatten)]
+    pub throwable: Throwable,
+}
+
+#[derive(Debug, PartialEq, Serialize)]
+pub struct RepeatRecord {
+    #[serde(serialize_with = "as_hex")]
+    pub fingerprint: u64,
+    pub count: u64,
+}
+
+/// a throw site, the java side sends it once, before the first throwable that is thrown there
+#[derive(Debug, PartialEq, Clone, Serialize)]
+#[serde(rename_all = "camelCase")]
+pub struct Site {
+    pub id: u32,
+    pub class_name: Option<String>,
+    pub method_name: Option<String>,
+    pub descriptor: Option<String>,
+    pub offset: u32,
+    pub line_number: i32,
+}
+
+/// a throwable without its stacktrace: the id of the site where it was thrown, and the callers of that site
+#[derive(Debug, PartialEq, Serialize)]
+#[serde(rename_all = "camelCase")]
+pub struct SiteThrowableRecord {
+    #[serde(serialize_with = "as_hex")]
+    pub fingerprint: u64,
+    pub site_id: u32,
+    /// filled in from the site records that were read before, None if this one was not seen (yet)
+    pub site: Option<Site>,
+    pub class_name: Option<String>,
+    pub message: Option<String>,
+    pub callers: Vec<Frame>,
+}
+
+/// the number of throws of a class at a site, that were only counted during an exception storm, see
+/// ExceptionStorm.java
+#[derive(Debug, PartialEq, Serialize)]
+#[serde(rename_all = "camelCase")]
+pub struct SummaryRecord {
+    /// None for the throws that were not counted apart
+    pub class_name: Option<String>,
+    pub count: u64,
+    /// the period in which they were counted
+    pub millis: u64,
+    pub site: Option<Site>,
+}
+
+fn as_hex<S: serde::Serializer>(value: &u64, serializer: S) -> Result<S::Ok, S::Error> {
+    serializer.serialize_str(&format!("{:016x}", value))
+}
+
+#[derive(Debug, PartialEq, Serialize)]
+#[serde(rename_all = "camelCase")]
+pub struct Throwable {
+    pub class_name: Option<String>,
+    pub message: Option<String>,
+    /// including the frames of the trace it ends with
+    pub stack_trace: Vec<Frame>,
+    /// left out by the java side (-Dexceptional.frames), they were after the written frames, before the trace
+    pub omitted_frames: u32,
+    /// the last frames of the enclosing throwable, that this one also ends with. Not in stack_trace
+    pub common_frames: u32,
+    pub suppressed: Vec<Throwable>,
+    pub cause: Option<Box<Throwable>>,
+}
+
+#[derive(Debug, PartialEq, Clone, Serialize)]
+#[serde(rename_all = "camelCase")]
+pub struct Frame {
+    pub class_name: Option<String>,
+    pub method_name: Option<String>,
+    pub file_name: Option<String>,
+    pub line_number: i32,
+}
+
+#[derive(Debug, PartialEq)]
+pub enum DecodeError {
+    UnexpectedEnd,
+    UnknownType(u8),
+    InvalidVarint,
+    InvalidUtf8,
+    TooDeeplyNested,
+    NullSymbol,
+}
+
+/// decodes a record without symbols and traces
+pub fn decode(bytes: &[u8]) -> Result<Record, DecodeError> {
+    decode_with(bytes, &HashMap::new(), &HashMap::new())
+}
+
+/// symbols: from the symbols records that were read before this one. A symbol that is not in there is decoded
+/// as None.
+/// traces: the frames of the trace records that were read before this one. A stacktrace that ends with a trace
+/// that is not in there, ends without it
+pub fn decode_with(
+    bytes: &[u8],
+    symbols: &HashMap<u32, String>,
+    traces: &HashMap<u32, Vec<Frame>>,
+) -> Result<Record, DecodeError> {
+    let mut reader = Reader { bytes, pos: 0, symbols, traces };
+    match reader.byte()? {
+        TYPE_THROWABLE => Ok(Record::Throwable(ThrowableRecord {
+            fingerprint: reader.u64()?,
+            throwable: reader.throwable(0)?,
+        })),
+        TYPE_REPEAT => Ok(Record::Repeat(RepeatRecord {
+            fingerprint: reader.u64()?,
+            count: reader.varlong()?,
+        })),
+        TYPE_SITE => Ok(Record::Site(reader.site()?)),
+        TYPE_SITE_THROWABLE => Ok(Record::SiteThrowable(SiteThrowableRecord {
+            fingerprint: reader.u64()?,
+            site_id: reader.varint()?,
+            site: None,
+            class_name: reader.string()?,
+            message: reader.string()?,
+            callers: reader.frames()?,
+        })),
+        TYPE_SYMBOLS => {
+            let count = reader.varint()? as usize;
+            let mut symbols = Vec::with_capacity(count.min(64));
+            for _ in 0..count {
+                let id = reader.varint()?;
+                let value = reader.string()?.ok_or(DecodeError::NullSymbol)?;
+                symbols.push((id, value));
+            }
+            Ok(Record::Symbols(symbols))
+        }
+        TYPE_TRACE => Ok(Record::Trace(reader.varint()?, reader.frames()?)),
+        TYPE_SUMMARY => Ok(Record::Summary(SummaryRecord {
+            class_name: reader.string()?,
+            count: reader.varlong()?,
+            millis: reader.varlong()?,
+            site: if reader.byte()? == 0 { None } else { Some(reader.site()?) },
+        })),
+        record_type => Err(DecodeError::UnknownType(record_type)),
+    }
+}
+
+struct Reader<'a> {
+    bytes: &'a [u8],
+    pos: usize,
+    symbols: &'a HashMap<u32, String>,
+    traces: &'a HashMap<u32, Vec<Frame>>,
+}
+
+impl<'a> Reader<'a> {
+    fn throwable(&mut self, nesting: usize) -> Result<Throwable, DecodeError> {
+        if nesting > MAX_NESTING {
+            return Err(DecodeError::TooDeeplyNested);
+        }
+        let class_name = self.string()?;
+        let message = self.string()?;
+        let mut stack_trace = self.frames()?;
+        let omitted_frames = self.varint()?;
+        let mut common_frames = 0;
+        match self.byte()? {
+            TAIL_COMMON => common_frames = self.varint()?,
+            TAIL_TRACE => {
+                if let Some(frames) = self.traces.get(&self.varint()?) {
+                    stack_trace.extend_from_slice(frames);
+                }
+            }
+            _ => {}
+        }
+
+        let suppressed_count = self.varint()? as usize;
+        let mut suppressed = Vec::with_capacity(suppressed_count.min(64));
+        for _ in 0..suppressed_count {
+            suppressed.push(self.throwable(nesting + 1)?);
+        }
+
+        let cause = if self.byte()? == 1 {
+            Some(Box::new(self.throwable(nesting + 1)?))
+        } else {
+            None
+        };
+
+        Ok(Throwable {
+            class_name,
+            message,
+            stack_trace,
+            omitted_frames,
+            common_frames,
+            suppressed,
+            cause,
+        })
+    }
+
+    fn frames(&mut self) -> Result<Vec<Frame>, DecodeError> {
+        let frame_count = self.varint()? as usize;
+        let mut frames = Vec::with_capacity(frame_count.min(1024));
+        for _ in 0..frame_count {
+            frames.push(Frame {
+                class_name: self.string()?,
+                method_name: self.string()?,
+                file_name: self.string()?,
+                line_number: self.zigzag()?,
+            });
+        }
+        Ok(frames)
+    }
+
+    fn zigzag(&mut self) -> Result<i32, DecodeError> {
+        let zigzag = self.varint()?;
+        Ok(((zigzag >> 1) as i32) ^ -((zigzag & 1) as i32))
+    }
+
+    /// 0 is None, an odd tag is a symbol id, an even one the length + 1 of the inline utf8, shifted left
+    fn string(&mut self) -> Result<Option<String>, DecodeError> {
+        let tag = self.varint()?;
+        if tag == 0 {
+            return Ok(None);
+        }
+        if tag & 1 == 1 {
+            return Ok(self.symbols.get(&(tag >> 1)).cloned());
+        }
+        let len = (tag >> 1) as usize;
+        let end = self.pos + len - 1;
+        let bytes = self.bytes.get(self.pos..end).ok_or(DecodeError::UnexpectedEnd)?;
+        self.pos = end;
+        String::from_utf8(bytes.to_vec())
+            .map(Some)
+            .map_err(|_| DecodeError::InvalidUtf8)
+    }
+
+    fn varint(&mut self) -> Result<u32, DecodeError> {
+        let mut value: u32 = 0;
+        let mut shift = 0;
+        loop {
+            let b = self.byte()?;
+            value |= ((b & 0x7f) as u32) << shift;
+            if b & 0x80 == 0 {
+                return Ok(value);
+            }
+            shift += 7;
+            if shift > 28 {
+                return Err(DecodeError::InvalidVarint);
+            }
+        }
+    }
+
+    fn varlong(&mut self) -> Result<u64, DecodeError> {
+        let mut value: u64 = 0;
+        let mut shift = 0;
+        loop {
+            let b = self.byte()?;
+            value |= ((b & 0x7f) as u64) << shift;
+            if b & 0x80 == 0 {
+                return Ok(value);
+            }
+            shift += 7;
+            if shift > 63 {
+                return Err(DecodeError::InvalidVarint);
+            }
+        }
+    }
+
+    fn u64(&mut self) -> Result<u64, DecodeError> {
+        let bytes = self.bytes.get(self.pos..self.pos + 8).ok_or(DecodeError::UnexpectedEnd)?;
+        self.pos += 8;
+        Ok(u64::from_be_bytes(bytes.try_into().unwrap()))
+    }
+
+    /// the body of a site record, also in a summary record
+    fn site(&mut self) -> Result<Site, DecodeError> {
+        Ok(Site {
+            id: self.varint()?,
+            class_name: self.string()?,
+            method_name: self.string()?,
+            descriptor: self.string()?,
+            offset: self.varint()?,
+            line_number: self.zigzag()?,
+        })
+    }
+
+    fn byte(&mut self) -> Result<u8, DecodeError> {
+        let b = *self.bytes.get(self.pos).ok_or(DecodeError::UnexpectedEnd)?;
+        self.pos += 1;
+        Ok(b)
+    }
+}
+
+#[cfg(test)]
+mod test {
+    use super::*;
+
+    #[test]
+    fn decode_throwable_with_cause() {
+        let bytes: Vec<u8> = vec![
+            TYPE_THROWABLE,
+            0, 0, 0, 0, 0, 0, 0, 42, // fingerprint
+            8, b'E', b'x', b'c', // className
+            0,                   // message null
+            1,                   // 1 frame
+            10, b'M', b'a', b'i', b'n', // className
+            10, b'c', b'a', b'l', b'l', // methodName
+            0,                   // fileName null
+            34,                  // lineNumber 17, zigzag
+            0, 0,                // none omitted, no tail
+            0,                   // no suppressed
+            1,                   // cause
+            4, b'C', 6, b'h', b'i', // className, message
+            0, 0, 1, 1,          // no frames, none omitted, 1 in common
+            0, 0,                // no suppressed, cause
+        ];
+
+        let record = throwable_record(&bytes);
+        assert_eq!(record.fingerprint, 42);
+        let throwable = record.throwable;
+        assert_eq!(throwable.class_name.as_deref(), Some("Exc"));
+        assert_eq!(throwable.message, None);
+        assert_eq!(throwable.stack_trace[0].method_name.as_deref(), Some("call"));
+        assert_eq!(throwable.stack_trace[0].line_number, 17);
+        let cause = throwable.cause.unwrap();
+        assert_eq!(cause.message.as_deref(), Some("hi"));
+        assert_eq!(cause.common_frames, 1);
+        assert!(cause.cause.is_none());
+    }
+
+    #[test]
+    fn native_method_line_number() {
+        let bytes: Vec<u8> = vec![TYPE_THROWABLE, 0, 0, 0, 0, 0, 0, 0, 1, 4, b'E', 0, 1, 4, b'M', 4, b'm', 0, 3, 0, 0, 0, 0];
+        assert_eq!(throwable_record(&bytes).throwable.stack_trace[0].line_number, -2);
+    }
+
+    #[test]
+    fn truncated_record() {
+        let bytes: Vec<u8> = vec![TYPE_THROWABLE, 0, 0, 0, 0, 0, 0, 0, 1, 8, b'E'];
+        assert_eq!(decode(&bytes), Err(DecodeError::UnexpectedEnd));
+    }
+
+    #[test]
+    fn decode_summary() {
+        let bytes: Vec<u8> = vec![
+            TYPE_SUMMARY,
+            8, b'E', b'x', b'c', // className
+            0xac, 0x02,          // count 300
+            0xe8, 0x07,          // millis 1000
+            1,                   // with a site
+            5,                   // id
+            4, b'S', 4, b'm', 0, // className, methodName, descriptor null
+            12,                  // offset
+            34,                  // lineNumber 17, zigzag
+        ];
+        match decode(&bytes).unwrap() {
+            Record::Summary(summary) => assert_eq!(
+                serde_json::to_string(&summary).unwrap(),
+                r#"{"className":"Exc","count":300,"millis":1000,"site":{"id":5,"className":"S","methodName":"m","descriptor":null,"offset":12,"lineNumber":17}}"#
+            ),
+            other => panic!("unexpected {:?}", other),
+        }
+    }
+
+    #[test]
+    fn decode_repeat() {
+        // count 300 is 0b10_0101100 -> 0xac 0x02
+        let bytes: Vec<u8> = vec![TYPE_REPEAT, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xd6, 0xac, 0x02];
+        match decode(&bytes).unwrap() {
+            Record::Repeat(repeat) => {
+                assert_eq!(repeat.fingerprint, (-42i64) as u64);
+                assert_eq!(repeat.count, 300);
+                assert_eq!(
+                    serde_json::to_string(&repeat).unwrap(),
+                    r#"{"fingerprint":"ffffffffffffffd6","count":300}"#
+                );
+            }
+            other => panic!("unexpected {:?}", other),
+        }
+    }
+
+    #[test]
+    fn decode_site_and_site_throwable() {
+        let site: Vec<u8> = vec![
+            TYPE_SITE,
+            0xac, 0x02,          // id 300
+            4, b'M',             // className
+            4, b'm',             // methodName
+            8, b'(', b')', b'V', // descriptor
+            12,                  // offset
+            14,                  // lineNumber 7, zigzag
+        ];
+        match decode(&site).unwrap() {
+            Record::Site(site) => {
+                assert_eq!(site.id, 300);
+                assert_eq!(site.descriptor.as_deref(), Some("()V"));
+                assert_eq!(site.offset, 12);
+                assert_eq!(site.line_number, 7);
+            }
+            other => panic!("unexpected {:?}", other),
+        }
+
+        let throwable: Vec<u8> = vec![
+            TYPE_SITE_THROWABLE,
+            0, 0, 0, 0, 0, 0, 0, 42, // fingerprint
+            0xac, 0x02,              // site 300
+            4, b'E', 0,              // className, no message
+            1, 4, b'C', 4, b'c', 0, 6, // 1 caller, line 3
+        ];
+        match decode(&throwable).unwrap() {
+            Record::SiteThrowable(record) => {
+                assert_eq!(record.site_id, 300);
+                assert_eq!(record.site, None);
+                assert_eq!(record.class_name.as_deref(), Some("E"));
+                assert_eq!(record.callers[0].line_number, 3);
+            }
+            other => panic!("unexpected {:?}", other),
+        }
+    }
+
+    #[test]
+    fn decode_symbols() {
+        let definitions: Vec<u8> = vec![
+            TYPE_SYMBOLS,
+            2,                      // 2 symbols
+            1, 10, b'M', b'a', b'i', b'n', // id 1
+            0xac, 0x02, 4, b'm',    // id 300
+        ];
+        let symbols: HashMap<u32, String> = match decode(&definitions).unwrap() {
+            Record::Symbols(symbols) => symbols.into_iter().collect(),
+            other => panic!("unexpected {:?}", other),
+        };
+        assert_eq!(symbols.get(&1).map(String::as_str), Some("Main"));
+
+        let bytes: Vec<u8> = vec![
+            TYPE_THROWABLE, 0, 0, 0, 0, 0, 0, 0, 1,
+            3, 0,             // className symbol 1, no message
+            2,                // 2 frames
+            3, 0xd9, 0x04, 0, 2, // symbol 1, symbol 300, no fileName, line 1
+            5, 4, b'x', 0, 2, // symbol 2 (unknown), inline "x"
+            0, 0, 0, 0,
+        ];
+        let record = match decode_with(&bytes, &symbols, &HashMap::new()).unwrap() {
+            Record::Throwable(record) => record,
+            other => panic!("unexpected {:?}", other),
+        };
+        let throwable = record.throwable;
+        assert_eq!(throwable.class_name.as_deref(), Some("Main"));
+        assert_eq!(throwable.stack_trace[0].class_name.as_deref(), Some("Main"));
+        assert_eq!(throwable.stack_trace[0].method_name.as_deref(), Some("m"));
+        assert_eq!(throwable.stack_trace[1].class_name, None);
+        assert_eq!(throwable.stack_trace[1].method_name.as_deref(), Some("x"));
+    }
+
+    #[test]
+    fn decode_trace_and_omitted_frames() {
+        let definition: Vec<u8> = vec![
+            TYPE_TRACE,
+            7,                        // trace 7
+            2,                        // 2 frames
+            4, b'A', 4, b'a', 0, 2,
+            4, b'B', 4, b'b', 0, 4,
+        ];
+        let traces: HashMap<u32, Vec<Frame>> = match decode(&definition).unwrap() {
+            Record::Trace(id, frames) => HashMap::from([(id, frames)]),
+            other => panic!("unexpected {:?}", other),
+        };
+
+        let bytes: Vec<u8> = vec![
+            TYPE_THROWABLE, 0, 0, 0, 0, 0, 0, 0, 1,
+            4, b'E', 0,
+            1, 4, b'M', 4, b'm', 0, 6, // 1 frame
+            3,                         // 3 omitted
+            2, 7,                      // ends with trace 7
+            0, 0,
+        ];
+        let throwable = match decode_with(&bytes, &HashMap::new(), &traces).unwrap() {
+            Record::Throwable(record) => record.throwable,
+            other => panic!("unexpected {:?}", other),
+        };
+        assert_eq!(throwable.omitted_frames, 3);
+        assert_eq!(throwable.stack_trace.len(), 3);
+        assert_eq!(throwable.stack_trace[2].class_name.as_deref(), Some("B"));
+
+        // without the trace record
+        match decode(&bytes).unwrap() {
+            Record::Throwable(record) => assert_eq!(record.throwable.stack_trace.len(), 1),
+            other => panic!("unexpected {:?}", other),
+        }
+    }
+
+    fn throwable_record(bytes: &[u8]) -> ThrowableRecord {
+        match decode(bytes).unwrap() {
+            Record::Throwable(record) => record,
+            other => panic!("unexpected {:?}", other),
+        }
+    }
+}
@@ -1,159 +1,374 @@
-use crossbeam_channel::{Receiver, Sender, bounded};
+use crossbeam_channel::{Receiver, RecvTimeoutError, Sender, bounded};
 use std::ffi::c_char;
-use std::sync::OnceLock;
+use std::ptr;
+use std::sync::atomic::{AtomicBool, AtomicU32, AtomicU64, Ordering};
+use std::collections::HashMap;
+use std::sync::{OnceLock, RwLock};
 use std::thread::JoinHandle;
 use std::{slice, thread};
 use std::time::Duration;
 
+use flate2::{Decompress, FlushDecompress, Status};
 use reqwest::blocking::Client; // can I use non-blocking here?
+use reqwest::header::{CONTENT_ENCODING, CONTENT_TYPE};
 
-// same value, but different meanings
-// TODO find a way to set the buffer size from java.
-// why not just add it to the function
-const CAPACITY: isize = 32760;
-const READ: isize = 32760;
-static CHANNEL: OnceLock<(Sender<Vec<u8>>, Receiver<Vec<u8>>)> = OnceLock::new();
+mod batch;
+mod decoder;
+
+use batch::{Batch, Entry};
+use decoder::Record;
+
+// layout of the ringbuffer, see MultiProducerCircularByteBuffer.java
+// java decides the capacity, it is in the metadata at the start
+const MAGIC: u32 = 0x45584350; // EXCP
+// 2: strings can be symbols, 3: bounded and shared frames, see decoder.rs, 4: deflated records, reader flags,
+// 5: summary records, 6: records.dict trained on records with symbols
+const VERSION: u32 = 6;
+const CAPACITY: usize = 8;
+const READER_FLAGS: usize = 16;
+const PLAIN_BATCHES: u32 = 1; // reader flag, -Dexceptional.compression=none: the batches are posted as they are
+const READ_POSITION: usize = 64; // only written here
+const METADATA_LENGTH: usize = 192;
+const RECORD_HEADER_LENGTH: usize = 8;
+const ALIGNMENT: usize = 8;
+const UNCOMPRESSED: u32 = 1; // record flag, written by virtual threads, which don't call snappy
+const DEFLATED: u32 = 2; // record flag, raw deflate with the dictionary, see RecordDictionary.java
+static DICTIONARY: &[u8] = include_bytes!("../../agent/src/main/resources/com/github/shautvast/exceptional/records.dict");
+// the records are posted in batches, like the java http sink does (see HttpBatchSender.java)
+const BULK_URL: &str = "http://localhost:3000/api/stacktraces/bulk";
+const BATCH_SIZE: usize = 500;
+const BATCH_BYTES: usize = 1 << 20;
+const LINGER: Duration = Duration::from_millis(1000);
+const SENDERS: usize = 2;
+/// the flags and payload of a record
+type Job = (u32, Vec<u8>);
+static CHANNEL: OnceLock<(Sender<Job>, Receiver<Job>)> = OnceLock::new();
 static HANDLE: OnceLock<JoinHandle<()>> = OnceLock::new();
+static PLAIN: AtomicBool = AtomicBool::new(false);
+// the throw sites, by id, from the site records
+static SITES: OnceLock<RwLock<HashMap<u32, decoder::Site>>> = OnceLock::new();
+// the class, method and file names, by id, from the symbols records
+static SYMBOLS: OnceLock<RwLock<HashMap<u32, String>>> = OnceLock::new();
+// the bottoms of stacktraces, by id, from the trace records
+static TRACES: OnceLock<RwLock<HashMap<u32, Vec<decoder::Frame>>>> = OnceLock::new();
 
-/// Reads the data from the bytebuffer in the caller thread and sends the data to a background
-/// thread that updates the datastore
+/// Reads all published records from the bytebuffer in the caller thread and sends them to a background
+/// thread that updates the datastore. Java calls this once for a batch of records.
 ///
 /// # Safety
 ///
 /// The function is unsafe for skipped checks on UTF-8 and string length and because it reads from a
 /// mutable raw pointer.
 /// Still it's guaranteed to be safe because
-/// 1. We make sure the part that's read is not being mutated at the same time (happens in the same thread)  
+/// 1. a record is only read after java has published it, and java writers don't touch it again until
+///    the read position has moved past it
 /// 2. don't need to check the length since it's calculated and stored within the byte buffer
 /// 3. the bytes are guaranteed to be UTF-8
 #[no_mangle]
 pub unsafe extern "C" fn buffer_updated(buffer: *mut c_char) {
-    // using a channel for the bytes read from the buffer
-    // this decouples the originating from the http request
+    drain(buffer.cast::<u8>(), sender());
+}
+
+/// Alternative to buffer_updated, without any downcalls: starts a thread that reads the buffer, and
+/// sleeps for poll_interval_micros whenever there was nothing to read.
+///
+/// # Safety
+///
+/// Same as buffer_updated. Java must not call buffer_updated after this, there can only be one reader.
+#[no_mangle]
+pub unsafe extern "C" fn start_reader(buffer: *mut c_char, poll_interval_micros: u64) {
+    if capacity(buffer.cast::<u8>()).is_none() {
+        println!("not a ringbuffer, or a version that this lib doesn't know");
+        return;
+    }
+    let address = buffer as usize; // raw pointers can't be sent to another thread
+    let poll_interval = Duration::from_micros(poll_interval_micros.max(1));
+    thread::spawn(move || {
+        let sender = sender();
+        loop {
+            if drain(address as *mut u8, sender) == 0 {
+                thread::sleep(poll_interval);
+            }
+        }
+    });
+}
+
+/// the channel for the bytes read from the buffer, to the threads that send them to the api.
+/// this decouples the originating from the http request
+fn sender() -> &'static Sender<Job> {
     let (sender, receiver) = CHANNEL.get_or_init(|| bounded(1000));
     HANDLE.get_or_init(|| {
-        thread::spawn(move || {
-            let http_client = Client::new();
-            loop {
-                let maybe_job = receiver.recv();
-                if let Ok(data) = maybe_job {
-                    let data = String::from_utf8(snappy::uncompress(&data).unwrap()).unwrap();
-                    _ = http_client
-                        .post("http://localhost:3000/api/stacktraces")
-                        .body(data)
-                        .send();
+        for _ in 1..SENDERS {
+            let receiver = receiver.clone();
+            thread::spawn(move || send_batches(receiver));
+        }
+        let receiver = receiver.clone();
+        thread::spawn(move || send_batches(receiver))
+    });
+    sender
+}
+
+/// collects records into a batch until it has BATCH_SIZE records or BATCH_BYTES of json, or the first one has
+/// waited LINGER, and posts it to the bulk endpoint. One request (and one database transaction) per batch
+/// instead of per record
+fn send_batches(receiver: Receiver<Job>) {
+    let http_client = Client::new();
+    let mut batch = Batch::new();
+    loop {
+        let job = match batch.linger_left(LINGER) {
+            None => receiver.recv().map_err(|_| RecvTimeoutError::Disconnected),
+            Some(left) => receiver.recv_timeout(left),
+        };
+        match job {
+            Ok((flags, data)) => {
+                if let Some(entry) = to_json(flags, &data) {
+                    batch.add(entry);
                 }
-            }
-        });
-        thread::spawn(move || {
-            let http_client = Client::new();
-            loop {
-                let maybe_job = receiver.recv();
-                if let Ok(data) = maybe_job {
-                    let data = String::from_utf8(snappy::uncompress(&data).unwrap()).unwrap();
-                    _ = http_client
-                        .post("http://localhost:3000/api/stacktraces")
-                        .body(data)
-                        .send();
+                if batch.len() >= BATCH_SIZE || batch.bytes() >= BATCH_BYTES {
+                    post(&http_client, &mut batch);
                 }
             }
-        })
-    });
-    let mut read_pos = get_u32(buffer, READ) as isize;
-    if read_pos == CAPACITY {
-        read_pos = 0;
+            Err(RecvTimeoutError::Timeout) => post(&http_client, &mut batch),
+            Err(RecvTimeoutError::Disconnected) => {
+                post(&http_client, &mut batch);
+                return;
+            }
+        }
     }
+}
 
-    let mut remaining = CAPACITY - read_pos; // nr of bytes to read before end of buffer
-    let len = if remaining == 1 {
-        let byte_high = get_u8(buffer, read_pos);
-        read_pos = 0;
-        let byte_low = get_u8(buffer, read_pos);
-        read_pos += 1;
-        let l = (byte_high as u16) << 8 | byte_low as u16;
-        remaining = l as isize;
-        l
-    } else if remaining == 2 {
-        let l = get_u16(buffer, read_pos);
-        read_pos = 0;
-        remaining = 0;
-        l
-    } else {
-        let l = get_u16(buffer, read_pos);
-        read_pos += 2;
-        remaining -= 2;
-        l
-    } as isize;
-
-    // must copy to maintain it safely once read from the buffer
-    // can safely skip checks for len and utf8
-    if len <= remaining {
-        let s = slice::from_raw_parts(
-            buffer.offset(read_pos).cast::<u8>(),
-            len as usize,
-        ).to_owned();
-        let send_result = sender.send_timeout(s, Duration::from_secs(10));
-        if send_result.is_err() {
-            println!("overflow detected, discarding");
+fn post(http_client: &Client, batch: &mut Batch) {
+    if batch.is_empty() {
+        return;
+    }
+    let count = batch.len();
+    let gzip = !PLAIN.load(Ordering::Relaxed);
+    let mut request = http_client.post(BULK_URL).header(CONTENT_TYPE, "application/json");
+    if gzip {
+        request = request.header(CONTENT_ENCODING, "gzip");
+    }
+    let result = request
+        .body(batch.take(gzip))
+        .send()
+        .and_then(|response| response.error_for_status());
+    if let Err(e) = result {
+        println!("could not send {} records: {}", count, e);
+    }
+}
+
+/// reads records until there are no more published ones, returns the number of records read
+unsafe fn drain(buffer: *mut u8, sender: &Sender<Job>) -> usize {
+    let capacity = match capacity(buffer) {
+        Some(capacity) => capacity,
+        None => {
+            println!("not a ringbuffer, or a version that this lib doesn't know");
+            return 0;
         }
-        read_pos += len;
-    } else {
-        let mut s = slice::from_raw_parts(
-            buffer.offset(read_pos).cast::<u8>(),
-            remaining as usize,
-        ).to_owned();
-        let s2 = slice::from_raw_parts(
-            buffer.cast::<u8>(),
-            (len - remaining) as usize,
-        );
-        s.append(&mut s2.to_owned());
-
-        let send_result = sender.send_timeout(s, Duration::from_secs(10));
+    };
+    let reader_flags = &*(buffer.add(READER_FLAGS) as *const AtomicU32);
+    PLAIN.store(u32::from_be(reader_flags.load(Ordering::Acquire)) & PLAIN_BATCHES != 0, Ordering::Relaxed);
+    let mut count = 0;
+    while let Some(record) = read_record(buffer, capacity) {
+        count += 1;
+        if define(&record) {
+            continue;
+        }
+        let send_result = sender.send_timeout(record, Duration::from_secs(10));
         if send_result.is_err() {
             println!("overflow detected, discarding");
         }
+    }
+    count
+}
 
-        read_pos = len - remaining;
+/// the capacity from the metadata, None if the magic or version don't match
+unsafe fn capacity(buffer: *const u8) -> Option<usize> {
+    let magic = u32::from_be_bytes(*(buffer as *const [u8; 4]));
+    let version = u32::from_be_bytes(*(buffer.add(4) as *const [u8; 4]));
+    if magic != MAGIC || version != VERSION {
+        return None;
     }
-    put_u32(buffer, READ, read_pos as u32);
+    Some(u64::from_be_bytes(*(buffer.add(CAPACITY) as *const [u8; 8])) as usize)
 }
 
-fn get_u8(s: *const c_char, pos: isize) -> u8 {
-    unsafe { *s.offset(pos) as u8 }
+/// Reads the next published record, skipping the padding at the end of the buffer, and the unused or aborted
+/// reservations of the java writers.
+/// The bytes that are read are set to 0 before the read position is moved, so that java writers only
+/// ever see zeroed space.
+///
+/// # Safety
+///
+/// buffer must point to the java ringbuffer (aligned to 8 bytes), and this must be the only reader.
+unsafe fn read_record(buffer: *mut u8, capacity: usize) -> Option<Job> {
+    let read_position = &*(buffer.add(READ_POSITION) as *const AtomicU64);
+    let mut position = u64::from_be(read_position.load(Ordering::Acquire));
+    loop {
+        let index = METADATA_LENGTH + ((position as usize) & (capacity - 1));
+        let header = &*(buffer.add(index) as *const AtomicU32);
+        // acquire: the payload is written before the length is published
+        let length = u32::from_be(header.load(Ordering::Acquire)) as i32;
+        if length == 0 {
+            return None; // nothing there, or not yet published
+        }
+        if length < 0 {
+            // padding until the end of the buffer (the record is at the start), or an unused reservation
+            let padding = (-length) as usize;
+            ptr::write_bytes(buffer.add(index), 0, padding);
+            position += padding as u64;
+            read_position.store(position.to_be(), Ordering::Release);
+            continue;
+        }
+        let length = length as usize;
+        // must copy to maintain it safely once read from the buffer
+        let record = slice::from_raw_parts(buffer.add(index + RECORD_HEADER_LENGTH), length).to_vec();
+        let flags = u32::from_be(ptr::read(buffer.add(index + 4) as *const u32));
+        let record_length = (length + RECORD_HEADER_LENGTH + ALIGNMENT - 1) & !(ALIGNMENT - 1);
+        ptr::write_bytes(buffer.add(index), 0, record_length);
+        position += record_length as u64;
+        read_position.store(position.to_be(), Ordering::Release);
+        return Some((flags, record));
+    }
 }
 
-fn get_u16(s: *const c_char, pos: isize) -> u16 {
-    let mut b: [u8; 2] = [0; 2];
-    unsafe {
-        b[0] = *s.offset(pos) as u8;
-        b[1] = *s.offset(pos + 1) as u8;
+/// Symbols, trace and site records are read here, in buffer order, and not by the sender threads: a record that
+/// uses an id comes after its definition in the buffer, but could be decoded before it by the other sender thread.
+/// Java writes them UNCOMPRESSED, so they are recognized by the first byte.
+fn define((flags, data): &Job) -> bool {
+    let record_type = data.first().copied();
+    if flags & UNCOMPRESSED == 0
+        || (record_type != Some(decoder::TYPE_SYMBOLS)
+            && record_type != Some(decoder::TYPE_TRACE)
+            && record_type != Some(decoder::TYPE_SITE))
+    {
+        return false;
+    }
+    // a trace record can use the symbols before it
+    let record = decoder::decode_with(data, &symbols().read().unwrap(), &HashMap::new());
+    match record {
+        Ok(Record::Symbols(definitions)) => symbols().write().unwrap().extend(definitions),
+        Ok(Record::Trace(id, frames)) => {
+            traces().write().unwrap().insert(id, frames);
+        }
+        Ok(Record::Site(site)) => {
+            sites().write().unwrap().insert(site.id, site);
+        }
+        Ok(_) => {}
+        Err(e) => println!("could not decode definitions: {:?}", e),
     }
-    u16::from_be_bytes(b)
+    true
 }
 
-fn get_u32(s: *mut c_char, pos: isize) -> u32 {
-    let mut b: [u8; 4] = [0; 4];
-    unsafe {
-        b[0] = *s.offset(pos) as u8;
-        b[1] = *s.offset(pos + 1) as u8;
-        b[2] = *s.offset(pos + 2) as u8;
-        b[3] = *s.offset(pos + 3) as u8;
+/// a DEFLATED record: raw deflate, that refers back into the dictionary
+fn inflate(data: &[u8]) -> Option<Vec<u8>> {
+    let mut inflater = Decompress::new(false);
+    inflater.set_dictionary(DICTIONARY).ok()?;
+    let mut uncompressed = Vec::with_capacity(data.len() * 4);
+    loop {
+        let read = inflater.total_in() as usize;
+        let status = inflater
+            .decompress_vec(&data[read..], &mut uncompressed, FlushDecompress::Finish)
+            .ok()?;
+        match status {
+            Status::StreamEnd => return Some(uncompressed),
+            _ if uncompressed.len() == uncompressed.capacity() => uncompressed.reserve(uncompressed.capacity().max(256)),
+            _ => return None, // room left, but no end: truncated
+        }
     }
-    u32::from_be_bytes(b)
 }
 
-fn put_u32(s: *mut c_char, pos: isize, value: u32) {
-    let bytes = u32::to_be_bytes(value);
-    unsafe {
-        *s.offset(pos) = bytes[0] as c_char;
-        *s.offset(pos + 1) = bytes[1] as c_char;
-        *s.offset(pos + 2) = bytes[2] as c_char;
-        *s.offset(pos + 3) = bytes[3] as c_char;
+/// uncompresses (unless it is flagged UNCOMPRESSED) and decodes a record (see decoder.rs) into the json for
+/// the batch that is posted to the api
+fn to_json(flags: u32, data: &[u8]) -> Option<Entry> {
+    let uncompressed = if flags & DEFLATED != 0 {
+        match inflate(data) {
+            Some(uncompressed) => uncompressed,
+            None => {
+                println!("could not inflate record");
+                return None;
+            }
+        }
+    } else if flags & UNCOMPRESSED != 0 {
+        data.to_vec()
+    } else {
+        match snappy::uncompress(data) {
+            Some(uncompressed) => uncompressed,
+            None => {
+                println!("could not uncompress record");
+                return None;
+            }
+        }
+    };
+    let record = decoder::decode_with(&uncompressed, &symbols().read().unwrap(), &traces().read().unwrap())
+        .map_err(|e| println!("could not decode record: {:?}", e))
+        .ok()?;
+    match record {
+        Record::Throwable(throwable) => serde_json::to_string(&throwable)
+            .ok()
+            .map(Entry::Stacktrace),
+        Record::Repeat(repeat) => serde_json::to_string(&repeat)
+            .ok()
+            .map(Entry::Repeat),
+        Record::Site(site) => {
+            // same as the symbols
+            sites().write().unwrap().insert(site.id, site);
+            None
+        }
+        Record::Symbols(definitions) => {
+            // java doesn't compress these, so drain took them out already, see define
+            symbols().write().unwrap().extend(definitions);
+            None
+        }
+        Record::Trace(id, frames) => {
+            // same
+            traces().write().unwrap().insert(id, frames);
+            None
+        }
+        Record::Summary(summary) => serde_json::to_string(&summary)
+            .ok()
+            .map(Entry::Summary),
+        Record::SiteThrowable(mut record) => {
+            // the site record came before it, see define
+            record.site = sites().read().unwrap().get(&record.site_id).cloned();
+            serde_json::to_string(&record)
+                .ok()
+                .map(Entry::Stacktrace)
+        }
     }
 }
 
+fn sites() -> &'static RwLock<HashMap<u32, decoder::Site>> {
+    SITES.get_or_init(|| RwLock::new(HashMap::new()))
+}
+
+fn symbols() -> &'static RwLock<HashMap<u32, String>> {
+    SYMBOLS.get_or_init(|| RwLock::new(HashMap::new()))
+}
+
+fn traces() -> &'static RwLock<HashMap<u32, Vec<decoder::Frame>>> {
+    TRACES.get_or_init(|| RwLock::new(HashMap::new()))
+}
+
 #[cfg(test)]
 mod test {
+    use super::*;
+
+    #[test]
+    fn define_site() {
+        let site: Vec<u8> = vec![
+            decoder::TYPE_SITE,
+            0xad, 0x02,          // id 301
+            4, b'M',             // className
+            4, b'm',             // methodName
+            8, b'(', b')', b'V', // descriptor
+            12,                  // offset
+            14,                  // lineNumber 7, zigzag
+        ];
+        // a compressed record is for the senders
+        assert!(!define(&(0, site.clone())));
+        assert!(define(&(UNCOMPRESSED, site)));
+        assert_eq!(sites().read().unwrap().get(&301).map(|site| site.line_number), Some(7));
+    }
+
     #[test]
     fn read_snap() {
         let bytes = std::fs::read("/Users/Shautvast/dev/exceptional/agent/hello.snap").unwrap();